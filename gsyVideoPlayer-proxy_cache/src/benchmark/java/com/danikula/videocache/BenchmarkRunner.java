@@ -0,0 +1,32 @@
+package com.danikula.videocache;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 在单元测试任务中运行JMH基准测试，只有通过-Pbenchmark指定时才运行，例如：
+ * <pre>
+ * ./gradlew :gsyVideoPlayer-proxy_cache:testDebugUnitTest -Pbenchmark=RequestParser --tests '*BenchmarkRunner'
+ * </pre>
+ * 同时输出每次操作分配的内存（gc.alloc.rate.norm）。
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void runBenchmarks() throws RunnerException {
+        String include = System.getProperty("benchmark");
+        Assume.assumeNotNull(include);
+        Options options = new OptionsBuilder()
+                .include(include.isEmpty() || "true".equals(include) ? "Benchmark" : include)
+                // gradle的测试进程不通过java.class.path传递classpath，fork出的进程找不到测试类，只能在当前进程中运行
+                .forks(0)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
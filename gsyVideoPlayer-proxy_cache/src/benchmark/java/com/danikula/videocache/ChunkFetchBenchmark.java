@@ -0,0 +1,87 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.headers.EmptyHeadersInjector;
+import com.danikula.videocache.headers.HeaderInjector;
+import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从本地源站下载一个分段的耗时，对比复用连接池中的连接和每个分段新建连接（请求头带Connection: close）。
+ * 本地回环没有网络延迟，真实网络中每次新建连接还要多出至少一个RTT。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChunkFetchBenchmark {
+
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 128 * 1024;
+
+    @Param({"okhttp", "httpurlconnection"})
+    public String client;
+
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    private LocalOrigin origin;
+    private UrlSource source;
+    private final byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+    private long offset;
+    private int chunks;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        origin = LocalOrigin.http(FILE_SIZE);
+        HeaderInjector headerInjector = pooled ? new EmptyHeadersInjector() : new HeaderInjector() {
+            @Override
+            public Map<String, String> addHeaders(String url) {
+                return Collections.singletonMap("Connection", "close");
+            }
+        };
+        source = "okhttp".equals(client)
+                ? new OkHttpUrlSource(origin.getUrl(), SourceInfoStorageFactory.newEmptySourceInfoStorage(), headerInjector)
+                : new HttpUrlSource(origin.getUrl(), SourceInfoStorageFactory.newEmptySourceInfoStorage(), headerInjector);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        System.out.println("\n" + client + " pooled=" + pooled + ": " + origin.getConnectionCount()
+                + " connections for " + chunks + " chunks");
+        origin.close();
+    }
+
+    @Benchmark
+    public long fetchChunk() throws ProxyCacheException {
+        source.open(offset, offset + CHUNK_SIZE);
+        long read = 0;
+        try {
+            int count;
+            while ((count = source.read(buffer)) != -1) {
+                read += count;
+            }
+        } finally {
+            source.close();
+        }
+        offset = (offset + CHUNK_SIZE) % FILE_SIZE;
+        chunks++;
+        return read;
+    }
+}
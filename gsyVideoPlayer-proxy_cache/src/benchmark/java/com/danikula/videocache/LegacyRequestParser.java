@@ -0,0 +1,103 @@
+package com.danikula.videocache;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 改为{@link HttpRequestParser}之前的解析方式：BufferedReader按行读取，拼接成字符串后用正则表达式匹配，只用于基准测试对比
+ */
+final class LegacyRequestParser {
+
+    private static final Pattern RANGE_HEADER_PATTERN = Pattern.compile("[R,r]ange:[ ]?bytes=([\\d, -]+)");
+    private static final Pattern URL_PATTERN = Pattern.compile("(GET|HEAD) /(.*) HTTP");
+    private static final Pattern VERSION_PATTERN = Pattern.compile("HTTP/1\\.(\\d)");
+    private static final Pattern CONNECTION_HEADER_PATTERN = Pattern.compile("[C,c]onnection:[ ]?([\\w-]+)");
+
+    private LegacyRequestParser() {
+    }
+
+    /**
+     * @return 请求；连接已经关闭时返回null
+     */
+    static GetRequest read(BufferedReader reader) throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+        } while (line.isEmpty());
+        StringBuilder stringRequest = new StringBuilder();
+        while (line != null && !line.isEmpty()) {
+            stringRequest.append(line).append('\n');
+            line = reader.readLine();
+        }
+        return parse(stringRequest.toString());
+    }
+
+    static GetRequest parse(String request) {
+        Matcher urlMatcher = URL_PATTERN.matcher(request);
+        if (!urlMatcher.find()) {
+            throw new IllegalArgumentException("Invalid request `" + request + "`: url not found!");
+        }
+        return new GetRequest(urlMatcher.group(2), "HEAD".equals(urlMatcher.group(1)), findRanges(request), findKeepAlive(request));
+    }
+
+    private static List<ByteRange> findRanges(String request) {
+        Matcher matcher = RANGE_HEADER_PATTERN.matcher(request);
+        if (matcher.find()) {
+            return parseRanges(matcher.group(1));
+        }
+        return Collections.emptyList();
+    }
+
+    private static List<ByteRange> parseRanges(String value) {
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : value.split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return Collections.emptyList();
+            }
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    if (last.isEmpty()) {
+                        return Collections.emptyList();
+                    }
+                    ranges.add(ByteRange.suffix(Long.parseLong(last)));
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? -1 : Long.parseLong(last);
+                    if (end >= 0 && end < start) {
+                        return Collections.emptyList();
+                    }
+                    ranges.add(end < 0 ? ByteRange.fromStart(start) : ByteRange.of(start, end));
+                }
+            } catch (NumberFormatException e) {
+                return Collections.emptyList();
+            }
+        }
+        return ranges;
+    }
+
+    private static boolean findKeepAlive(String request) {
+        Matcher versionMatcher = VERSION_PATTERN.matcher(request);
+        boolean http11 = !versionMatcher.find() || !"0".equals(versionMatcher.group(1));
+        Matcher connectionMatcher = CONNECTION_HEADER_PATTERN.matcher(request);
+        if (connectionMatcher.find()) {
+            String connection = connectionMatcher.group(1);
+            return http11 ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+        }
+        return http11;
+    }
+}
@@ -0,0 +1,235 @@
+package com.danikula.videocache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * 基准测试使用的本地源站，支持Range和keep-alive，可以使用https。
+ * <p>
+ * 统计建立的连接数和完整的TLS握手次数（不同的会话数），用来确认连接复用和会话恢复是否生效。
+ */
+final class LocalOrigin {
+
+    private static final String KEYSTORE_PASSWORD = "benchmark";
+
+    private final byte[] data;
+    private final ServerSocket serverSocket;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Set<String> sessions = new HashSet<>();
+    private volatile boolean closed;
+
+    private LocalOrigin(byte[] data, ServerSocket serverSocket) {
+        this.data = data;
+        this.serverSocket = serverSocket;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "LocalOrigin");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    static LocalOrigin http(int size) throws IOException {
+        return new LocalOrigin(generate(size), new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")));
+    }
+
+    /**
+     * 只启用TLSv1.2，服务端按会话id缓存会话，恢复的会话id和之前相同
+     */
+    static LocalOrigin https(int size) throws Exception {
+        SSLServerSocket socket = (SSLServerSocket) newSslContext().getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        socket.setEnabledProtocols(new String[]{"TLSv1.2"});
+        return new LocalOrigin(generate(size), socket);
+    }
+
+    String getUrl() {
+        String scheme = serverSocket instanceof SSLServerSocket ? "https" : "http";
+        return scheme + "://127.0.0.1:" + serverSocket.getLocalPort() + "/video.mp4";
+    }
+
+    int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * @return 完整的TLS握手次数
+     */
+    int getHandshakeCount() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+    }
+
+    private void acceptConnections() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "LocalOriginConnection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            if (socket instanceof SSLSocket) {
+                SSLSocket sslSocket = (SSLSocket) socket;
+                sslSocket.startHandshake();
+                synchronized (sessions) {
+                    sessions.add(Arrays.toString(sslSocket.getSession().getId()));
+                }
+            }
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String request;
+            while ((request = readRequest(in)) != null) {
+                if (!respond(request, out)) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            // 客户端关闭了连接
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+
+    /**
+     * @return 是否保持连接
+     */
+    private boolean respond(String request, OutputStream out) throws IOException {
+        String lower = request.toLowerCase(Locale.US);
+        boolean head = lower.startsWith("head ");
+        boolean keepAlive = !lower.contains("connection: close");
+        long start = 0;
+        long end = data.length - 1;
+        int rangeIndex = lower.indexOf("range: bytes=");
+        boolean partial = rangeIndex >= 0;
+        if (partial) {
+            int lineEnd = lower.indexOf('\r', rangeIndex);
+            String range = request.substring(rangeIndex + "range: bytes=".length(), lineEnd).trim();
+            int dash = range.indexOf('-');
+            start = Long.parseLong(range.substring(0, dash));
+            if (dash < range.length() - 1) {
+                end = Math.min(end, Long.parseLong(range.substring(dash + 1)));
+            }
+        }
+        int length = (int) (end - start + 1);
+        StringBuilder headers = new StringBuilder()
+                .append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n")
+                .append("Content-Type: video/mp4\r\n")
+                .append("Accept-Ranges: bytes\r\n")
+                .append("Content-Length: ").append(length).append("\r\n");
+        if (partial) {
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(data.length).append("\r\n");
+        }
+        headers.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n").append("\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+        if (!head) {
+            out.write(data, (int) start, length);
+        }
+        out.flush();
+        return keepAlive;
+    }
+
+    private static String readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        int matched = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            request.write(b);
+            matched = (b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3)) ? matched + 1 : 0;
+            if (matched == 4) {
+                return request.toString("US-ASCII");
+            }
+        }
+        return null;
+    }
+
+    private static byte[] generate(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * 通过keytool生成自签名证书，不需要在仓库中保存证书文件
+     */
+    private static SSLContext newSslContext() throws Exception {
+        File keystore = File.createTempFile("origin", ".p12");
+        keystore.delete();
+        try {
+            String keytool = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+            Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "origin", "-keyalg", "RSA",
+                    "-keysize", "2048", "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+                    "-keystore", keystore.getPath(), "-storepass", KEYSTORE_PASSWORD, "-keypass", KEYSTORE_PASSWORD)
+                    .redirectErrorStream(true)
+                    .start();
+            if (process.waitFor() != 0) {
+                throw new IOException("Error generating certificate with " + keytool);
+            }
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            InputStream in = new FileInputStream(keystore);
+            try {
+                keyStore.load(in, KEYSTORE_PASSWORD.toCharArray());
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagerFactory.getKeyManagers(), null, null);
+            return context;
+        } finally {
+            keystore.delete();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.file.FileCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过{@link HttpProxyCache}从本地源站下载并代理1M数据，每次操作的gc.alloc.rate.norm就是每代理1M数据分配的字节数。
+ * <p>
+ * pooled=false时{@link BufferPool}不保留空闲buffer，每次获取都新建，相当于使用BufferPool之前的分配方式。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProxyAllocationBenchmark {
+
+    private static final int FILE_SIZE = 1024 * 1024;
+    private static final byte[] REQUEST = "GET /video HTTP/1.1\r\n\r\n".getBytes();
+
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    private LocalOrigin origin;
+    private File dir;
+    private Socket playerSocket;
+    private Socket proxySocket;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BufferPool.getInstance().setMaxPooledBytes(pooled ? BufferPool.DEFAULT_MAX_POOLED_BYTES : 0);
+        origin = LocalOrigin.http(FILE_SIZE);
+        dir = File.createTempFile("proxy", "");
+        dir.delete();
+        dir.mkdir();
+        ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        playerSocket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        proxySocket = serverSocket.accept();
+        serverSocket.close();
+        Thread player = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Player");
+        player.setDaemon(true);
+        player.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        proxySocket.close();
+        playerSocket.close();
+        origin.close();
+        dir.delete();
+        BufferPool.getInstance().setMaxPooledBytes(BufferPool.DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    @Benchmark
+    public boolean proxyOneMegabyte() throws IOException, ProxyCacheException {
+        File file = new File(dir, "video.mp4");
+        HttpProxyCache proxyCache = new HttpProxyCache(new HttpUrlSource(origin.getUrl()), new FileCache(file));
+        try {
+            return proxyCache.processRequest(HttpRequestParser.parse(REQUEST, 0, REQUEST.length), proxySocket);
+        } finally {
+            proxyCache.shutdown();
+            proxyCache.cache.getFile().delete();
+        }
+    }
+
+    /**
+     * 模拟播放器读取并丢弃响应
+     */
+    private void drain() {
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            InputStream in = playerSocket.getInputStream();
+            while (in.read(buffer) != -1) {
+                // 丢弃
+            }
+        } catch (IOException e) {
+            // benchmark结束时关闭
+        }
+    }
+}
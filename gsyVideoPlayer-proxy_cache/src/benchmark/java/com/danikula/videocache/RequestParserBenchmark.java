@@ -0,0 +1,59 @@
+package com.danikula.videocache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比{@link HttpRequestParser}和之前BufferedReader加正则表达式（{@link LegacyRequestParser}）解析播放器请求的耗时和内存分配
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RequestParserBenchmark {
+
+    private static final byte[] REQUEST = ("GET /http%3A%2F%2Fvideo.example.com%2Fmovies%2F2020%2Fsample-video-1080p.mp4 HTTP/1.1\r\n"
+            + "User-Agent: stagefright/1.2 (Linux;Android 10)\r\n"
+            + "Host: 127.0.0.1:38123\r\n"
+            + "Accept: */*\r\n"
+            + "Range: bytes=1048576-\r\n"
+            + "Connection: Keep-Alive\r\n"
+            + "Accept-Encoding: gzip\r\n"
+            + "\r\n").getBytes();
+
+    private final HttpRequestParser parser = new HttpRequestParser();
+
+    @Benchmark
+    public GetRequest legacyReader() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(REQUEST), "UTF-8"));
+        return LegacyRequestParser.read(reader);
+    }
+
+    @Benchmark
+    public GetRequest parserNewPerConnection() throws IOException {
+        return new HttpRequestParser().read(new ByteArrayInputStream(REQUEST));
+    }
+
+    @Benchmark
+    public GetRequest parserReused() throws IOException {
+        return parser.read(new ByteArrayInputStream(REQUEST));
+    }
+
+    @Benchmark
+    public GetRequest parseBytes() {
+        return HttpRequestParser.parse(REQUEST, 0, REQUEST.length);
+    }
+}
@@ -0,0 +1,115 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+import com.danikula.videocache.utils.HttpsUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 通过本地https源站对比每个分段的TLS开销：
+ * <ul>
+ * <li>newSslContextPerChunk：每次请求新建SSLContext，每个分段都是完整握手</li>
+ * <li>sharedSslContext：共享{@link HttpsUtils#getDefaultSslParams()}，新建的连接恢复之前的会话</li>
+ * <li>httpUrlSource：{@link HttpUrlSource}实际的做法，共享SSLContext并复用连接</li>
+ * </ul>
+ * 前两种每个分段都新建连接（Connection: close），只比较握手的差别。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TlsHandshakeBenchmark {
+
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 128 * 1024;
+
+    private LocalOrigin origin;
+    private UrlSource source;
+    private final byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+    private long offset;
+    private int chunks;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        origin = LocalOrigin.https(FILE_SIZE);
+        source = new HttpUrlSource(origin.getUrl(), SourceInfoStorageFactory.newEmptySourceInfoStorage());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        System.out.println("\n" + origin.getHandshakeCount() + " full handshakes, " + origin.getConnectionCount()
+                + " connections for " + chunks + " chunks");
+        origin.close();
+    }
+
+    @Benchmark
+    public long newSslContextPerChunk() throws IOException {
+        return fetch(HttpsUtils.getSslSocketFactory(null, null, null).sSLSocketFactory);
+    }
+
+    @Benchmark
+    public long sharedSslContext() throws IOException {
+        return fetch(HttpsUtils.getDefaultSslParams().sSLSocketFactory);
+    }
+
+    @Benchmark
+    public long httpUrlSource() throws ProxyCacheException {
+        source.open(offset, offset + CHUNK_SIZE);
+        long read = 0;
+        try {
+            int count;
+            while ((count = source.read(buffer)) != -1) {
+                read += count;
+            }
+        } finally {
+            source.close();
+        }
+        nextChunk();
+        return read;
+    }
+
+    private long fetch(SSLSocketFactory socketFactory) throws IOException {
+        HttpsURLConnection connection = (HttpsURLConnection) new URL(origin.getUrl()).openConnection();
+        connection.setSSLSocketFactory(socketFactory);
+        connection.setHostnameVerifier(new NullHostNameVerifier());
+        connection.setRequestProperty("Connection", "close");
+        connection.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + CHUNK_SIZE - 1));
+        long read = 0;
+        InputStream in = connection.getInputStream();
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                read += count;
+            }
+        } finally {
+            in.close();
+            connection.disconnect();
+        }
+        nextChunk();
+        return read;
+    }
+
+    private void nextChunk() {
+        offset = (offset + CHUNK_SIZE) % FILE_SIZE;
+        chunks++;
+    }
+}
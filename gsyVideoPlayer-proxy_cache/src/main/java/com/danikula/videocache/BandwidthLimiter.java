@@ -0,0 +1,117 @@
+package com.danikula.videocache;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * 预缓存的令牌桶限速，所有预缓存的下载共享同一个桶。
+ * <p>
+ * 没有视频在播放时按{@link #getIdleRate()}限速，有视频在播放时（{@link DownloadScheduler#isForegroundActive()}）
+ * 自动切换为{@link #getForegroundRate()}，把带宽让给正在播放的视频。速度为0表示不限速。
+ * 桶的容量为1秒的流量，空闲一段时间后允许短暂的突发。
+ */
+public class BandwidthLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * 计时和等待，单元测试中替换为不真正等待的实现
+     */
+    interface Clock {
+
+        long nanoTime();
+
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long nanos) throws InterruptedException {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    };
+
+    private final DownloadScheduler downloadScheduler;
+    private final Clock clock;
+    private volatile long idleRate;
+    private volatile long foregroundRate;
+    private double tokens;
+    private long lastRefillTime;
+
+    /**
+     * @param downloadScheduler 用来判断是否有视频在播放
+     * @param idleRate          没有视频播放时预缓存的速度，字节/秒，0表示不限速
+     * @param foregroundRate    有视频播放时预缓存的速度，字节/秒，0表示不限速
+     */
+    public BandwidthLimiter(DownloadScheduler downloadScheduler, long idleRate, long foregroundRate) {
+        this(downloadScheduler, idleRate, foregroundRate, SYSTEM_CLOCK);
+    }
+
+    BandwidthLimiter(DownloadScheduler downloadScheduler, long idleRate, long foregroundRate, Clock clock) {
+        this.downloadScheduler = checkNotNull(downloadScheduler);
+        this.clock = checkNotNull(clock);
+        this.lastRefillTime = clock.nanoTime();
+        setRates(idleRate, foregroundRate);
+    }
+
+    /**
+     * 运行时修改限速，比如切换到移动网络
+     */
+    public void setRates(long idleRate, long foregroundRate) {
+        checkArgument(idleRate >= 0 && foregroundRate >= 0, "Rate must be non-negative!");
+        this.idleRate = idleRate;
+        this.foregroundRate = foregroundRate;
+    }
+
+    public long getIdleRate() {
+        return idleRate;
+    }
+
+    public long getForegroundRate() {
+        return foregroundRate;
+    }
+
+    /**
+     * @return 当前生效的速度，字节/秒，0表示不限速
+     */
+    public long getCurrentRate() {
+        return downloadScheduler.isForegroundActive() ? foregroundRate : idleRate;
+    }
+
+    /**
+     * 消耗令牌，令牌不够时阻塞到补足为止；在读取数据之后调用
+     *
+     * @param count 读取的字节数
+     * @throws InterruptedException 等待时被中断
+     */
+    public void acquire(int count) throws InterruptedException {
+        long rate = getCurrentRate();
+        if (rate <= 0 || count <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = clock.nanoTime();
+            tokens = Math.min(rate, tokens + (double) (now - lastRefillTime) * rate / NANOS_PER_SECOND);
+            lastRefillTime = now;
+            tokens -= count;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens * NANOS_PER_SECOND / rate);
+        }
+        if (waitNanos > 0) {
+            clock.sleep(waitNanos);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BandwidthLimiter{idleRate=" + idleRate + ", foregroundRate=" + foregroundRate + "}";
+    }
+}
@@ -0,0 +1,115 @@
+package com.danikula.videocache;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
+
+/**
+ * 下载和响应共用的buffer池，每个buffer的大小为{@link ProxyCacheUtils#DEFAULT_BUFFER_SIZE}。
+ * <p>
+ * 通过{@link #acquire()}获取，用完后必须通过{@link #release(byte[])}归还；
+ * 池中空闲buffer的总大小不超过{@link #setMaxPooledBytes(int)}，超过时归还的buffer交给GC回收。
+ */
+public class BufferPool {
+
+    /**
+     * 默认池中最多保留的字节数
+     */
+    public static final int DEFAULT_MAX_POOLED_BYTES = 1024 * 1024;
+
+    private static volatile BufferPool instance;
+
+    private final Deque<byte[]> buffers = new ArrayDeque<>();
+    private int maxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+    private long allocatedBytes;
+    private long acquireCount;
+
+    private BufferPool() {
+    }
+
+    public static BufferPool getInstance() {
+        if (instance == null) {
+            synchronized (BufferPool.class) {
+                if (instance == null) {
+                    instance = new BufferPool();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return 空闲的buffer，没有时新建
+     */
+    public byte[] acquire() {
+        synchronized (this) {
+            acquireCount++;
+            byte[] buffer = buffers.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+            allocatedBytes += DEFAULT_BUFFER_SIZE;
+        }
+        return new byte[DEFAULT_BUFFER_SIZE];
+    }
+
+    /**
+     * 归还buffer，归还后调用方不能再使用
+     *
+     * @param buffer 通过{@link #acquire()}获取的buffer，可以为null
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != DEFAULT_BUFFER_SIZE) {
+            return;
+        }
+        synchronized (this) {
+            if ((buffers.size() + 1) * DEFAULT_BUFFER_SIZE <= maxPooledBytes) {
+                buffers.offerFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * @param maxPooledBytes 池中最多保留的字节数，0表示不缓存buffer
+     */
+    public synchronized void setMaxPooledBytes(int maxPooledBytes) {
+        checkArgument(maxPooledBytes >= 0, "Max pooled bytes must be non-negative!");
+        this.maxPooledBytes = maxPooledBytes;
+        while (buffers.size() * DEFAULT_BUFFER_SIZE > maxPooledBytes) {
+            buffers.pollLast();
+        }
+    }
+
+    /**
+     * @return 池中空闲buffer的总字节数
+     */
+    public synchronized int getPooledBytes() {
+        return buffers.size() * DEFAULT_BUFFER_SIZE;
+    }
+
+    /**
+     * @return 池中没有空闲buffer而新建的总字节数，可以和代理的数据量对比评估分配情况
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return 调用{@link #acquire()}的次数
+     */
+    public synchronized long getAcquireCount() {
+        return acquireCount;
+    }
+
+    public synchronized void clear() {
+        buffers.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferPool{pooled=" + getPooledBytes() + "/" + maxPooledBytes + ", allocated=" + allocatedBytes
+                + ", acquired=" + acquireCount + "}";
+    }
+}
@@ -0,0 +1,74 @@
+package com.danikula.videocache;
+
+/**
+ * One byte range of http {@code Range} header, e.g. {@code 1000-1999}, {@code 1000-} or {@code -500}.
+ */
+final class ByteRange {
+
+    /**
+     * 起始位置，后缀区间（bytes=-500）时为-1
+     */
+    final long start;
+
+    /**
+     * 结束位置（包含），未指定时为-1
+     */
+    final long end;
+
+    /**
+     * 后缀区间的长度，不是后缀区间时为-1
+     */
+    final long suffixLength;
+
+    private ByteRange(long start, long end, long suffixLength) {
+        this.start = start;
+        this.end = end;
+        this.suffixLength = suffixLength;
+    }
+
+    static ByteRange fromStart(long start) {
+        return new ByteRange(start, -1, -1);
+    }
+
+    static ByteRange suffix(long suffixLength) {
+        return new ByteRange(-1, -1, suffixLength);
+    }
+
+    static ByteRange of(long start, long end) {
+        return new ByteRange(start, end, -1);
+    }
+
+    boolean isSuffix() {
+        return suffixLength >= 0;
+    }
+
+    /**
+     * 按照文件长度计算实际区间
+     *
+     * @return 起止位置都确定的区间；区间不可满足时返回null
+     */
+    ByteRange resolve(long length) {
+        if (isSuffix()) {
+            if (suffixLength == 0 || length == 0) {
+                return null;
+            }
+            return of(Math.max(0, length - suffixLength), length - 1);
+        }
+        if (start >= length) {
+            return null;
+        }
+        return of(start, end < 0 ? length - 1 : Math.min(end, length - 1));
+    }
+
+    /**
+     * @return 区间包含的字节数，结束位置未知时返回-1
+     */
+    long length() {
+        return end < 0 ? -1 : end - start + 1;
+    }
+
+    @Override
+    public String toString() {
+        return isSuffix() ? "-" + suffixLength : start + "-" + (end < 0 ? "" : end);
+    }
+}
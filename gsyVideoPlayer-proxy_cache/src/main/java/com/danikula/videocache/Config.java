@@ -6,6 +6,7 @@ import com.danikula.videocache.headers.HeaderInjector;
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
 
 import java.io.File;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Configuration for proxy cache.
@@ -20,14 +21,44 @@ class Config {
     public final SourceInfoStorage sourceInfoStorage;
     public final HeaderInjector headerInjector;
     public final OnVideoCacheErrorListener cacheErrorListener;
+    public final boolean nioEngine;
+    public final int nioThreadCount;
+    public final int keepAliveTimeout;
+    public final boolean zeroCopy;
+    public final int segmentCount;
+    public final SourceFactory sourceFactory;
+    public final RetryPolicy retryPolicy;
+    public final DownloadScheduler downloadScheduler;
+    public final BandwidthLimiter bandwidthLimiter;
+    public final ExecutorService sourceReaderExecutor;
+    public final long readAheadWindow;
+    public final long readAheadLowWater;
+    public final boolean sparseCache;
 
-    Config(File cacheRoot, FileNameGenerator fileNameGenerator, DiskUsage diskUsage, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector , OnVideoCacheErrorListener listener) {
+    Config(File cacheRoot, FileNameGenerator fileNameGenerator, DiskUsage diskUsage, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector , OnVideoCacheErrorListener listener,
+           boolean nioEngine, int nioThreadCount, int keepAliveTimeout, boolean zeroCopy, int segmentCount,
+           SourceFactory sourceFactory, RetryPolicy retryPolicy, DownloadScheduler downloadScheduler,
+           BandwidthLimiter bandwidthLimiter, ExecutorService sourceReaderExecutor, long readAheadWindow, long readAheadLowWater,
+           boolean sparseCache) {
         this.cacheRoot = cacheRoot;
         this.fileNameGenerator = fileNameGenerator;
         this.diskUsage = diskUsage;
         this.sourceInfoStorage = sourceInfoStorage;
         this.headerInjector = headerInjector;
         this.cacheErrorListener = listener;
+        this.nioEngine = nioEngine;
+        this.nioThreadCount = nioThreadCount;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.zeroCopy = zeroCopy;
+        this.segmentCount = segmentCount;
+        this.sourceFactory = sourceFactory;
+        this.retryPolicy = retryPolicy;
+        this.downloadScheduler = downloadScheduler;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.sourceReaderExecutor = sourceReaderExecutor;
+        this.readAheadWindow = readAheadWindow;
+        this.readAheadLowWater = readAheadLowWater;
+        this.sparseCache = sparseCache;
     }
 
     File generateCacheFile(String url) {
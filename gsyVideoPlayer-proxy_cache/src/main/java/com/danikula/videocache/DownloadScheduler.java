@@ -0,0 +1,255 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.utils.LogUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+
+/**
+ * 所有url共享的下载调度器，由{@link HttpProxyCacheServer}持有。
+ * <p>
+ * 每次向源站请求一段数据前通过{@link #acquire(int)}获取许可，同时下载的请求数不超过{@link #getMaxRunning()}；
+ * 许可不够时按优先级排队：正在播放 > 播放位置之后的分段 > 预缓存，同一优先级先到先得。
+ * 正在播放的请求排队时会抢占正在进行的预缓存，被抢占的下载读完当前buffer后停止并重新排队，已经缓存的数据不会丢失。
+ */
+public class DownloadScheduler {
+
+    private static final String TAG = DownloadScheduler.class.getSimpleName();
+
+    /**
+     * 播放器正在等待的数据
+     */
+    public static final int PRIORITY_PLAYING = 0;
+
+    /**
+     * 播放位置之后并行下载的分段
+     */
+    public static final int PRIORITY_NEAR_FUTURE = 1;
+
+    /**
+     * 预缓存
+     */
+    public static final int PRIORITY_PRECACHE = 2;
+
+    private static final int PRIORITY_COUNT = 3;
+
+    /**
+     * 默认同时下载的请求数
+     */
+    public static final int DEFAULT_MAX_RUNNING = 4;
+
+    //播放的两次分段请求之间仍然认为在播放的时长
+    private static final long FOREGROUND_GRACE = 2 * 1000;
+
+    private final int maxRunning;
+    private final List<Ticket> waiting = new ArrayList<>();
+    private final List<Ticket> running = new ArrayList<>();
+    private long sequence;
+    private long preemptedCount;
+    private long lastForegroundTime;
+
+    public DownloadScheduler() {
+        this(DEFAULT_MAX_RUNNING);
+    }
+
+    /**
+     * @param maxRunning 同时下载的请求数
+     */
+    public DownloadScheduler(int maxRunning) {
+        checkArgument(maxRunning > 0, "Max running downloads must be positive!");
+        this.maxRunning = maxRunning;
+    }
+
+    /**
+     * 等待下载许可，下载结束后必须调用{@link Ticket#release()}
+     *
+     * @param priority 优先级，{@link #PRIORITY_PLAYING}、{@link #PRIORITY_NEAR_FUTURE}或者{@link #PRIORITY_PRECACHE}
+     * @throws InterruptedException 等待时被中断
+     */
+    public Ticket acquire(int priority) throws InterruptedException {
+        Ticket ticket = newTicket(priority);
+        ticket.await();
+        return ticket;
+    }
+
+    /**
+     * 创建还没有排队的许可，通过{@link Ticket#await()}排队；排队期间可以通过{@link Ticket#setPriority(int)}修改优先级
+     */
+    public synchronized Ticket newTicket(int priority) {
+        checkArgument(priority >= 0 && priority < PRIORITY_COUNT, "Invalid priority " + priority);
+        return new Ticket(priority, sequence++);
+    }
+
+    public int getMaxRunning() {
+        return maxRunning;
+    }
+
+    /**
+     * @return 排队等待的请求数
+     */
+    public synchronized int getQueueDepth() {
+        return waiting.size();
+    }
+
+    /**
+     * @return 某个优先级排队等待的请求数
+     */
+    public synchronized int getQueueDepth(int priority) {
+        return count(waiting, priority);
+    }
+
+    /**
+     * @return 正在下载的请求数
+     */
+    public synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * @return 某个优先级正在下载的请求数
+     */
+    public synchronized int getRunningCount(int priority) {
+        return count(running, priority);
+    }
+
+    /**
+     * @return 被抢占的预缓存次数
+     */
+    public synchronized long getPreemptedCount() {
+        return preemptedCount;
+    }
+
+    /**
+     * @return 是否有播放的下载正在进行、排队或者刚刚结束，用于在播放时限制预缓存的速度
+     */
+    public synchronized boolean isForegroundActive() {
+        if (System.currentTimeMillis() - lastForegroundTime < FOREGROUND_GRACE) {
+            return true;
+        }
+        return count(running, PRIORITY_PRECACHE) < running.size() || count(waiting, PRIORITY_PRECACHE) < waiting.size();
+    }
+
+    private Ticket nextWaiting() {
+        Ticket next = null;
+        for (Ticket ticket : waiting) {
+            if (next == null || ticket.priority < next.priority
+                    || (ticket.priority == next.priority && ticket.sequence < next.sequence)) {
+                next = ticket;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * 每个排队的播放请求最多抢占一个正在进行的预缓存
+     */
+    private void preemptPrecache() {
+        int playingWaiting = count(waiting, PRIORITY_PLAYING);
+        int preempted = 0;
+        for (Ticket ticket : running) {
+            if (ticket.preempted) {
+                preempted++;
+            }
+        }
+        for (int i = 0; i < running.size() && preempted < playingWaiting; i++) {
+            Ticket ticket = running.get(i);
+            if (ticket.priority == PRIORITY_PRECACHE && !ticket.preempted) {
+                ticket.preempted = true;
+                preempted++;
+                preemptedCount++;
+                LogUtil.i(TAG, "preempt precache download, queue depth " + waiting.size());
+            }
+        }
+    }
+
+    private static int count(List<Ticket> tickets, int priority) {
+        int count = 0;
+        for (Ticket ticket : tickets) {
+            if (ticket.priority == priority) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DownloadScheduler{running=" + running.size() + "/" + maxRunning + ", waiting=" + waiting.size()
+                + ", preempted=" + preemptedCount + "}";
+    }
+
+    /**
+     * 一次下载的许可
+     */
+    public final class Ticket {
+
+        private final long sequence;
+        private int priority;
+        private volatile boolean preempted;
+
+        private Ticket(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        /**
+         * 排队等待，直到获得许可
+         *
+         * @throws InterruptedException 等待时被中断
+         */
+        public void await() throws InterruptedException {
+            synchronized (DownloadScheduler.this) {
+                waiting.add(this);
+                try {
+                    while (running.size() >= maxRunning || nextWaiting() != this) {
+                        preemptPrecache();
+                        DownloadScheduler.this.wait();
+                    }
+                } catch (InterruptedException e) {
+                    waiting.remove(this);
+                    DownloadScheduler.this.notifyAll();
+                    throw e;
+                }
+                waiting.remove(this);
+                running.add(this);
+            }
+        }
+
+        /**
+         * @return 是否被更高优先级的请求抢占，被抢占后应尽快停止下载并释放许可
+         */
+        public boolean isPreempted() {
+            return preempted;
+        }
+
+        /**
+         * 修改优先级，比如预缓存的视频开始播放
+         */
+        public void setPriority(int priority) {
+            checkArgument(priority >= 0 && priority < PRIORITY_COUNT, "Invalid priority " + priority);
+            synchronized (DownloadScheduler.this) {
+                this.priority = priority;
+                if (priority != PRIORITY_PRECACHE) {
+                    preempted = false;
+                }
+                DownloadScheduler.this.notifyAll();
+            }
+        }
+
+        /**
+         * 释放许可，可以重复调用
+         */
+        public void release() {
+            synchronized (DownloadScheduler.this) {
+                if (running.remove(this)) {
+                    if (priority != PRIORITY_PRECACHE) {
+                        lastForegroundTime = System.currentTimeMillis();
+                    }
+                    DownloadScheduler.this.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -1,16 +1,9 @@
 package com.danikula.videocache;
 
-import android.text.TextUtils;
-import android.util.Log;
-
-import com.danikula.videocache.utils.LogUtil;
-
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Collections;
+import java.util.List;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
 
@@ -20,56 +13,53 @@ import static com.danikula.videocache.Preconditions.checkNotNull;
  * @author Alexey Danilov (danikula@gmail.com).
  */
 class GetRequest {
-    private String TAG = GetRequest.class.getSimpleName();
-    private static final Pattern RANGE_HEADER_PATTERN = Pattern.compile("[R,r]ange:[ ]?bytes=(\\d*)-");
-    private static final Pattern URL_PATTERN = Pattern.compile("GET /(.*) HTTP");
 
     public final String uri;
     public final long rangeOffset;
     public final boolean partial;
 
-    public GetRequest(String request) {
-        LogUtil.i(TAG,"request::"+request);
-        checkNotNull(request);
-        long offset = findRangeOffset(request);
-        this.rangeOffset = Math.max(0, offset);
-        this.partial = offset >= 0;
-        this.uri = findUri(request);
-        LogUtil.i(TAG,"rangeOffset::"+rangeOffset);
-    }
+    /**
+     * Range头中的所有区间，没有Range头或者格式错误时为空
+     */
+    public final List<ByteRange> ranges;
 
-    public static GetRequest read(InputStream inputStream) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
-        StringBuilder stringRequest = new StringBuilder();
-        String line;
-        while (!TextUtils.isEmpty(line = reader.readLine())) { // until new line (headers ending)
-            stringRequest.append(line).append('\n');
-        }
-        return new GetRequest(stringRequest.toString());
-    }
+    /**
+     * HEAD请求只返回响应头
+     */
+    public final boolean head;
+
+    /**
+     * 播放器是否希望复用连接：HTTP/1.1默认复用，除非指定Connection: close；HTTP/1.0需要指定Connection: keep-alive
+     */
+    public final boolean keepAlive;
 
-    private long findRangeOffset(String request) {
-        Matcher matcher = RANGE_HEADER_PATTERN.matcher(request);
-        if (matcher.find()) {
-            String rangeValue = matcher.group(1);
-            return Long.parseLong(rangeValue);
-        }
-        return -1;
+    /**
+     * 由{@link HttpRequestParser}直接从字节解析得到
+     */
+    GetRequest(String uri, boolean head, List<ByteRange> ranges, boolean keepAlive) {
+        this.uri = checkNotNull(uri);
+        this.head = head;
+        this.ranges = Collections.unmodifiableList(ranges);
+        this.partial = !ranges.isEmpty();
+        this.rangeOffset = partial && !ranges.get(0).isSuffix() ? ranges.get(0).start : 0;
+        this.keepAlive = keepAlive;
     }
 
-    private String findUri(String request) {
-        Matcher matcher = URL_PATTERN.matcher(request);
-        if (matcher.find()) {
-            return matcher.group(1);
-        }
-        throw new IllegalArgumentException("Invalid request `" + request + "`: url not found!");
+    /**
+     * 读取一个请求，长连接上的后续请求应使用同一个{@link HttpRequestParser}读取，否则会丢失已经缓冲的数据
+     */
+    public static GetRequest read(InputStream inputStream) throws IOException {
+        return new HttpRequestParser().read(inputStream);
     }
 
     @Override
     public String toString() {
         return "GetRequest{" +
                 "rangeOffset=" + rangeOffset +
+                ", ranges=" + ranges +
                 ", partial=" + partial +
+                ", head=" + head +
+                ", keepAlive=" + keepAlive +
                 ", uri='" + uri + '\'' +
                 '}';
     }
@@ -8,6 +8,8 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -18,16 +20,47 @@ import javax.net.ssl.SSLSocketFactory;
 
 /**
  * Created by liyazhou on 17/8/28.
+ * <p>
+ * 每个域名一个实例，通过{@link #getInstance(String)}获取。所有实例共享同一个{@link SSLCertificateSocketFactory}，
+ * TLS会话按真实域名缓存，HTTPDNS返回不同IP时也可以恢复会话；同一个实例也让HttpURLConnection可以复用连接池中的连接。
  */
 public class HttpDnsTLSSniSocketFactory extends SSLSocketFactory {
-    private final String TAG = HttpDnsTLSSniSocketFactory.class.getSimpleName();
+    private static final String TAG = HttpDnsTLSSniSocketFactory.class.getSimpleName();
+
+    private static final ConcurrentMap<String, HttpDnsTLSSniSocketFactory> INSTANCES = new ConcurrentHashMap<>();
+
     //HostnameVerifier hostnameVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
-    private HostnameVerifier hostnameVerifier = new NullHostNameVerifier();
+    private final HostnameVerifier hostnameVerifier = new NullHostNameVerifier();
+
+    private final String peerHost;
+
+    private final HostnameVerifier peerHostnameVerifier;
+
+    private HttpDnsTLSSniSocketFactory(String peerHost) {
+        this.peerHost = peerHost;
+        this.peerHostnameVerifier = new PeerHostnameVerifier(peerHost);
+    }
 
-    private HttpsURLConnection conn;
+    /**
+     * @param peerHost 真实的域名，即请求头中的Host
+     */
+    public static HttpDnsTLSSniSocketFactory getInstance(String peerHost) {
+        HttpDnsTLSSniSocketFactory factory = INSTANCES.get(peerHost);
+        if (factory == null) {
+            HttpDnsTLSSniSocketFactory newFactory = new HttpDnsTLSSniSocketFactory(peerHost);
+            factory = INSTANCES.putIfAbsent(peerHost, newFactory);
+            if (factory == null) {
+                factory = newFactory;
+            }
+        }
+        return factory;
+    }
 
-    public HttpDnsTLSSniSocketFactory(HttpsURLConnection conn) {
-        this.conn = conn;
+    /**
+     * @return 使用真实域名校验证书的HostnameVerifier，和本实例一起设置给HttpsURLConnection
+     */
+    public HostnameVerifier getHostnameVerifier() {
+        return peerHostnameVerifier;
     }
 
     @Override
@@ -69,18 +102,10 @@ public class HttpDnsTLSSniSocketFactory extends SSLSocketFactory {
 
     @Override
     public Socket createSocket(Socket plainSocket, String host, int port, boolean autoClose) throws IOException {
-        String peerHost = this.conn.getRequestProperty("Host");
-        if (peerHost == null)
-            peerHost = host;
         Log.i(TAG, "customized createSocket. host: " + peerHost);
-        InetAddress address = plainSocket.getInetAddress();
-        if (autoClose) {
-            // we don't need the plainSocket
-            plainSocket.close();
-        }
-        // create and connect SSL socket, but don't do hostname/certificate verification yet
-        SSLCertificateSocketFactory sslSocketFactory = (SSLCertificateSocketFactory) SSLCertificateSocketFactory.getDefault(0);
-        SSLSocket ssl = (SSLSocket) sslSocketFactory.createSocket(address, port);
+        // 在已经连接到HTTPDNS IP的socket上建立TLS，不再重新建立TCP连接；使用真实域名作为会话缓存的key
+        SSLCertificateSocketFactory sslSocketFactory = SslSocketFactoryHolder.INSTANCE;
+        SSLSocket ssl = (SSLSocket) sslSocketFactory.createSocket(plainSocket, peerHost, port, autoClose);
 
         // enable TLSv1.1/1.2 if available
         ssl.setEnabledProtocols(ssl.getSupportedProtocols());
@@ -109,4 +134,36 @@ public class HttpDnsTLSSniSocketFactory extends SSLSocketFactory {
 
         return ssl;
     }
+
+    /**
+     * 所有域名共享的SSLSocketFactory，TLS会话缓存在它的SSLContext中
+     */
+    private static final class SslSocketFactoryHolder {
+        static final SSLCertificateSocketFactory INSTANCE = (SSLCertificateSocketFactory) SSLCertificateSocketFactory.getDefault(0);
+    }
+
+    private static final class PeerHostnameVerifier implements HostnameVerifier {
+
+        private final String peerHost;
+
+        PeerHostnameVerifier(String peerHost) {
+            this.peerHost = peerHost;
+        }
+
+        /*
+         * 关于这个接口的说明，官方有文档描述：
+         * This is an extended verification option that implementers can provide.
+         * It is to be used during a handshake if the URL's hostname does not match the
+         * peer's identification hostname.
+         *
+         * 使用HTTPDNS后URL里设置的hostname不是远程的主机名(如:m.taobao.com)，与证书颁发的域不匹配，
+         * Android HttpsURLConnection提供了回调接口让用户来处理这种定制化场景。
+         * 在确认HTTPDNS返回的源站IP与Session携带的IP信息一致后，您可以在回调方法中将待验证域名替换为原来的真实域名进行验证。
+         *
+         */
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            return HttpsURLConnection.getDefaultHostnameVerifier().verify(peerHost, session);
+        }
+    }
 }
@@ -5,6 +5,14 @@ import android.os.StatFs;
 import android.text.TextUtils;
 
 import com.danikula.videocache.file.FileCache;
+import com.danikula.videocache.file.SparseFileCache;
+import com.danikula.videocache.mp4.Mp4BoxParser;
+import com.danikula.videocache.mp4.Mp4Index;
+import com.danikula.videocache.sourcestorage.Mp4IndexStorage;
+import com.danikula.videocache.sourcestorage.NoSourceInfoStorage;
+import com.danikula.videocache.sourcestorage.SourceInfoStorage;
+import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+import com.danikula.videocache.utils.ChunkSizeController;
 import com.danikula.videocache.utils.ConstantsUtil;
 import com.danikula.videocache.utils.LogUtil;
 
@@ -12,10 +20,20 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
+import static com.danikula.videocache.Preconditions.checkNotNull;
 
 /**
  * {@link ProxyCache} that read http url and writes data to {@link Socket}
@@ -25,52 +43,298 @@ import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
 class HttpProxyCache extends ProxyCache {
     private String TAG = HttpProxyCache.class.getSimpleName();
 
-    private final HttpUrlSource source;
+    //零拷贝时每次最多传输的数据量，避免预缓存多传太多
+    private static final int MAX_TRANSFER_SIZE = 64 * 1024;
+    private static final String MULTIPART_BOUNDARY = "VIDEOCACHE_BYTERANGES";
+
+    //从缓存的文件头解析moov时最多读取到内存的长度
+    private static final int MAX_RANGE_FETCH_SIZE = 8 * 1024 * 1024;
+
+    //文件末尾的moov最多提前下载的长度，更大的moov按普通的seek处理
+    private static final int MAX_MOOV_FETCH_SIZE = 1024 * 1024;
+
+    //没有开启稀疏缓存时，提前下载的moov保存在缓存文件旁边的临时文件中
+    private static final String MOOV_POSTFIX = ".moov";
+    private static final String SEGMENT_POSTFIX = ".segment";
+
+    private final UrlSource source;
     public final FileCache cache;
+    // 开启稀疏缓存时不为null
+    private final SparseFileCache sparseCache;
     private CacheListener listener;
+    private boolean zeroCopy;
+
+    /**
+     * 正在使用的请求数，创建者持有第一个引用，降为0后实例不能再被使用
+     */
+    private final AtomicInteger users = new AtomicInteger(1);
+
+    private final AtomicBoolean moovProbed = new AtomicBoolean();
+
+    /**
+     * moov在文件末尾时，和文件头同时下载的moov
+     */
+    private volatile MoovFetch moovFetch;
+    private final Object moovLock = new Object();
+    private boolean moovClosed;
 
-    public HttpProxyCache(HttpUrlSource source, FileCache cache) {
+    private final Object mp4IndexLock = new Object();
+    private volatile Mp4Index mp4Index;
+    // 不是MP4或者moov无法解析
+    private volatile boolean mp4IndexUnavailable;
+    private SourceInfoStorage sourceInfoStorage = new NoSourceInfoStorage();
+    private Mp4IndexStorage mp4IndexStorage = new NoSourceInfoStorage();
+
+    public HttpProxyCache(UrlSource source, FileCache cache) {
         super(source, cache);
         this.cache = cache;
+        this.sparseCache = cache instanceof SparseFileCache ? (SparseFileCache) cache : null;
         this.source = source;
     }
 
+    /**
+     * 增加引用计数
+     *
+     * @return {@code false} 实例已经被释放，需要创建新的实例
+     */
+    boolean retain() {
+        while (true) {
+            int count = users.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (users.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 减少引用计数
+     *
+     * @return {@code true} 最后一个引用被释放，调用方负责shutdown
+     */
+    boolean release() {
+        return users.decrementAndGet() == 0;
+    }
+
+    /**
+     * 不是最后一个引用时减少引用计数，最后一个引用由调用方在锁内通过{@link #release()}释放
+     *
+     * @return {@code true} 引用已经减少
+     */
+    boolean releaseIfShared() {
+        while (true) {
+            int count = users.get();
+            if (count <= 1) {
+                return false;
+            }
+            if (users.compareAndSet(count, count - 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 已缓存的数据使用{@link FileCache#transferTo(long, long, WritableByteChannel)}直接发送给播放器
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * @param sourceInfoStorage 同时实现了{@link Mp4IndexStorage}时保存MP4索引
+     */
+    public void setSourceInfoStorage(SourceInfoStorage sourceInfoStorage) {
+        this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
+        this.mp4IndexStorage = SourceInfoStorageFactory.getMp4IndexStorage(sourceInfoStorage);
+    }
+
     public void registerCacheListener(CacheListener cacheListener) {
         this.listener = cacheListener;
     }
 
-    public void processRequest(GetRequest request, Socket socket) throws IOException, ProxyCacheException {
+    /**
+     * 处理请求
+     *
+     * @return {@code true} 响应已经按Content-Length完整写出，连接可以继续处理下一个请求
+     */
+    public boolean processRequest(GetRequest request, Socket socket) throws IOException, ProxyCacheException {
         OutputStream out = new BufferedOutputStream(socket.getOutputStream());
-        String responseHeaders = newResponseHeaders(request);
+        long length = getContentLength();
+        LogUtil.i(TAG, "length::" + length / 1024 + "KB");
+        List<ByteRange> ranges = resolveRanges(request, length);
+
+        //当获取文件的起始位置超过文件的长度，返回416
+        if (ranges != null && ranges.isEmpty()) {
+            String responseHeaders = newNotSatisfiableHeaders(request, length);
+            out.write(responseHeaders.getBytes("UTF-8"));
+            out.flush();
+            if (!request.head) {
+                tryComplete();
+            }
+            return request.keepAlive;
+        }
+        if (ranges != null && ranges.size() > 1) {
+            return responseMultipart(request, out, socket.getChannel(), ranges, length);
+        }
+
+        ByteRange range = getSingleRange(ranges, length);
+        boolean keepAlive = request.keepAlive && range.end >= 0;
+        String responseHeaders = newResponseHeaders(ranges != null, range, length, keepAlive);
         out.write(responseHeaders.getBytes("UTF-8"));
         LogUtil.i(TAG, "processRequest responseHeaders:" + responseHeaders);
-        long offset = request.rangeOffset;
 
-        //head 请求获取，获取文件大小 ContentLength
-        if (source.length() <= 0) {
-            source.newFetchContentInfo();
+        if (request.head) {
+            out.flush();
+            return keepAlive;
         }
-        long length = source.length();
-        LogUtil.i(TAG, "length::" + length / 1024 + "KB");
 
-        //当获取文件的起始位置超过文件的长度，则return;
-        if (offset >= length) {
-            if (isUseCache(request)) {
+        LogUtil.i(TAG, "异步下载文件 range::" + range);
+        long end = range.end >= 0 ? range.end + 1 : -1;
+        long written;
+        MoovFetch moov = getMoovFetch(range.start);
+        if (moov != null) {
+            written = responseWithMoov(out, moov, range.start, end);
+        } else if (isUseCache(request, range.start)) {
+            written = responseWithCache(out, socket.getChannel(), range.start, end);
+        } else {
+            written = responseWithSeekPrefetch(out, socket.getChannel(), range.start, end);
+        }
+        return keepAlive && written == end;
+    }
+
+    /**
+     * 为NIO引擎创建非阻塞响应，不走缓存的请求（seek到缓存之外）和多区间请求返回null，由调用方回退到阻塞方式处理
+     */
+    NioResponse newNioResponse(GetRequest request) throws IOException, ProxyCacheException {
+        long length = getContentLength();
+        List<ByteRange> ranges = resolveRanges(request, length);
+        if (ranges != null && ranges.isEmpty()) {
+            String responseHeaders = newNotSatisfiableHeaders(request, length);
+            if (!request.head) {
                 tryComplete();
             }
-            return;
+            return new NioResponse(this, responseHeaders.getBytes("UTF-8"), 0, 0, request.keepAlive);
         }
+        if (ranges != null && ranges.size() > 1) {
+            return null;
+        }
+        ByteRange range = getSingleRange(ranges, length);
+        if (!request.head && (getMoovFetch(range.start) != null || !isUseCache(request, range.start))) {
+            return null;
+        }
+        boolean keepAlive = request.keepAlive && range.end >= 0;
+        String responseHeaders = newResponseHeaders(ranges != null, range, length, keepAlive);
+        LogUtil.i(TAG, "newNioResponse responseHeaders:" + responseHeaders);
+        long end = request.head ? range.start : range.end >= 0 ? range.end + 1 : -1;
+        return new NioResponse(this, responseHeaders.getBytes("UTF-8"), range.start, end, keepAlive);
+    }
 
-        LogUtil.i(TAG, "异步下载文件 offset::" + offset);
-        if (isUseCache(request)) {
-            responseWithCache(out, offset);
-        } else {
-            responseWithoutCache(out, offset);
+    /**
+     * 按照文件长度计算需要返回的区间
+     *
+     * @return 区间列表，为空表示所有区间都不可满足；不是Range请求时返回null
+     */
+    private List<ByteRange> resolveRanges(GetRequest request, long length) {
+        if (!request.partial) {
+            return null;
+        }
+        if (length < 0) {
+            // 长度未知时只能从起始位置一直返回到结束，后缀区间按完整文件返回
+            ByteRange first = request.ranges.get(0);
+            return first.isSuffix() ? null : Collections.singletonList(ByteRange.fromStart(first.start));
+        }
+        List<ByteRange> resolved = new ArrayList<>(request.ranges.size());
+        for (ByteRange range : request.ranges) {
+            ByteRange resolvedRange = range.resolve(length);
+            if (resolvedRange != null) {
+                resolved.add(resolvedRange);
+            }
+        }
+        return mergeRanges(resolved);
+    }
+
+    /**
+     * 重叠或者相邻的区间合并成一个，避免同样的数据在multipart响应中重复发送
+     *
+     * @param ranges 起止位置都确定的区间
+     * @return 按起始位置排序并且互不相邻的区间
+     */
+    private List<ByteRange> mergeRanges(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator<ByteRange>() {
+            @Override
+            public int compare(ByteRange lhs, ByteRange rhs) {
+                return lhs.start < rhs.start ? -1 : (lhs.start == rhs.start ? 0 : 1);
+            }
+        });
+        List<ByteRange> merged = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = ByteRange.of(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    private ByteRange getSingleRange(List<ByteRange> ranges, long length) {
+        if (ranges != null) {
+            return ranges.get(0);
+        }
+        return length > 0 ? ByteRange.of(0, length - 1) : ByteRange.fromStart(0);
+    }
+
+    /**
+     * 零拷贝发送offset处已经缓存到磁盘的数据
+     *
+     * @param maxCount 最多发送的字节数
+     * @return 发送的字节数；没有开启零拷贝或者offset处还没有缓存数据时返回-1，此时应使用{@link #read(byte[], long, int)}
+     */
+    long transferCached(long offset, long maxCount, WritableByteChannel target) throws IOException, ProxyCacheException {
+        if (!zeroCopy || target == null) {
+            return -1;
         }
+        long cacheAvailable = cache.available();
+        if (offset >= cacheAvailable) {
+            return -1;
+        }
+        long count = Math.min(Math.min(cacheAvailable - offset, MAX_TRANSFER_SIZE), maxCount);
+        long transferred = cache.transferTo(offset, count, target);
+        onPlayerRead(offset + transferred);
+        notifyIfCompleted();
+        return transferred;
     }
 
-    private boolean isUseCache(GetRequest request) throws ProxyCacheException {
-        long sourceLength = source.length();
+    /**
+     * 预缓存到指定长度或者被提前停止时返回true，此时应结束响应
+     */
+    boolean checkPrecacheStopped(long offset) {
+        if (offset >= ConstantsUtil.getInstance().getPreCacheLength() && shutdownAfterPrecache) {
+            shutdownAfterPrecache = false;
+            onCachePercentsAvailableChanged(percentsAvailable);
+            return true;
+        }
+
+        if (shutdownPreCache) {
+            shutdownPreCache = false;
+            LogUtil.i("调用顺序", "提前停止预缓存 url:" + source.getUrl());
+            onCachePercentsAvailableChanged(percentsAvailable);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isUseCache(GetRequest request, long offset) throws ProxyCacheException {
+        long sourceLength = getContentLength();
         boolean sourceLengthKnown = sourceLength > 0;
         long cacheAvailable = cache.available();
         // do not use cache for partial requests which too far from available cache. It seems user seek video.
@@ -85,9 +349,16 @@ class HttpProxyCache extends ProxyCache {
             noCacheBarrier = ConstantsUtil.NO_CACHE_BARRIER_THIRD;
         }
 
-        // 在原来的基础上增加一个限制，手机可用空间必须大于350M，否则不会使用缓存
-        LogUtil.i("AvailableInternal", "userable : " + getAvailableInternalMemorySize());
-        return getAvailableInternalMemorySize() > 350 * 1024 * 1024 && (!sourceLengthKnown || !request.partial || request.rangeOffset <= cacheAvailable + sourceLength * noCacheBarrier);
+        return hasEnoughSpace() && (!sourceLengthKnown || !request.partial || offset <= cacheAvailable + sourceLength * noCacheBarrier);
+    }
+
+    /**
+     * 在原来的基础上增加一个限制，手机可用空间必须大于350M，否则不会使用缓存
+     */
+    boolean hasEnoughSpace() {
+        long available = getAvailableInternalMemorySize();
+        LogUtil.i("AvailableInternal", "userable : " + available);
+        return available > 350 * 1024 * 1024;
     }
 
     public static long getAvailableInternalMemorySize() {
@@ -97,72 +368,710 @@ class HttpProxyCache extends ProxyCache {
         return availableBytes;
     }
 
-    private String newResponseHeaders(GetRequest request) throws IOException, ProxyCacheException {
-        String mime = source.getMime();
+    /**
+     * 优先使用已完成的缓存文件和{@link com.danikula.videocache.sourcestorage.SourceInfoStorage}中保存的长度，
+     * 都没有时从后台下载的第一个GET请求的Content-Range中获取，避免首字节之前还要等待一次Head请求；
+     * 暂停或者预读已满时没有下载，直接发Head请求
+     */
+    private long getContentLength() throws ProxyCacheException {
+        if (cache.isCompleted()) {
+            return cache.available();
+        }
+        long length = source.getKnownLength();
+        if (length > 0) {
+            return length;
+        }
+        long deadline = System.currentTimeMillis() + ConstantsUtil.SYSTEM_OUT_TIME;
+        while (!cache.isCompleted() && System.currentTimeMillis() < deadline) {
+            boolean reading = awaitSourceData();
+            length = source.getKnownLength();
+            if (length > 0) {
+                return length;
+            }
+            if (!reading) {
+                break;
+            }
+        }
+        if (cache.isCompleted()) {
+            return cache.available();
+        }
+        //源站没有返回Content-Range时通过Head请求获取文件大小 ContentLength
+        source.newFetchContentInfo();
+        return source.length();
+    }
+
+    /**
+     * mime未知并且缓存已经完成时根据缓存文件的扩展名推断，不再请求网络
+     */
+    private String getMime() throws ProxyCacheException {
+        String mime = source.getKnownMime();
+        if (!TextUtils.isEmpty(mime)) {
+            return mime;
+        }
+        if (cache.isCompleted()) {
+            return ProxyCacheUtils.getSupposablyMime(cache.getFile().getName());
+        }
+        return source.getMime();
+    }
+
+    /**
+     * @param partial   是否返回206
+     * @param range     返回的区间，结束位置未知时不返回Content-Length
+     * @param keepAlive 响应结束后是否保持连接，长度未知时必须关闭连接才能标识响应结束
+     */
+    private String newResponseHeaders(boolean partial, ByteRange range, long length, boolean keepAlive) throws IOException, ProxyCacheException {
+        String mime = getMime();
         boolean mimeKnown = !TextUtils.isEmpty(mime);
-        long length = cache.isCompleted() ? cache.available() : source.length();
-        boolean lengthKnown = length >= 0;
-        long contentLength = request.partial ? length - request.rangeOffset : length;
-        boolean addRange = lengthKnown && request.partial;
+        long contentLength = range.length();
+        boolean lengthKnown = contentLength >= 0;
+        boolean addRange = lengthKnown && length >= 0 && partial;
+
+        return new StringBuilder()
+                .append(partial ? "HTTP/1.1 206 PARTIAL CONTENT\r\n" : "HTTP/1.1 200 OK\r\n")
+                .append("Accept-Ranges: bytes\r\n")
+                .append(lengthKnown ? format("Content-Length: %d\r\n", contentLength) : "")
+                .append(addRange ? format("Content-Range: bytes %d-%d/%d\r\n", range.start, range.end, length) : "")
+                .append(mimeKnown ? format("Content-Type: %s\r\n", mime) : "")
+                .append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n")
+                .append("\r\n") // headers end
+                .toString();
+    }
 
+    private String newNotSatisfiableHeaders(GetRequest request, long length) {
         return new StringBuilder()
-                .append(request.partial ? "HTTP/1.1 206 PARTIAL CONTENT\n" : "HTTP/1.1 200 OK\n")
-                .append("Accept-Ranges: bytes\n")
-                .append(lengthKnown ? format("Content-Length: %d\n", contentLength) : "")
-                .append(addRange ? format("Content-Range: bytes %d-%d/%d\n", request.rangeOffset, length - 1, length) : "")
-                .append(mimeKnown ? format("Content-Type: %s\n", mime) : "")
-                .append("\n") // headers end
+                .append("HTTP/1.1 416 REQUESTED RANGE NOT SATISFIABLE\r\n")
+                .append("Accept-Ranges: bytes\r\n")
+                .append(format("Content-Range: bytes */%d\r\n", length))
+                .append("Content-Length: 0\r\n")
+                .append(request.keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n")
+                .append("\r\n") // headers end
+                .toString();
+    }
+
+    /**
+     * 多个区间按multipart/byteranges返回
+     */
+    private boolean responseMultipart(GetRequest request, OutputStream out, SocketChannel channel, List<ByteRange> ranges,
+                                      long length) throws IOException, ProxyCacheException {
+        String mime = getMime();
+        boolean mimeKnown = !TextUtils.isEmpty(mime);
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            byte[] partHeader = new StringBuilder()
+                    .append("\r\n--").append(MULTIPART_BOUNDARY).append("\r\n")
+                    .append(mimeKnown ? format("Content-Type: %s\r\n", mime) : "")
+                    .append(format("Content-Range: bytes %d-%d/%d\r\n", range.start, range.end, length))
+                    .append("\r\n")
+                    .toString().getBytes("UTF-8");
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + range.length();
+        }
+        byte[] closing = ("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes("UTF-8");
+        contentLength += closing.length;
+
+        String responseHeaders = new StringBuilder()
+                .append("HTTP/1.1 206 PARTIAL CONTENT\r\n")
+                .append("Accept-Ranges: bytes\r\n")
+                .append(format("Content-Length: %d\r\n", contentLength))
+                .append("Content-Type: multipart/byteranges; boundary=").append(MULTIPART_BOUNDARY).append("\r\n")
+                .append(request.keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n")
+                .append("\r\n") // headers end
                 .toString();
+        out.write(responseHeaders.getBytes("UTF-8"));
+        LogUtil.i(TAG, "processRequest responseHeaders:" + responseHeaders);
+        if (request.head) {
+            out.flush();
+            return request.keepAlive;
+        }
+
+        for (int i = 0; i < ranges.size(); i++) {
+            ByteRange range = ranges.get(i);
+            out.write(partHeaders.get(i));
+            long end = range.end + 1;
+            long written;
+            if (isUseCache(request, range.start)) {
+                written = responseWithCache(out, channel, range.start, end);
+            } else if (sparseCache != null) {
+                written = responseWithSparseCache(out, channel, range.start, end);
+            } else {
+                written = responseWithoutCache(out, range.start, end);
+            }
+            if (written != end) {
+                return false;
+            }
+        }
+        out.write(closing);
+        out.flush();
+        return request.keepAlive;
     }
 
 
     //如何判断播放器从socket中读取了
-    private void responseWithCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
-        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+    /**
+     * @param end 结束位置（不包含），-1表示一直返回到文件结束
+     * @return 实际写到的位置
+     */
+    private long responseWithCache(OutputStream out, SocketChannel channel, long offset, long end) throws ProxyCacheException, IOException {
+        byte[] buffer = BufferPool.getInstance().acquire();
+        try {
+            return responseWithCache(out, channel, offset, end, buffer);
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    private long responseWithCache(OutputStream out, SocketChannel channel, long offset, long end, byte[] buffer) throws ProxyCacheException, IOException {
         int readBytes;
         //使用while会将数据全部读完；将本地的文件全部写入out中，当本地无法满足的时候异步请求
-        while ((readBytes = read(buffer, offset, buffer.length)) != -1) {
-            out.write(buffer, 0, readBytes);
-            offset += readBytes;
-
-            if (offset >= ConstantsUtil.getInstance().getPreCacheLength() && shutdownAfterPrecache) {
-                shutdownAfterPrecache = false;
-                onCachePercentsAvailableChanged(percentsAvailable);
-                break;
+        while (end < 0 || offset < end) {
+            long remaining = end < 0 ? Long.MAX_VALUE : end - offset;
+            //已经缓存到磁盘的数据直接发送，只有正在下载的数据才经过buffer拷贝
+            long transferred = 0;
+            if (zeroCopy && channel != null && offset < cache.available()) {
+                out.flush();
+                transferred = transferCached(offset, remaining, channel);
+            }
+            if (transferred > 0) {
+                offset += transferred;
+            } else {
+                if ((readBytes = read(buffer, offset, (int) Math.min(buffer.length, remaining))) == -1) {
+                    break;
+                }
+                out.write(buffer, 0, readBytes);
+                offset += readBytes;
             }
 
-            if (shutdownPreCache) {
-                shutdownPreCache=false;
-                LogUtil.i("调用顺序","提前停止预缓存 url:"+source.getUrl());
-                onCachePercentsAvailableChanged(percentsAvailable);
+            if (checkPrecacheStopped(offset)) {
                 break;
             }
         }
         out.flush();
+        return offset;
     }
 
 
     /**
      * 响应，不缓存在本地，只获取500K的数据完成以后，就finishProcessRequest();如何不让他finish
      */
-    private void responseWithoutCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
+    private long responseWithoutCache(OutputStream out, long offset, long end) throws ProxyCacheException, IOException {
 
-        HttpUrlSource newSourceNoCache = new HttpUrlSource(this.source);
+        UrlSource newSourceNoCache = source.copy();
+        long limit = end >= 0 ? end : getContentLength();
+        byte[] buffer = BufferPool.getInstance().acquire();
         try {
-            while (offset < source.length()) {
-                LogUtil.i(TAG,"offset：："+offset/1024+",,length：："+source.length());
-                newSourceNoCache.open((int) offset);
-                byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+            while (offset < limit) {
+                LogUtil.i(TAG,"offset：："+offset/1024+",,limit：："+limit);
+                newSourceNoCache.open(offset);
                 int readBytes;
-                //将请求回来的数据全部都写入out中
-                while ((readBytes = newSourceNoCache.read(buffer)) != -1) {
-                    out.write(buffer, 0, readBytes);
-                    offset += readBytes;
+                //将请求回来的数据写入out中，到请求的结束位置为止
+                while (offset < limit && (readBytes = newSourceNoCache.read(buffer)) != -1) {
+                    int count = (int) Math.min(readBytes, limit - offset);
+                    out.write(buffer, 0, count);
+                    offset += count;
                 }
             }
             out.flush();
+            return offset;
         } finally {
             newSourceNoCache.close();
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    /**
+     * 从提前下载的moov返回数据，下载失败时直接请求源站
+     */
+    private long responseWithMoov(OutputStream out, MoovFetch fetch, long offset, long end) throws ProxyCacheException, IOException {
+        if (!fetch.awaitCompleted()) {
+            clearMoovFetch(fetch);
+            return responseWithoutCache(out, offset, end);
+        }
+        long dataEnd = fetch.start + fetch.length;
+        long limit = end >= 0 ? Math.min(end, dataEnd) : dataEnd;
+        byte[] buffer = BufferPool.getInstance().acquire();
+        try {
+            while (offset < limit) {
+                int readBytes = fetch.read(buffer, offset, (int) Math.min(buffer.length, limit - offset));
+                if (readBytes <= 0) {
+                    throw new ProxyCacheException("Error reading moov of " + source.getUrl() + " at " + offset);
+                }
+                out.write(buffer, 0, readBytes);
+                offset += readBytes;
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+        out.flush();
+        return limit;
+    }
+
+    /**
+     * seek到缓存之外时，根据MP4索引一次请求之后{@link ConstantsUtil#SEEK_PREFETCH_DURATION}的数据并边下载边返回，
+     * 剩余的部分以及不是MP4时按原来的方式分段请求；开启稀疏缓存时下载的数据同时写入缓存
+     */
+    private long responseWithSeekPrefetch(OutputStream out, SocketChannel channel, long offset, long end) throws ProxyCacheException, IOException {
+        Mp4Index index = getMp4Index();
+        long spanEnd = index == null ? -1 : index.getSpanEnd(offset, ConstantsUtil.SEEK_PREFETCH_DURATION);
+        if (end >= 0) {
+            spanEnd = Math.min(spanEnd, end);
+        }
+        if (sparseCache != null) {
+            // 已经缓存的部分不需要再下载
+            spanEnd = sparseCache.getFilledEnd(offset) > offset ? -1 : Math.min(spanEnd, sparseCache.getNextFilledStart(offset));
+        }
+        if (spanEnd > offset) {
+            LogUtil.i(TAG, "seek prefetch " + offset + "-" + spanEnd);
+            offset = responseWithSpan(out, offset, spanEnd);
+        }
+        if (end >= 0 && offset >= end) {
+            return offset;
+        }
+        if (sparseCache != null) {
+            return responseWithSparseCache(out, channel, offset, end);
+        }
+        return responseWithoutCache(out, offset, end);
+    }
+
+    /**
+     * 用一次请求下载[offset, end)，通过复用的buffer边下载边返回给播放器，开启稀疏缓存时同时写入缓存
+     *
+     * @return 实际写到的位置，源站提前结束时小于end
+     */
+    private long responseWithSpan(OutputStream out, long offset, long end) throws ProxyCacheException, IOException {
+        UrlSource spanSource = source.copy();
+        byte[] buffer = BufferPool.getInstance().acquire();
+        try {
+            spanSource.open(offset, end);
+            int readBytes;
+            while (offset < end && (readBytes = spanSource.read(buffer)) != -1) {
+                int count = (int) Math.min(readBytes, end - offset);
+                if (sparseCache != null) {
+                    writeSparse(buffer, 0, offset, count);
+                }
+                out.write(buffer, 0, count);
+                out.flush();
+                offset += count;
+            }
+            return offset;
+        } finally {
+            spanSource.close();
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    /**
+     * 稀疏缓存时seek到缓存之外：已经缓存的区间从缓存返回，区间之间的空洞从源站下载，同时写入缓存和返回给播放器
+     */
+    private long responseWithSparseCache(OutputStream out, SocketChannel channel, long offset, long end) throws ProxyCacheException, IOException {
+        long length = getContentLength();
+        if (length <= 0) {
+            return responseWithoutCache(out, offset, end);
+        }
+        long limit = end >= 0 ? Math.min(end, length) : length;
+        sparseCache.preallocate(length);
+        UrlSource gapSource = null;
+        byte[] buffer = BufferPool.getInstance().acquire();
+        try {
+            while (offset < limit) {
+                long filledEnd = Math.min(sparseCache.getFilledEnd(offset), limit);
+                if (filledEnd > offset) {
+                    offset = writeCached(out, channel, offset, filledEnd, buffer);
+                    continue;
+                }
+                long gapEnd = Math.min(sparseCache.getNextFilledStart(offset), limit);
+                if (gapSource == null) {
+                    gapSource = source.copy();
+                }
+                LogUtil.i(TAG, "sparse cache gap " + offset / 1024 + "K-" + gapEnd / 1024 + "K");
+                long gapStart = offset;
+                gapSource.open(offset);
+                int readBytes;
+                while (offset < gapEnd && (readBytes = gapSource.read(buffer)) != -1) {
+                    int count = (int) Math.min(readBytes, gapEnd - offset);
+                    writeSparse(buffer, 0, offset, count);
+                    out.write(buffer, 0, count);
+                    offset += count;
+                }
+                gapSource.close();
+                if (offset == gapStart) {
+                    throw new ProxyCacheException("No data at " + offset + " from " + source.getUrl());
+                }
+            }
+            out.flush();
+            return offset;
+        } finally {
+            if (gapSource != null) {
+                gapSource.close();
+            }
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    /**
+     * 返回[offset, end)之间已经缓存的数据
+     *
+     * @return 实际写到的位置
+     */
+    private long writeCached(OutputStream out, SocketChannel channel, long offset, long end, byte[] buffer) throws ProxyCacheException, IOException {
+        while (offset < end) {
+            long transferred = 0;
+            if (zeroCopy && channel != null) {
+                out.flush();
+                transferred = cache.transferTo(offset, Math.min(end - offset, MAX_TRANSFER_SIZE), channel);
+            }
+            if (transferred <= 0) {
+                int readBytes = cache.read(buffer, offset, (int) Math.min(buffer.length, end - offset));
+                if (readBytes <= 0) {
+                    throw new ProxyCacheException("Error reading cache " + cache.getFile() + " at " + offset);
+                }
+                out.write(buffer, 0, readBytes);
+                transferred = readBytes;
+            }
+            offset += transferred;
+        }
+        return offset;
+    }
+
+    /**
+     * 写入稀疏缓存，连到已缓存的位置时通知等待的读取并尝试完成缓存
+     */
+    private void writeSparse(byte[] data, int offset, long position, int length) throws ProxyCacheException {
+        if (length <= 0) {
+            return;
+        }
+        long available = cache.available();
+        sparseCache.write(position, data, offset, length);
+        if (cache.available() != available) {
+            tryComplete();
+            onCacheWritten(source.getKnownLength());
+            notifyIfCompleted();
+        }
+    }
+
+    @Override
+    protected long getNextFilledStart(long offset) {
+        return sparseCache != null ? sparseCache.getNextFilledStart(offset) : super.getNextFilledStart(offset);
+    }
+
+    /**
+     * @return MP4的时间和位置对应表；不是MP4或者moov还没有下载时返回null
+     */
+    Mp4Index getMp4Index() {
+        Mp4Index index = mp4Index;
+        if (index != null || mp4IndexUnavailable) {
+            return index;
+        }
+        synchronized (mp4IndexLock) {
+            if (mp4Index == null && !mp4IndexUnavailable) {
+                try {
+                    mp4Index = loadMp4Index();
+                } catch (ProxyCacheException e) {
+                    HttpProxyCacheDebuger.printfWarning("Error loading mp4 index: " + e.getMessage());
+                }
+            }
+            return mp4Index;
+        }
+    }
+
+    /**
+     * 优先使用保存的索引，没有时从缓存的文件头或者提前下载的moov解析，每个url只解析一次
+     */
+    private Mp4Index loadMp4Index() throws ProxyCacheException {
+        long length = source.getKnownLength();
+        if (length <= 0) {
+            return null;
+        }
+        Mp4Index index = Mp4Index.fromBytes(mp4IndexStorage.getMp4Index(getCacheName(), getEtag()));
+        if (index != null && index.getSourceLength() == length) {
+            return index;
+        }
+        long available = cache.available();
+        byte[] head = new byte[(int) Math.min(Mp4BoxParser.PROBE_SIZE, length)];
+        if (available < head.length) {
+            return null;
+        }
+        int count = readFully(head, 0, head.length);
+        if (Mp4BoxParser.findBox(head, 0, count, "ftyp") != 0) {
+            mp4IndexUnavailable = true;
+            return null;
+        }
+        byte[] moov = null;
+        int moovOffset = Mp4BoxParser.findBox(head, 0, count, "moov");
+        if (moovOffset >= 0) {
+            long size = Mp4BoxParser.getBoxSize(head, moovOffset, count);
+            if (size > 0 && size <= MAX_RANGE_FETCH_SIZE && moovOffset + size <= available) {
+                moov = new byte[(int) size];
+                readFully(moov, moovOffset, moov.length);
+            }
+        } else {
+            long tailOffset = Mp4BoxParser.findTrailingMoov(head, count, length);
+            MoovFetch fetch = moovFetch;
+            byte[] tail = fetch != null && fetch.start == tailOffset ? fetch.readAll() : null;
+            boolean tailCached = available >= length || (sparseCache != null && sparseCache.getFilledEnd(tailOffset) >= length);
+            if (tail == null && tailOffset > 0 && tailCached && length - tailOffset <= MAX_MOOV_FETCH_SIZE) {
+                tail = new byte[(int) (length - tailOffset)];
+                readFully(tail, tailOffset, tail.length);
+            }
+            int offset = tail == null ? -1 : Mp4BoxParser.findBox(tail, 0, tail.length, "moov");
+            long size = offset < 0 ? -1 : Mp4BoxParser.getBoxSize(tail, offset, tail.length);
+            if (size > 0 && offset + size <= tail.length) {
+                moov = Arrays.copyOfRange(tail, offset, (int) (offset + size));
+            }
+        }
+        if (moov == null) {
+            return null;
+        }
+        index = Mp4Index.fromMoov(moov, 0, moov.length, length);
+        if (index == null) {
+            mp4IndexUnavailable = true;
+            return null;
+        }
+        LogUtil.i(TAG, "mp4 index " + index + " for " + source.getUrl());
+        mp4IndexStorage.putMp4Index(getCacheName(), getEtag(), index.toBytes());
+        return index;
+    }
+
+    /**
+     * 源文件改变后丢弃旧文件的索引和提前下载的moov，重新解析
+     */
+    @Override
+    protected void onSourceChanged() {
+        synchronized (mp4IndexLock) {
+            mp4Index = null;
+            mp4IndexUnavailable = false;
+            mp4IndexStorage.removeMp4Index(getCacheName());
+        }
+        MoovFetch fetch = moovFetch;
+        if (fetch != null) {
+            clearMoovFetch(fetch);
+        }
+        moovProbed.set(false);
+    }
+
+    /**
+     * @return 缓存完成后的文件名，索引按它保存，缓存文件被删除时一起删除
+     */
+    private String getCacheName() {
+        return FileCache.getCompletedFile(cache.getFile()).getName();
+    }
+
+    private String getEtag() {
+        SourceInfo sourceInfo = sourceInfoStorage.get(source.getUrl());
+        return sourceInfo == null ? null : sourceInfo.etag;
+    }
+
+    /**
+     * 从缓存读取length字节到target
+     *
+     * @return 实际读取的字节数
+     */
+    private int readFully(byte[] target, long offset, int length) throws ProxyCacheException {
+        byte[] buffer = BufferPool.getInstance().acquire();
+        try {
+            int count = 0;
+            while (count < length) {
+                int read = cache.read(buffer, offset + count, Math.min(buffer.length, length - count));
+                if (read <= 0) {
+                    break;
+                }
+                System.arraycopy(buffer, 0, target, count, read);
+                count += read;
+            }
+            return count;
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    /**
+     * @return 请求的位置在提前下载的moov中，并且还没有顺序缓存到这里时返回moov的下载任务，否则返回null；
+     * 调用方只使用返回的任务，不再读取{@link #moovFetch}，其他请求可能同时把它清空
+     */
+    private MoovFetch getMoovFetch(long offset) throws ProxyCacheException {
+        MoovFetch fetch = moovFetch;
+        boolean inRange = fetch != null && offset >= fetch.start && offset < fetch.start + fetch.length
+                && offset >= cache.available();
+        return inRange ? fetch : null;
+    }
+
+    /**
+     * moov下载失败，之后的请求直接请求源站
+     */
+    private void clearMoovFetch(MoovFetch fetch) {
+        synchronized (moovLock) {
+            if (moovFetch == fetch) {
+                moovFetch = null;
+            }
+        }
+        fetch.close();
+    }
+
+    /**
+     * 文件头缓存之后判断moov是否在文件末尾，是的话马上在后台下载moov，播放器seek到文件末尾时不需要等待
+     */
+    private void probeTrailingMoov(long sourceLength) {
+        try {
+            byte[] head = new byte[Mp4BoxParser.PROBE_SIZE];
+            int count = cache.read(head, 0, head.length);
+            long moovOffset = Mp4BoxParser.findTrailingMoov(head, count, sourceLength);
+            if (moovOffset <= cache.available() || sourceLength - moovOffset > MAX_MOOV_FETCH_SIZE) {
+                return;
+            }
+            LogUtil.i(TAG, "moov at end, fetch " + moovOffset + "-" + sourceLength + " of " + source.getUrl());
+            File file = null;
+            if (sparseCache != null) {
+                sparseCache.preallocate(sourceLength);
+            } else {
+                file = FileCache.createTempFile(cache.getFile(), MOOV_POSTFIX);
+            }
+            MoovFetch fetch = new MoovFetch(source.copy(), moovOffset, (int) (sourceLength - moovOffset), file);
+            synchronized (moovLock) {
+                if (moovClosed) {
+                    fetch.close();
+                    return;
+                }
+                moovFetch = fetch;
+            }
+            fetch.start();
+        } catch (ProxyCacheException e) {
+            HttpProxyCacheDebuger.printfWarning("Error probing moov: " + e.getMessage());
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfWarning("Error creating moov file: " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected void onCacheAvailable(long cacheAvailable, long sourceLength) {
+        super.onCacheAvailable(cacheAvailable, sourceLength);
+        // 预缓存只需要文件头，开始播放后再下载moov
+        if (sourceLength > 0 && cacheAvailable < sourceLength && cacheAvailable >= Math.min(Mp4BoxParser.PROBE_SIZE, sourceLength)
+                && getPriority() != DownloadScheduler.PRIORITY_PRECACHE && moovProbed.compareAndSet(false, true)) {
+            probeTrailingMoov(sourceLength);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        MoovFetch fetch;
+        synchronized (moovLock) {
+            moovClosed = true;
+            fetch = moovFetch;
+        }
+        if (fetch != null) {
+            fetch.close();
+        }
+        super.shutdown();
+    }
+
+    /**
+     * 提前下载的文件末尾的moov。开启稀疏缓存时直接写入缓存，否则写入缓存目录下的临时文件，不占用堆内存；
+     * 临时文件在{@link #close()}时删除
+     */
+    private final class MoovFetch extends RangeFetch {
+
+        private final File file;
+        private final RandomAccessFile dataFile;
+        private boolean closed;
+
+        /**
+         * @param file 保存moov的临时文件，为null时写入稀疏缓存
+         */
+        MoovFetch(Source source, long start, int length, File file) throws IOException {
+            super(source, start, length, getPriority());
+            this.file = file;
+            this.dataFile = file == null ? null : new RandomAccessFile(file, "rw");
+        }
+
+        @Override
+        protected void write(int position, byte[] buffer, int count) throws ProxyCacheException {
+            if (dataFile == null) {
+                sparseCache.write(start + position, buffer, 0, count);
+                return;
+            }
+            synchronized (file) {
+                if (closed) {
+                    throw new InterruptedProxyCacheException("Moov file " + file + " is closed");
+                }
+                try {
+                    dataFile.seek(position);
+                    dataFile.write(buffer, 0, count);
+                } catch (IOException e) {
+                    throw new ProxyCacheException("Error writing moov to " + file, e);
+                }
+            }
+        }
+
+        /**
+         * 读取已经下载的moov
+         *
+         * @param offset 在源文件中的位置
+         * @return 读取的字节数
+         */
+        int read(byte[] buffer, long offset, int count) throws ProxyCacheException {
+            if (dataFile == null) {
+                return cache.read(buffer, offset, count);
+            }
+            synchronized (file) {
+                if (closed) {
+                    throw new ProxyCacheException("Moov file " + file + " is closed");
+                }
+                try {
+                    dataFile.seek(offset - start);
+                    return dataFile.read(buffer, 0, count);
+                } catch (IOException e) {
+                    throw new ProxyCacheException("Error reading moov from " + file, e);
+                }
+            }
+        }
+
+        /**
+         * @return 下载完成的整个区间，用于解析MP4索引；还没有下载完成时返回null
+         */
+        byte[] readAll() throws ProxyCacheException {
+            if (!isCompleted()) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            if (dataFile == null) {
+                return readFully(data, start, length) == length ? data : null;
+            }
+            synchronized (file) {
+                if (closed) {
+                    return null;
+                }
+                try {
+                    dataFile.seek(0);
+                    dataFile.readFully(data);
+                    return data;
+                } catch (IOException e) {
+                    throw new ProxyCacheException("Error reading moov from " + file, e);
+                }
+            }
+        }
+
+        /**
+         * 停止下载并删除临时文件，可以重复调用
+         */
+        void close() {
+            cancel();
+            if (dataFile == null) {
+                return;
+            }
+            synchronized (file) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    dataFile.close();
+                } catch (IOException e) {
+                    HttpProxyCacheDebuger.printfError("Error closing moov file " + file, e);
+                }
+            }
+            if (!file.delete()) {
+                HttpProxyCacheDebuger.printfError("Error deleting moov file " + file);
+            }
         }
     }
 
@@ -170,6 +1079,25 @@ class HttpProxyCache extends ProxyCache {
         return String.format(Locale.US, pattern, args);
     }
 
+    @Override
+    protected Source newSegmentSource() {
+        return source.copy();
+    }
+
+    @Override
+    protected File newSegmentFile() throws IOException {
+        return FileCache.createTempFile(cache.getFile(), SEGMENT_POSTFIX);
+    }
+
+    @Override
+    protected int getChunkSize() {
+        return source.getChunkSizeController().getChunkSize();
+    }
+
+    ChunkSizeController getChunkSizeController() {
+        return source.getChunkSizeController();
+    }
+
     @Override
     protected void onCachePercentsAvailableChanged(int percents) {
         if (listener != null) {
@@ -2,34 +2,59 @@ package com.danikula.videocache;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.Process;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.alibaba.sdk.android.httpdns.HttpDnsService;
+import com.danikula.videocache.dns.CachingResolver;
+import com.danikula.videocache.dns.HttpDnsResolver;
+import com.danikula.videocache.dns.Resolver;
 import com.danikula.videocache.file.DiskUsage;
+import com.danikula.videocache.file.FileCache;
 import com.danikula.videocache.file.FileNameGenerator;
+import com.danikula.videocache.file.LruDiskUsage;
 import com.danikula.videocache.file.Md5FileNameGenerator;
+import com.danikula.videocache.file.OnCacheFileDeletedListener;
 import com.danikula.videocache.file.TotalCountLruDiskUsage;
 import com.danikula.videocache.file.TotalSizeLruDiskUsage;
 import com.danikula.videocache.headers.EmptyHeadersInjector;
 import com.danikula.videocache.headers.HeaderInjector;
+import com.danikula.videocache.mp4.Mp4Index;
+import com.danikula.videocache.sourcestorage.Mp4IndexStorage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+import com.danikula.videocache.utils.ChunkSizeController;
 import com.danikula.videocache.utils.ConstantsUtil;
 import com.danikula.videocache.utils.LogUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.danikula.videocache.Preconditions.checkAllNotNull;
 import static com.danikula.videocache.Preconditions.checkNotNull;
@@ -56,15 +81,30 @@ import static com.danikula.videocache.Preconditions.checkNotNull;
 public class HttpProxyCacheServer {
 
     public static final String PROXY_HOST = "127.0.0.1";
-
-    private final Object clientsLock = new Object();
-    private final ExecutorService socketProcessor = Executors.newFixedThreadPool(8);
-    private final Map<String, HttpProxyCacheServerClients> clientsMap = new ConcurrentHashMap<>();
-    private final ServerSocket serverSocket;
-    private final int port;
-    private final Thread waitConnectionThread;
+    private static final int NIO_BACKLOG = 64;
+    private static final int LIVENESS_CONNECT_TIMEOUT = 200;
+    // 处理请求的线程数，NIO引擎的工作线程数相同
+    static final int SOCKET_PROCESSOR_THREADS = 8;
+    // 阻塞模式下空闲的长连接每隔这么久检查一次是否有新连接在排队，有的话关闭长连接让出线程
+    private static final int KEEP_ALIVE_CHECK_INTERVAL = 500;
+
+    private final ExecutorService socketProcessor = Executors.newFixedThreadPool(SOCKET_PROCESSOR_THREADS);
+    private final ConcurrentMap<String, HttpProxyCacheServerClients> clientsMap = new ConcurrentHashMap<>();
+    private final AtomicInteger clientsCount = new AtomicInteger(0);
+    private final ScheduledExecutorService livenessMonitor = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean livenessCheckPending = new AtomicBoolean();
     private final Config config;
-    private final Pinger pinger;
+    // 以下字段在服务重启时会被替换
+    private volatile ServerSocket serverSocket;
+    private volatile int port;
+    private volatile Thread waitConnectionThread;
+    private volatile NioProxyEngine nioEngine;
+    private volatile Pinger pinger;
+    /**
+     * 缓存的服务存活状态，由{@link LivenessCheckRunnable}在后台更新，getProxyUrl时不再ping
+     */
+    private volatile boolean alive;
+    private volatile boolean shutdown;
 
 
     public HttpProxyCacheServer(Context context) {
@@ -73,21 +113,79 @@ public class HttpProxyCacheServer {
 
     private HttpProxyCacheServer(Config config) {
         this.config = checkNotNull(config);
+        // 上次异常退出时留下的moov等临时文件
+        FileCache.deleteTempFiles(config.cacheRoot);
+
+        try {
+            startServer(0);
+            this.alive = isAlive();
+            HttpProxyCacheDebuger.printfLog("Proxy cache server started. Is it alive? " + alive);
+        } catch (IOException | InterruptedException e) {
+            socketProcessor.shutdown();
+            livenessMonitor.shutdown();
+            throw new IllegalStateException("Error starting local proxy server", e);
+        }
+        livenessMonitor.scheduleWithFixedDelay(new LivenessCheckRunnable(), ConstantsUtil.LIVENESS_CHECK_INTERVAL,
+                ConstantsUtil.LIVENESS_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        if (config.diskUsage instanceof LruDiskUsage && config.sourceInfoStorage instanceof Mp4IndexStorage) {
+            // 缓存文件被清理时一起删除保存的MP4索引
+            final Mp4IndexStorage mp4IndexStorage = (Mp4IndexStorage) config.sourceInfoStorage;
+            ((LruDiskUsage) config.diskUsage).setOnCacheFileDeletedListener(new OnCacheFileDeletedListener() {
+                @Override
+                public void onCacheFileDeleted(File file) {
+                    String cacheName = FileCache.getCompletedFile(file).getName();
+                    mp4IndexStorage.removeMp4Index(cacheName);
+                }
+            });
+        }
+    }
 
+    /**
+     * 绑定端口并启动服务
+     *
+     * @param preferredPort 期望使用的端口，0表示由系统分配
+     */
+    private void startServer(int preferredPort) throws IOException, InterruptedException {
+        InetAddress inetAddress = InetAddress.getByName(PROXY_HOST);
+        // 通过channel创建，accept得到的socket才有SocketChannel，才能零拷贝发送缓存
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
         try {
-            InetAddress inetAddress = InetAddress.getByName(PROXY_HOST);
-            this.serverSocket = new ServerSocket(0, 8, inetAddress);
-            this.port = serverSocket.getLocalPort();
-            IgnoreHostProxySelector.install(PROXY_HOST, port);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(inetAddress, preferredPort), config.nioEngine ? NIO_BACKLOG : 8);
+        } catch (IOException e) {
+            ProxyCacheUtils.close(serverChannel);
+            throw e;
+        }
+        this.serverSocket = serverChannel.socket();
+        this.port = serverSocket.getLocalPort();
+        IgnoreHostProxySelector.install(PROXY_HOST, port);
+        this.pinger = new Pinger(PROXY_HOST, port);
+        if (config.nioEngine) {
+            this.waitConnectionThread = null;
+            this.nioEngine = new NioProxyEngine(this, serverChannel, pinger, config.nioThreadCount, config.keepAliveTimeout);
+            this.nioEngine.start();
+        } else {
+            this.nioEngine = null;
             CountDownLatch startSignal = new CountDownLatch(1);
             this.waitConnectionThread = new Thread(new WaitRequestsRunnable(startSignal));
             this.waitConnectionThread.start();
             startSignal.await(); // freeze thread, wait for server starts
-            this.pinger = new Pinger(PROXY_HOST, port);
-            HttpProxyCacheDebuger.printfLog("Proxy cache server started. Is it alive? " + isAlive());
-        } catch (IOException | InterruptedException e) {
-            socketProcessor.shutdown();
-            throw new IllegalStateException("Error starting local proxy server", e);
+        }
+    }
+
+    private void stopServer() {
+        if (nioEngine != null) {
+            nioEngine.shutdown();
+        } else {
+            waitConnectionThread.interrupt();
+        }
+        pinger.shutdown();
+        try {
+            if (!serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            onError(new ProxyCacheException("Error shutting down proxy server", e));
         }
     }
 
@@ -122,37 +220,36 @@ public class HttpProxyCacheServer {
             touchFileSafely(cacheFile);
             return Uri.fromFile(cacheFile).toString();
         }
-        return isAlive() ? appendToProxyUrl(url) : url;
+        if (alive) {
+            return appendToProxyUrl(url);
+        }
+        // 服务不可用时立即触发一次检查，不等下一个周期
+        scheduleLivenessCheck();
+        return url;
     }
 
     public void registerCacheListener(CacheListener cacheListener, String url) {
         checkAllNotNull(cacheListener, url);
-        synchronized (clientsLock) {
-            try {
-                getClients(url).registerCacheListener(cacheListener);
-            } catch (ProxyCacheException e) {
-                HttpProxyCacheDebuger.printfWarning("Error registering cache listener", e.getMessage());
-            }
+        try {
+            getClients(url).registerCacheListener(cacheListener);
+        } catch (ProxyCacheException e) {
+            HttpProxyCacheDebuger.printfWarning("Error registering cache listener", e.getMessage());
         }
     }
 
     public void unregisterCacheListener(CacheListener cacheListener, String url) {
         checkAllNotNull(cacheListener, url);
-        synchronized (clientsLock) {
-            try {
-                getClients(url).unregisterCacheListener(cacheListener);
-            } catch (ProxyCacheException e) {
-                HttpProxyCacheDebuger.printfWarning("Error registering cache listener", e.getMessage());
-            }
+        try {
+            getClients(url).unregisterCacheListener(cacheListener);
+        } catch (ProxyCacheException e) {
+            HttpProxyCacheDebuger.printfWarning("Error registering cache listener", e.getMessage());
         }
     }
 
     public void unregisterCacheListener(CacheListener cacheListener) {
         checkNotNull(cacheListener);
-        synchronized (clientsLock) {
-            for (HttpProxyCacheServerClients clients : clientsMap.values()) {
-                clients.unregisterCacheListener(cacheListener);
-            }
+        for (HttpProxyCacheServerClients clients : clientsMap.values()) {
+            clients.unregisterCacheListener(cacheListener);
         }
     }
 
@@ -167,20 +264,50 @@ public class HttpProxyCacheServer {
         return getCacheFile(url).exists();
     }
 
+    /**
+     * 提前在后台解析即将播放的视频的域名，起播时不需要等待dns
+     *
+     * @param hostsOrUrls 域名或者url
+     */
+    public void prefetchHosts(Collection<String> hostsOrUrls) {
+        checkNotNull(hostsOrUrls);
+        List<String> hosts = new ArrayList<>();
+        for (String value : hostsOrUrls) {
+            String host = value.contains("://") ? Uri.parse(value).getHost() : value;
+            if (!TextUtils.isEmpty(host) && !CachingResolver.isIpAddress(host) && !PROXY_HOST.equals(host)) {
+                hosts.add(host);
+            }
+        }
+        CachingResolver.getInstance().prefetch(hosts);
+    }
+
+    /**
+     * @return 所有视频共享的下载调度器，可以获取排队和正在下载的请求数
+     */
+    public DownloadScheduler getDownloadScheduler() {
+        return config.downloadScheduler;
+    }
+
+    /**
+     * @return 预缓存的限速，可以在运行时通过{@link BandwidthLimiter#setRates(long, long)}修改
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return config.bandwidthLimiter;
+    }
+
     public void shutdown() {
         HttpProxyCacheDebuger.printfLog("Shutdown proxy server");
 
         shutdownClients();
 
         config.sourceInfoStorage.release();
+        config.sourceReaderExecutor.shutdown();
 
-        waitConnectionThread.interrupt();
-        try {
-            if (!serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-        } catch (IOException e) {
-            onError(new ProxyCacheException("Error shutting down proxy server", e));
+        synchronized (livenessMonitor) {
+            shutdown = true;
+            alive = false;
+            livenessMonitor.shutdownNow();
+            stopServer();
         }
     }
 
@@ -188,6 +315,67 @@ public class HttpProxyCacheServer {
         return pinger.ping(3, 70);   // 70+140+280=max~500ms
     }
 
+    private void scheduleLivenessCheck() {
+        if (!shutdown && livenessCheckPending.compareAndSet(false, true)) {
+            try {
+                livenessMonitor.execute(new LivenessCheckRunnable());
+            } catch (RejectedExecutionException e) {
+                livenessCheckPending.set(false);
+            }
+        }
+    }
+
+    /**
+     * 进程内检查服务线程和监听socket，再建立一次TCP连接确认端口可以连通，不发送http请求
+     */
+    private boolean probeServer() {
+        if (serverSocket.isClosed()) {
+            return false;
+        }
+        boolean running = nioEngine != null ? nioEngine.isRunning() : waitConnectionThread.isAlive();
+        if (!running) {
+            return false;
+        }
+        Socket socket = new Socket(Proxy.NO_PROXY);
+        try {
+            socket.connect(new InetSocketAddress(PROXY_HOST, port), LIVENESS_CONNECT_TIMEOUT);
+            return true;
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfWarning("Proxy server is not reachable: " + e.getMessage());
+            return false;
+        } finally {
+            closeSocket(socket);
+        }
+    }
+
+    private void checkLiveness() {
+        synchronized (livenessMonitor) {
+            if (shutdown) {
+                return;
+            }
+            if (probeServer()) {
+                alive = true;
+                return;
+            }
+            alive = false;
+            HttpProxyCacheDebuger.printfWarning("Proxy server is dead, restart it on port " + port);
+            int oldPort = port;
+            stopServer();
+            try {
+                try {
+                    startServer(oldPort);
+                } catch (IOException e) {
+                    // 原端口被占用时由系统重新分配，之前返回的代理url会失效
+                    startServer(0);
+                }
+                alive = probeServer();
+                HttpProxyCacheDebuger.printfLog("Proxy server restarted on port " + port + ". Is it alive? " + alive);
+            } catch (IOException | InterruptedException e) {
+                onError(new ProxyCacheException("Error restarting proxy server", e));
+            }
+        }
+    }
+
     private String appendToProxyUrl(String url) {
         return String.format(Locale.US, "http://%s:%d/%s", PROXY_HOST, port, ProxyCacheUtils.encode(url));
     }
@@ -207,11 +395,11 @@ public class HttpProxyCacheServer {
     }
 
     private void shutdownClients() {
-        synchronized (clientsLock) {
-            for (HttpProxyCacheServerClients clients : clientsMap.values()) {
-                clients.shutdown();
-            }
-            clientsMap.clear();
+        Iterator<HttpProxyCacheServerClients> iterator = clientsMap.values().iterator();
+        while (iterator.hasNext()) {
+            HttpProxyCacheServerClients clients = iterator.next();
+            iterator.remove();
+            clients.shutdown();
         }
     }
 
@@ -231,24 +419,41 @@ public class HttpProxyCacheServer {
     }
 
     private void processSocket(Socket socket) {
+        boolean served = false;
         try {
-            GetRequest request = GetRequest.read(socket.getInputStream());
-            String url = ProxyCacheUtils.decode(request.uri);
-            if (pinger.isPingRequest(url)) {
-                pinger.responseToPing(socket);
-            } else {
-                HttpProxyCacheServerClients clients = getClients(url);
-                clients.processRequest(request, socket);
+            boolean keepAliveEnabled = config.keepAliveTimeout > 0;
+            // 长连接空闲超时时间只用在两个请求之间，第一个请求按读取请求的超时时间等待
+            socket.setSoTimeout(ConstantsUtil.REQUEST_READ_TIMEOUT);
+            // 同一个连接上的请求必须使用同一个parser，播放器可能连续发送多个请求
+            HttpRequestParser parser = new HttpRequestParser();
+            InputStream in = socket.getInputStream();
+            boolean keepAlive = true;
+            while (keepAlive) {
+                GetRequest request = served ? readNextRequest(parser, in) : parser.read(in);
+                if (request == null) {
+                    break;
+                }
+                String url = ProxyCacheUtils.decode(request.uri);
+                if (pinger.isPingRequest(url)) {
+                    pinger.responseToPing(socket);
+                    keepAlive = false;
+                } else {
+                    HttpProxyCacheServerClients clients = getClients(url);
+                    // 线程池中的线程都在使用时不保持长连接，空闲的长连接会让新连接一直排队
+                    keepAlive = clients.processRequest(request, socket) && keepAliveEnabled && !isSocketProcessorBusy();
+                    served = true;
+                    if (keepAlive) {
+                        socket.setSoTimeout(Math.min(config.keepAliveTimeout, KEEP_ALIVE_CHECK_INTERVAL));
+                    }
+                }
             }
+        } catch (SocketTimeoutException e) {
+            LogUtil.i("HttpProxyCacheServer", served ? "Keep-alive connection is idle, close it" : "Timeout reading request: " + e.getMessage());
         } catch (SocketException e) {
-           // occurException=true;
             // There is no way to determine that client closed connection http://stackoverflow.com/a/10241044/999458
             // So just to prevent log flooding don't log stacktrace
-            LogUtil.i("HttpProxyCacheServer" , "SocketException :" + e.getMessage());
-            e.printStackTrace();
+            LogUtil.i("HttpProxyCacheServer", "SocketException :" + e.getMessage());
         } catch (ProxyCacheException | IOException e) {
-            LogUtil.i("HttpProxyCacheServer" , "ProxyCacheException | IOException :" + e.getMessage());
-            e.printStackTrace();
             onError(new ProxyCacheException("Error processing request", e));
         } finally {
             releaseSocket(socket);
@@ -256,31 +461,87 @@ public class HttpProxyCacheServer {
         }
     }
 
+    /**
+     * 在长连接上等待下一个请求，超过空闲超时时间或者有新连接在排队等待线程时抛出{@link SocketTimeoutException}。
+     * 读取超时的时候parser的状态不变，可以继续读取
+     */
+    private GetRequest readNextRequest(HttpRequestParser parser, InputStream in) throws IOException {
+        long deadline = System.currentTimeMillis() + config.keepAliveTimeout;
+        while (true) {
+            try {
+                return parser.read(in);
+            } catch (SocketTimeoutException e) {
+                if (System.currentTimeMillis() >= deadline || isSocketProcessorBusy()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 是否有连接在排队等待处理线程
+     */
+    private boolean isSocketProcessorBusy() {
+        return socketProcessor instanceof ThreadPoolExecutor && !((ThreadPoolExecutor) socketProcessor).getQueue().isEmpty();
+    }
+
+    /**
+     * 获取url对应的clients，已存在时不加锁；并发创建时只保留先放入map的实例
+     */
     public HttpProxyCacheServerClients getClients(String url) throws ProxyCacheException {
-        synchronized (clientsLock) {
-            HttpProxyCacheServerClients clients = clientsMap.get(url);
+        HttpProxyCacheServerClients clients = clientsMap.get(url);
+        if (clients == null) {
+            HttpProxyCacheServerClients newClients = new HttpProxyCacheServerClients(url, config, clientsCount);
+            clients = clientsMap.putIfAbsent(url, newClients);
             if (clients == null) {
-                clients = new HttpProxyCacheServerClients(url, config);
-                clientsMap.put(url, clients);
+                clients = newClients;
             }
-            return clients;
         }
+        return clients;
     }
 
     public HttpProxyCacheServerClients getClientFromMap(String url) throws ProxyCacheException {
-        synchronized (clientsLock) {
-            return clientsMap.get(url);
-        }
+        return clientsMap.get(url);
     }
 
-    private int getClientsCount() {
-        synchronized (clientsLock) {
-            int count = 0;
-            for (HttpProxyCacheServerClients clients : clientsMap.values()) {
-                count += clients.getClientsCount();
+    /**
+     * 获取url当前的Range请求长度和测量到的网速，用于诊断
+     *
+     * @return 没有正在下载的数据源时返回null
+     */
+    public ChunkSizeController getChunkSizeController(String url) {
+        HttpProxyCacheServerClients clients = clientsMap.get(url);
+        return clients == null ? null : clients.getChunkSizeController();
+    }
+
+    /**
+     * 根据MP4的sample table计算从fromMs之前的关键帧开始播放durationMs需要下载的字节数，可以用来决定预缓存的长度
+     *
+     * @param url        视频的url
+     * @param fromMs     开始播放的时间，毫秒
+     * @param durationMs 播放的时长，毫秒
+     * @return 字节数；不是MP4或者moov还没有下载时返回-1
+     */
+    public long bytesForDuration(String url, long fromMs, long durationMs) {
+        checkNotNull(url, "Url can't be null!");
+        HttpProxyCacheServerClients clients = clientsMap.get(url);
+        Mp4Index index = clients == null ? null : clients.getMp4Index();
+        if (index == null) {
+            SourceInfo sourceInfo = config.sourceInfoStorage.get(url);
+            if (sourceInfo != null) {
+                String cacheName = config.generateCacheFile(url).getName();
+                Mp4IndexStorage mp4IndexStorage = SourceInfoStorageFactory.getMp4IndexStorage(config.sourceInfoStorage);
+                index = Mp4Index.fromBytes(mp4IndexStorage.getMp4Index(cacheName, sourceInfo.etag));
+                if (index != null && sourceInfo.length != index.getSourceLength()) {
+                    index = null;
+                }
             }
-            return count;
         }
+        return index == null ? -1 : index.bytesForDuration(fromMs, durationMs);
+    }
+
+    private int getClientsCount() {
+        return clientsCount.get();
     }
 
     private void releaseSocket(Socket socket) {
@@ -341,6 +602,15 @@ public class HttpProxyCacheServer {
         }
     }
 
+    private final class LivenessCheckRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            livenessCheckPending.set(false);
+            checkLiveness();
+        }
+    }
+
     private final class SocketProcessorRunnable implements Runnable {
 
         private final Socket socket;
@@ -361,6 +631,7 @@ public class HttpProxyCacheServer {
     public static final class Builder {
 
         private static final long DEFAULT_MAX_SIZE = 512 * 1024 * 1024;
+        private static final int DEFAULT_NIO_THREAD_COUNT = 2;
 
         private File cacheRoot;
         private FileNameGenerator fileNameGenerator;
@@ -371,6 +642,21 @@ public class HttpProxyCacheServer {
         private OnVideoCacheErrorListener cacheErrorListener;
         private int preCacheLength;
         private int downLoadLength;
+        private boolean nioEngine;
+        private int nioThreadCount = DEFAULT_NIO_THREAD_COUNT;
+        private int keepAliveTimeout = ConstantsUtil.KEEP_ALIVE_TIMEOUT;
+        private boolean zeroCopy = true;
+        private int segmentCount = 1;
+        private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+        private int maxConcurrentDownloads = DownloadScheduler.DEFAULT_MAX_RUNNING;
+        private long precacheIdleRate;
+        private long precacheForegroundRate;
+        private int sourceReaderPoolSize = SourceReaderExecutor.DEFAULT_POOL_SIZE;
+        private int sourceReaderPriority = Process.THREAD_PRIORITY_DEFAULT;
+        private long readAheadWindow = ConstantsUtil.READ_AHEAD_WINDOW;
+        private long readAheadLowWater = ConstantsUtil.READ_AHEAD_LOW_WATER;
+        private boolean sparseCache;
+        private SourceFactory sourceFactory;
 
         public Builder(Context context) {
             this.sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(context);
@@ -378,6 +664,7 @@ public class HttpProxyCacheServer {
             this.diskUsage = new TotalSizeLruDiskUsage(DEFAULT_MAX_SIZE);
             this.fileNameGenerator = new Md5FileNameGenerator();
             this.headerInjector = new EmptyHeadersInjector();
+            this.sourceFactory = new HttpUrlSourceFactory();
         }
 
         /**
@@ -464,6 +751,17 @@ public class HttpProxyCacheServer {
             this.httpDns = checkNotNull(httpDns);
             LogUtil.i("Builder","setHttpDns ");
             HttpDnsUtil.getInstance().setHttpDns(httpDns);
+            return setResolver(new HttpDnsResolver(httpDns));
+        }
+
+        /**
+         * 设置数据源使用的域名解析器，默认使用系统DNS；解析结果由{@link CachingResolver}缓存
+         * <p>
+         * 设置了系统DNS以外的解析器时，{@link HttpUrlSource}会把url中的域名替换为解析出的IP直连，https使用{@link HttpDnsTLSSniSocketFactory}校验证书；
+         * 使用默认的系统DNS时仍然按域名请求，证书校验方式不变。
+         */
+        public Builder setResolver(Resolver resolver) {
+            CachingResolver.getInstance().setResolver(checkNotNull(resolver));
             return this;
         }
 
@@ -486,6 +784,186 @@ public class HttpProxyCacheServer {
             return this;
         }
 
+        /**
+         * 设置每次Range请求长度的调整范围，下载时根据实际网速在范围内调整，初始值为{@link #setDownLoadLength(int)}。
+         * 默认范围为128K~4M，min和max相同时不做调整。
+         *
+         * @param min 每次请求长度的下限
+         * @param max 每次请求长度的上限
+         * @return a builder.
+         */
+        public Builder setDownLoadLengthRange(int min, int max) {
+            Preconditions.checkArgument(min > 0 && max >= min, "Invalid download length range!");
+            ConstantsUtil.getInstance().setDownLoadLengthRange(min, max);
+            return this;
+        }
+
+        /**
+         * 使用基于Selector的非阻塞引擎代替每个连接一个线程的方式，少量io线程即可同时服务大量播放器连接。
+         * 默认不开启。
+         *
+         * @param nioEngine {@code true} 使用非阻塞引擎
+         * @return a builder.
+         */
+        public Builder setNioEngine(boolean nioEngine) {
+            this.nioEngine = nioEngine;
+            return this;
+        }
+
+        /**
+         * 非阻塞引擎的io线程数，默认2个，只在{@link #setNioEngine(boolean)}开启时生效
+         *
+         * @param nioThreadCount io线程数，必须大于0
+         * @return a builder.
+         */
+        public Builder setNioThreadCount(int nioThreadCount) {
+            Preconditions.checkArgument(nioThreadCount > 0, "Nio thread count must be positive!");
+            this.nioThreadCount = nioThreadCount;
+            return this;
+        }
+
+        /**
+         * 播放器和代理之间长连接的空闲超时时间，播放器seek时可以复用连接，不用每次重新建立连接。
+         * 默认5秒，设置为0则每个请求结束后关闭连接。
+         *
+         * @param keepAliveTimeout 空闲超时时间，单位毫秒
+         * @return a builder.
+         */
+        public Builder setKeepAliveTimeout(int keepAliveTimeout) {
+            Preconditions.checkArgument(keepAliveTimeout >= 0, "Keep-alive timeout can't be negative!");
+            this.keepAliveTimeout = keepAliveTimeout;
+            return this;
+        }
+
+        /**
+         * 已经缓存到磁盘的数据是否使用FileChannel.transferTo直接发送给播放器（sendfile），不经过java堆内存拷贝。
+         * 默认开启，正在下载的数据仍然通过buffer拷贝。
+         *
+         * @param zeroCopy {@code false} 全部数据都通过buffer拷贝
+         * @return a builder.
+         */
+        public Builder setZeroCopy(boolean zeroCopy) {
+            this.zeroCopy = zeroCopy;
+            return this;
+        }
+
+        /**
+         * 同一个视频同时使用多少个连接下载，每个连接下载一个{@link ConstantsUtil#getDownLoadLength()}大小的分段。
+         * 播放位置之后的第一个分段边下载边写入缓存，后续分段先下载到内存，按顺序写入缓存。默认为1，不并行下载。
+         *
+         * @param segmentCount 同时下载的分段数
+         * @return a builder.
+         */
+        public Builder setSegmentCount(int segmentCount) {
+            Preconditions.checkArgument(segmentCount > 0, "Segment count must be positive!");
+            this.segmentCount = segmentCount;
+            return this;
+        }
+
+        /**
+         * 设置下载视频使用的网络库，默认为{@link HttpUrlSourceFactory}。
+         * 使用{@link OkHttpUrlSourceFactory}时所有视频共享OkHttp的连接池，连续的分段请求可以复用已经建立的TCP/TLS连接。
+         *
+         * @param sourceFactory 数据源工厂
+         * @return a builder.
+         */
+        public Builder setSourceFactory(SourceFactory sourceFactory) {
+            this.sourceFactory = checkNotNull(sourceFactory);
+            return this;
+        }
+
+        /**
+         * 设置下载出错后的重试策略，默认为{@link RetryPolicy#DEFAULT}。重试时从已缓存的位置继续下载，
+         * 只有源文件的长度或者ETag改变时才清空缓存。
+         *
+         * @param retryPolicy 重试策略，{@link RetryPolicy#NONE}表示不重试
+         * @return a builder.
+         */
+        public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = checkNotNull(retryPolicy);
+            return this;
+        }
+
+        /**
+         * 所有视频同时向源站下载的请求数，默认为{@link DownloadScheduler#DEFAULT_MAX_RUNNING}。
+         * 超过时按优先级排队：正在播放 > 播放位置之后的分段 > 预缓存，播放请求会抢占正在进行的预缓存。
+         *
+         * @param maxConcurrentDownloads 同时下载的请求数
+         * @return a builder.
+         */
+        public Builder setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+            Preconditions.checkArgument(maxConcurrentDownloads > 0, "Max concurrent downloads must be positive!");
+            this.maxConcurrentDownloads = maxConcurrentDownloads;
+            return this;
+        }
+
+        /**
+         * 预缓存的限速，默认不限速。有视频播放时可以设置较低的foregroundRate，把带宽让给正在播放的视频。
+         *
+         * @param idleRate       没有视频播放时预缓存的速度，字节/秒，0表示不限速
+         * @param foregroundRate 有视频播放时预缓存的速度，字节/秒，0表示不限速
+         * @return a builder.
+         */
+        public Builder setPrecacheBandwidth(long idleRate, long foregroundRate) {
+            Preconditions.checkArgument(idleRate >= 0 && foregroundRate >= 0, "Rate must be non-negative!");
+            this.precacheIdleRate = idleRate;
+            this.precacheForegroundRate = foregroundRate;
+            return this;
+        }
+
+        /**
+         * 读取数据源的线程池，所有视频的下载线程和并行下载的分段共用，默认{@link SourceReaderExecutor#DEFAULT_POOL_SIZE}个线程。
+         * 线程都在下载时任务排队，空闲的线程一段时间后退出。
+         *
+         * @param poolSize       最多的线程数
+         * @param threadPriority 线程优先级，{@link Process#setThreadPriority(int)}的取值，比如{@link Process#THREAD_PRIORITY_BACKGROUND}
+         * @return a builder.
+         */
+        public Builder setSourceReaderPool(int poolSize, int threadPriority) {
+            Preconditions.checkArgument(poolSize > 0, "Pool size must be positive!");
+            this.sourceReaderPoolSize = poolSize;
+            this.sourceReaderPriority = threadPriority;
+            return this;
+        }
+
+        /**
+         * 预读的范围，默认{@link ConstantsUtil#READ_AHEAD_WINDOW}。已缓存的数据超过播放器读取位置window字节时暂停下载，
+         * 播放器读取到只剩lowWater字节时恢复，划走的视频不会一直下载到结束。
+         *
+         * @param window   预读的字节数，0表示一直下载到文件结束
+         * @param lowWater 恢复下载的字节数，不大于window
+         * @return a builder.
+         */
+        public Builder setReadAheadWindow(long window, long lowWater) {
+            Preconditions.checkArgument(window >= 0 && lowWater >= 0 && lowWater <= window, "Invalid read ahead window!");
+            this.readAheadWindow = window;
+            this.readAheadLowWater = lowWater;
+            return this;
+        }
+
+        /**
+         * 是否开启稀疏缓存，默认关闭。开启后seek到缓存位置之后下载的数据也会写入缓存，再次播放或者拖动回来时不需要重新下载；
+         * 顺序下载遇到已缓存的区间时直接跳过，所有区间连成一片时缓存完成。
+         *
+         * @param sparseCache {@code true} 开启稀疏缓存
+         * @return a builder.
+         */
+        public Builder setSparseCache(boolean sparseCache) {
+            this.sparseCache = sparseCache;
+            return this;
+        }
+
+        /**
+         * 下载和响应共用的{@link BufferPool}最多保留的空闲buffer字节数，默认{@link BufferPool#DEFAULT_MAX_POOLED_BYTES}
+         *
+         * @param maxPooledBytes 最多保留的字节数，0表示不复用buffer
+         * @return a builder.
+         */
+        public Builder setBufferPoolSize(int maxPooledBytes) {
+            BufferPool.getInstance().setMaxPooledBytes(maxPooledBytes);
+            return this;
+        }
+
         /**
          * Builds new instance of {@link HttpProxyCacheServer}.
          *
@@ -497,7 +975,12 @@ public class HttpProxyCacheServer {
         }
 
         private Config buildConfig() {
-            return new Config(cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage, headerInjector, cacheErrorListener);
+            DownloadScheduler downloadScheduler = new DownloadScheduler(maxConcurrentDownloads);
+            return new Config(cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage, headerInjector, cacheErrorListener,
+                    nioEngine, nioThreadCount, keepAliveTimeout, zeroCopy, segmentCount, sourceFactory, retryPolicy,
+                    downloadScheduler, new BandwidthLimiter(downloadScheduler, precacheIdleRate, precacheForegroundRate),
+                    SourceReaderExecutor.newExecutor(sourceReaderPoolSize, sourceReaderPriority), readAheadWindow, readAheadLowWater,
+                    sparseCache);
         }
 
     }
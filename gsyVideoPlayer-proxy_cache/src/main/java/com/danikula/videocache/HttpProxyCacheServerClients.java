@@ -6,6 +6,9 @@ import android.os.Message;
 import android.util.Log;
 
 import com.danikula.videocache.file.FileCache;
+import com.danikula.videocache.file.SparseFileCache;
+import com.danikula.videocache.mp4.Mp4Index;
+import com.danikula.videocache.utils.ChunkSizeController;
 import com.danikula.videocache.utils.LogUtil;
 
 import java.io.File;
@@ -15,6 +18,7 @@ import java.net.SocketException;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
 
@@ -26,8 +30,11 @@ import static com.danikula.videocache.Preconditions.checkNotNull;
 public final class HttpProxyCacheServerClients {
     private String TAG = HttpProxyCacheServerClients.class.getSimpleName();
     private final AtomicInteger clientsCount = new AtomicInteger(0);
+    private final AtomicInteger totalClientsCount;
     private final String url;
-    private volatile HttpProxyCache proxyCache;
+    private final AtomicReference<HttpProxyCache> proxyCache = new AtomicReference<>();
+    private final Object proxyCacheCreationLock = new Object();
+    private volatile boolean pause;
     private final List<CacheListener> listeners = new CopyOnWriteArrayList<>();
     private final CacheListener uiCacheListener;
     private final Config config;
@@ -38,49 +45,143 @@ public final class HttpProxyCacheServerClients {
     private OnVideoCacheErrorListener cacheErrorListener;
 
     public HttpProxyCacheServerClients(String url, Config config) {
+        this(url, config, new AtomicInteger(0));
+    }
+
+    /**
+     * @param totalClientsCount 所有url共享的连接计数，由{@link HttpProxyCacheServer}维护
+     */
+    HttpProxyCacheServerClients(String url, Config config, AtomicInteger totalClientsCount) {
         this.url = checkNotNull(url);
         this.config = checkNotNull(config);
+        this.totalClientsCount = checkNotNull(totalClientsCount);
         this.cacheErrorListener = config.cacheErrorListener;
         this.uiCacheListener = new UiListenerHandler(url, listeners);
     }
 
-    public void processRequest(GetRequest request, Socket socket) throws ProxyCacheException, IOException {
+    /**
+     * @return {@code true} 响应完整写出，连接可以继续处理下一个请求
+     */
+    public boolean processRequest(GetRequest request, Socket socket) throws ProxyCacheException, IOException {
         LogUtil.i(TAG, "startProcessRequest");
-        startProcessRequest();
+        HttpProxyCache httpProxyCache = startProcessRequest();
         try {
-            clientsCount.incrementAndGet();
-            proxyCache.processRequest(request, socket);
+            return httpProxyCache.processRequest(request, socket);
         } catch (SocketException e) {
             LogUtil.i(TAG, "SocketException");
             // socket exception基本是视频播放器和代理直接连接中断的异常，属于正常现象不做处理
         } catch (Exception e) {
-            LogUtil.i(TAG, Log.getStackTraceString(e));
-            // 在这里将一路传出来的异常回调出去
-            if (cacheErrorListener != null) {
-                // 获取到当前url对应的本地文件信息一并传回
-                StringBuilder sb = new StringBuilder();
-                File file = proxyCache.cache.getFile();
-                if (file != null && file.exists()) {
-                    sb.append("local file size :" + file.length() + " -- file is complete : " + proxyCache.cache.isCompleted());
-                } else {
-                    sb.append("local file not exists");
-                }
-                cacheErrorListener.onError(e, sb.toString());
-            }
+            onProcessError(httpProxyCache, e);
         } finally {
             LogUtil.i(TAG, "finishProcessRequest");
-            finishProcessRequest();
+            finishProcessRequest(httpProxyCache);
         }
+        return false;
     }
 
-    private synchronized void startProcessRequest() throws ProxyCacheException {
-        proxyCache = proxyCache == null ? newHttpProxyCache() : proxyCache;
+    /**
+     * 为NIO引擎打开一个非阻塞响应，必须和{@link #closeNioResponse(NioResponse, Exception)}成对调用。
+     *
+     * @return 响应；请求不走缓存时返回null，此时已经结束处理，调用方应使用{@link #processRequest(GetRequest, Socket)}
+     */
+    NioResponse openNioResponse(GetRequest request) throws ProxyCacheException, IOException {
+        LogUtil.i(TAG, "startProcessRequest nio");
+        HttpProxyCache httpProxyCache = startProcessRequest();
+        NioResponse response = null;
+        try {
+            response = httpProxyCache.newNioResponse(request);
+            return response;
+        } catch (ProxyCacheException e) {
+            onProcessError(httpProxyCache, e);
+            throw e;
+        } finally {
+            if (response == null) {
+                finishProcessRequest(httpProxyCache);
+            }
+        }
     }
 
-    private synchronized void finishProcessRequest() {
-        if (clientsCount.decrementAndGet() <= 0) {
-            proxyCache.shutdown();
-            proxyCache = null;
+    /**
+     * 结束NIO响应
+     *
+     * @param e 响应过程中发生的异常，正常结束为null
+     */
+    void closeNioResponse(NioResponse response, Exception e) {
+        HttpProxyCache httpProxyCache = response.getProxyCache();
+        response.release();
+        if (e != null && !(e instanceof IOException)) {
+            onProcessError(httpProxyCache, e);
+        }
+        LogUtil.i(TAG, "finishProcessRequest nio");
+        finishProcessRequest(httpProxyCache);
+    }
+
+    private void onProcessError(HttpProxyCache httpProxyCache, Exception e) {
+        LogUtil.i(TAG, Log.getStackTraceString(e));
+        // 在这里将一路传出来的异常回调出去
+        if (cacheErrorListener != null) {
+            // 获取到当前url对应的本地文件信息一并传回
+            StringBuilder sb = new StringBuilder();
+            File file = httpProxyCache.cache.getFile();
+            if (file != null && file.exists()) {
+                sb.append("local file size :" + file.length() + " -- file is complete : " + httpProxyCache.cache.isCompleted());
+            } else {
+                sb.append("local file not exists");
+            }
+            cacheErrorListener.onError(e, sb.toString());
+        }
+    }
+
+    /**
+     * 获取当前url的{@link HttpProxyCache}并增加引用计数，已有实例时不加锁；
+     * 只有需要创建新实例时才在本url的锁上同步，不同url之间互不影响
+     */
+    private HttpProxyCache startProcessRequest() throws ProxyCacheException {
+        HttpProxyCache httpProxyCache = proxyCache.get();
+        if (httpProxyCache == null || !httpProxyCache.retain()) {
+            synchronized (proxyCacheCreationLock) {
+                httpProxyCache = proxyCache.get();
+                if (httpProxyCache == null || !httpProxyCache.retain()) {
+                    httpProxyCache = newHttpProxyCache();
+                    proxyCache.set(httpProxyCache);
+                }
+            }
+        }
+        clientsCount.incrementAndGet();
+        totalClientsCount.incrementAndGet();
+        return httpProxyCache;
+    }
+
+    /**
+     * 释放引用，最后一个请求结束时shutdown。最后一个引用的释放、清除和shutdown都在创建锁内完成，
+     * 保证同一个缓存文件不会被新旧两个实例同时打开
+     */
+    private void finishProcessRequest(HttpProxyCache httpProxyCache) {
+        decrementClientsCount();
+        if (httpProxyCache.releaseIfShared()) {
+            return;
+        }
+        synchronized (proxyCacheCreationLock) {
+            // 引用已经被shutdown()清除时，实例也已经由shutdown()关闭
+            if (httpProxyCache.release() && proxyCache.compareAndSet(httpProxyCache, null)) {
+                httpProxyCache.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 减少连接计数，{@link #shutdown()}已经清零时不再减少
+     */
+    private void decrementClientsCount() {
+        while (true) {
+            int count = clientsCount.get();
+            if (count <= 0) {
+                return;
+            }
+            if (clientsCount.compareAndSet(count, count - 1)) {
+                totalClientsCount.decrementAndGet();
+                return;
+            }
         }
     }
 
@@ -94,22 +195,50 @@ public final class HttpProxyCacheServerClients {
 
     public void shutdown() {
         listeners.clear();
-        if (proxyCache != null) {
-            proxyCache.registerCacheListener(null);
-            proxyCache.shutdown();
-            proxyCache = null;
+        synchronized (proxyCacheCreationLock) {
+            HttpProxyCache httpProxyCache = proxyCache.getAndSet(null);
+            if (httpProxyCache != null) {
+                httpProxyCache.registerCacheListener(null);
+                httpProxyCache.shutdown();
+            }
         }
-        clientsCount.set(0);
+        totalClientsCount.addAndGet(-clientsCount.getAndSet(0));
     }
 
     public int getClientsCount() {
         return clientsCount.get();
     }
 
+    /**
+     * @return 当前数据源的请求长度控制器；没有正在处理的请求时返回null
+     */
+    public ChunkSizeController getChunkSizeController() {
+        HttpProxyCache httpProxyCache = proxyCache.get();
+        return httpProxyCache == null ? null : httpProxyCache.getChunkSizeController();
+    }
+
+    /**
+     * @return 当前数据源的MP4索引；没有正在处理的请求、不是MP4或者moov还没有下载时返回null
+     */
+    public Mp4Index getMp4Index() {
+        HttpProxyCache httpProxyCache = proxyCache.get();
+        return httpProxyCache == null ? null : httpProxyCache.getMp4Index();
+    }
+
     private HttpProxyCache newHttpProxyCache() throws ProxyCacheException {
-        HttpUrlSource source = new HttpUrlSource(url, config.sourceInfoStorage, config.headerInjector);
-        FileCache cache = new FileCache(config.generateCacheFile(url), config.diskUsage);
+        UrlSource source = config.sourceFactory.newSource(url, config.sourceInfoStorage, config.headerInjector);
+        File file = config.generateCacheFile(url);
+        FileCache cache = config.sparseCache ? new SparseFileCache(file, config.diskUsage) : new FileCache(file, config.diskUsage);
         HttpProxyCache httpProxyCache = new HttpProxyCache(source, cache);
+        httpProxyCache.setZeroCopy(config.zeroCopy);
+        httpProxyCache.setSegmentCount(config.segmentCount);
+        httpProxyCache.setRetryPolicy(config.retryPolicy);
+        httpProxyCache.setDownloadScheduler(config.downloadScheduler);
+        httpProxyCache.setBandwidthLimiter(config.bandwidthLimiter);
+        httpProxyCache.setSourceReaderExecutor(config.sourceReaderExecutor);
+        httpProxyCache.setReadAheadWindow(config.readAheadWindow, config.readAheadLowWater);
+        httpProxyCache.setSourceInfoStorage(config.sourceInfoStorage);
+        httpProxyCache.setPause(pause);
         httpProxyCache.registerCacheListener(uiCacheListener);
         return httpProxyCache;
     }
@@ -141,9 +270,14 @@ public final class HttpProxyCacheServerClients {
         }
     }
 
+    /**
+     * 暂停时只下载播放器已经请求的数据，不再预读，之后创建的HttpProxyCache也保持暂停状态
+     */
     public void setPause(boolean pause){
-        if(proxyCache != null){
-            proxyCache.setPause(pause);
+        this.pause = pause;
+        HttpProxyCache httpProxyCache = proxyCache.get();
+        if(httpProxyCache != null){
+            httpProxyCache.setPause(pause);
         }
     }
 
@@ -152,8 +286,9 @@ public final class HttpProxyCacheServerClients {
      * @param shutdownAfterPrecache
      */
     public void setShutdownAfterPrecache(boolean shutdownAfterPrecache){
-        if(proxyCache != null){
-            proxyCache.setShutdownAfterPrecache(shutdownAfterPrecache);
+        HttpProxyCache httpProxyCache = proxyCache.get();
+        if(httpProxyCache != null){
+            httpProxyCache.setShutdownAfterPrecache(shutdownAfterPrecache);
         }
     }
 
@@ -170,8 +305,9 @@ public final class HttpProxyCacheServerClients {
      * @param shutdownPreCache
      */
     public void setShutdownCache(boolean shutdownPreCache) {
-        if (proxyCache != null) {
-            proxyCache.setShutdownCache(shutdownPreCache);
+        HttpProxyCache httpProxyCache = proxyCache.get();
+        if (httpProxyCache != null) {
+            httpProxyCache.setShutdownCache(shutdownPreCache);
         }
     }
 }
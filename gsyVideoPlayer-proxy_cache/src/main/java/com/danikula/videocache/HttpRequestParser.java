@@ -0,0 +1,234 @@
+package com.danikula.videocache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses http requests of players directly from bytes.
+ * <p>
+ * Only method, uri, {@code Range} and {@code Connection} headers are extracted, other headers are skipped
+ * without creating any objects. One instance keeps a reusable buffer for a keep-alive connection.
+ */
+final class HttpRequestParser {
+
+    static final int MAX_REQUEST_SIZE = 8 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] GET = {'G', 'E', 'T', ' ', '/'};
+    private static final byte[] HEAD = {'H', 'E', 'A', 'D', ' ', '/'};
+    private static final byte[] HTTP_1_0 = {'H', 'T', 'T', 'P', '/', '1', '.', '0'};
+    private static final byte[] RANGE = {'r', 'a', 'n', 'g', 'e', ':'};
+    private static final byte[] CONNECTION = {'c', 'o', 'n', 'n', 'e', 'c', 't', 'i', 'o', 'n', ':'};
+    private static final byte[] BYTES_UNIT = {'b', 'y', 't', 'e', 's', '='};
+    private static final byte[] CLOSE = {'c', 'l', 'o', 's', 'e'};
+    private static final byte[] KEEP_ALIVE = {'k', 'e', 'e', 'p', '-', 'a', 'l', 'i', 'v', 'e'};
+
+    private final byte[] buffer = new byte[MAX_REQUEST_SIZE];
+    private int position;
+    private int limit;
+
+    /**
+     * 从连接中读取下一个请求，已经读到缓冲区的后续请求会保留给下一次调用
+     *
+     * @return 请求；连接已经关闭时返回null
+     */
+    GetRequest read(InputStream in) throws IOException {
+        while (true) {
+            skipEmptyLines();
+            int headersEnd = findHeadersEnd(buffer, position, limit);
+            if (headersEnd >= 0) {
+                GetRequest request = parse(buffer, position, headersEnd - position);
+                position = headersEnd;
+                return request;
+            }
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            }
+            if (limit == buffer.length) {
+                throw new IOException("Too large request, more than " + MAX_REQUEST_SIZE + " bytes");
+            }
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                return null;
+            }
+            limit += read;
+        }
+    }
+
+    private void skipEmptyLines() {
+        while (position < limit && (buffer[position] == '\r' || buffer[position] == '\n')) {
+            position++;
+        }
+    }
+
+    /**
+     * 查找请求头结束的位置（空行之后）
+     *
+     * @return 请求头结束的位置；请求还没有读完时返回-1
+     */
+    static int findHeadersEnd(byte[] data, int offset, int limit) {
+        for (int i = offset + 1; i < limit; i++) {
+            if (data[i] == '\n') {
+                if (data[i - 1] == '\n') {
+                    return i + 1;
+                }
+                if (i >= offset + 2 && data[i - 1] == '\r' && data[i - 2] == '\n') {
+                    return i + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 解析完整的请求头
+     *
+     * @throws IllegalArgumentException 不是GET或者HEAD请求
+     */
+    static GetRequest parse(byte[] data, int offset, int length) {
+        int end = offset + length;
+        while (offset < end && (data[offset] == '\r' || data[offset] == '\n')) {
+            offset++;
+            length--;
+        }
+        boolean head;
+        int uriStart;
+        if (startsWith(data, offset, end, GET, false)) {
+            head = false;
+            uriStart = offset + GET.length;
+        } else if (startsWith(data, offset, end, HEAD, false)) {
+            head = true;
+            uriStart = offset + HEAD.length;
+        } else {
+            throw new IllegalArgumentException("Invalid request `" + new String(data, offset, length, UTF_8) + "`: url not found!");
+        }
+        int uriEnd = indexOf(data, uriStart, end, (byte) ' ');
+        int lineEnd = indexOf(data, uriStart, end, (byte) '\n');
+        if (uriEnd < 0 || uriEnd > lineEnd) {
+            throw new IllegalArgumentException("Invalid request `" + new String(data, offset, length, UTF_8) + "`: url not found!");
+        }
+        String uri = new String(data, uriStart, uriEnd - uriStart, UTF_8);
+        boolean http11 = !startsWith(data, skipSpaces(data, uriEnd, lineEnd), lineEnd, HTTP_1_0, false);
+
+        List<ByteRange> ranges = Collections.emptyList();
+        boolean close = false;
+        boolean keepAlive = false;
+        int lineStart = lineEnd + 1;
+        while (lineStart < end) {
+            lineEnd = indexOf(data, lineStart, end, (byte) '\n');
+            if (lineEnd < 0) {
+                lineEnd = end;
+            }
+            if (startsWith(data, lineStart, lineEnd, RANGE, true)) {
+                ranges = parseRanges(data, skipSpaces(data, lineStart + RANGE.length, lineEnd), lineEnd);
+            } else if (startsWith(data, lineStart, lineEnd, CONNECTION, true)) {
+                int valueStart = skipSpaces(data, lineStart + CONNECTION.length, lineEnd);
+                close = startsWith(data, valueStart, lineEnd, CLOSE, true);
+                keepAlive = startsWith(data, valueStart, lineEnd, KEEP_ALIVE, true);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return new GetRequest(uri, head, ranges, http11 ? !close : keepAlive);
+    }
+
+    /**
+     * 解析Range头的值，格式错误时按照RFC 7233忽略整个Range头
+     */
+    private static List<ByteRange> parseRanges(byte[] data, int offset, int end) {
+        if (!startsWith(data, offset, end, BYTES_UNIT, true)) {
+            return Collections.emptyList();
+        }
+        List<ByteRange> ranges = new ArrayList<>(1);
+        int i = offset + BYTES_UNIT.length;
+        while (true) {
+            i = skipSpaces(data, i, end);
+            long start = -1;
+            while (i < end && isDigit(data[i])) {
+                int digit = data[i++] - '0';
+                if (start > (Long.MAX_VALUE - digit) / 10) {
+                    // 超出long范围的位置不可能满足，忽略整个Range头
+                    return Collections.emptyList();
+                }
+                start = (start < 0 ? 0 : start * 10) + digit;
+            }
+            i = skipSpaces(data, i, end);
+            if (i >= end || data[i] != '-') {
+                return Collections.emptyList();
+            }
+            i = skipSpaces(data, i + 1, end);
+            long last = -1;
+            while (i < end && isDigit(data[i])) {
+                int digit = data[i++] - '0';
+                if (last > (Long.MAX_VALUE - digit) / 10) {
+                    // 超出long范围的位置不可能满足，忽略整个Range头
+                    return Collections.emptyList();
+                }
+                last = (last < 0 ? 0 : last * 10) + digit;
+            }
+            if (start < 0) {
+                if (last < 0) {
+                    return Collections.emptyList();
+                }
+                ranges.add(ByteRange.suffix(last));
+            } else if (last < 0) {
+                ranges.add(ByteRange.fromStart(start));
+            } else if (last >= start) {
+                ranges.add(ByteRange.of(start, last));
+            } else {
+                return Collections.emptyList();
+            }
+            i = skipSpaces(data, i, end);
+            if (i < end && data[i] == ',') {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return skipSpaces(data, i, end) == end ? ranges : Collections.<ByteRange>emptyList();
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static int skipSpaces(byte[] data, int offset, int end) {
+        while (offset < end && (data[offset] == ' ' || data[offset] == '\t' || data[offset] == '\r')) {
+            offset++;
+        }
+        return offset;
+    }
+
+    private static int indexOf(byte[] data, int offset, int end, byte value) {
+        for (int i = offset; i < end; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param ignoreCase 为true时prefix必须是小写
+     */
+    private static boolean startsWith(byte[] data, int offset, int end, byte[] prefix, boolean ignoreCase) {
+        if (end - offset < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            byte b = data[offset + i];
+            if (ignoreCase && b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
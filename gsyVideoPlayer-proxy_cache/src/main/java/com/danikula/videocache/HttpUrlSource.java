@@ -3,34 +3,38 @@ package com.danikula.videocache;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.danikula.videocache.dns.CachingResolver;
+import com.danikula.videocache.dns.ConnectionRacer;
 import com.danikula.videocache.headers.EmptyHeadersInjector;
 import com.danikula.videocache.headers.HeaderInjector;
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+import com.danikula.videocache.utils.ChunkSizeController;
 import com.danikula.videocache.utils.ConstantsUtil;
 import com.danikula.videocache.utils.HttpsUtils;
 import com.danikula.videocache.utils.LogUtil;
-import com.danikula.videocache.utils.RangeUtil;
 
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLException;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
-import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
 import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
-import static java.net.HttpURLConnection.HTTP_OK;
-import static java.net.HttpURLConnection.HTTP_PARTIAL;
 import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
 
 /**
@@ -38,14 +42,25 @@ import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
-public class HttpUrlSource implements Source {
+public class HttpUrlSource implements UrlSource {
 
     private static final int MAX_REDIRECTS = 5;
+    private static final HostnameVerifier NULL_HOSTNAME_VERIFIER = new NullHostNameVerifier();
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
     private final SourceInfoStorage sourceInfoStorage;
     private final HeaderInjector headerInjector;
-    private SourceInfo sourceInfo;
+    private final ChunkSizeController chunkSizeController;
+    //当前请求的测量，用来调整下一次请求的长度
+    private ChunkSizeController.Sample sample;
+    //当前请求的结束位置（不包含），-1表示按照chunkSizeController计算请求长度
+    private long requestEnd = -1;
+    //只在open和Head请求中整体替换，getKnownLength等方法不加锁读取，不会等待length()中的Head请求
+    private volatile SourceInfo sourceInfo;
     private HttpURLConnection connection;
     private InputStream inputStream;
+    //响应体是否已经读完，读完的连接关闭输入流后可以回到连接池
+    private boolean endOfStream;
 
     private String TAG= HttpUrlSource.class.getSimpleName();
 
@@ -60,7 +75,9 @@ public class HttpUrlSource implements Source {
     public HttpUrlSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
         this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
         this.headerInjector = checkNotNull(headerInjector);
+        this.chunkSizeController = new ChunkSizeController();
         SourceInfo sourceInfo = sourceInfoStorage.get(url);
+        RedirectCache.getInstance().restore(sourceInfo);
         this.sourceInfo = sourceInfo != null ? sourceInfo :
                 new SourceInfo(url, Integer.MIN_VALUE, ProxyCacheUtils.getSupposablyMime(url));
     }
@@ -69,6 +86,7 @@ public class HttpUrlSource implements Source {
         this.sourceInfo = source.sourceInfo;
         this.sourceInfoStorage = source.sourceInfoStorage;
         this.headerInjector = source.headerInjector;
+        this.chunkSizeController = source.chunkSizeController;
     }
 
     @Override
@@ -80,26 +98,80 @@ public class HttpUrlSource implements Source {
         return sourceInfo.length;
     }
 
+    /**
+     * 不发起网络请求，只返回已知的长度
+     *
+     * @return 长度；还没有从{@link SourceInfoStorage}或者网络获取到时返回-1
+     */
+    @Override
+    public long getKnownLength() {
+        long length = sourceInfo.length;
+        return length > 0 ? length : -1;
+    }
+
+    /**
+     * 不发起网络请求，只返回已知的mime
+     */
+    @Override
+    public String getKnownMime() {
+        return sourceInfo.mime;
+    }
+
     @Override
     public void open(long offset) throws ProxyCacheException {
+        open(offset, -1);
+    }
+
+    @Override
+    public void open(long offset, long end) throws ProxyCacheException {
+        requestEnd = end;
+        endOfStream = false;
         try {
             int timeout = offset == ConstantsUtil.PING_SERVER_OFFSET ? ConstantsUtil.SYSTEM_OUT_TIME : ConstantsUtil.CUS_OUT_TIME;
+            sample = offset >= 0 ? chunkSizeController.newSample() : null;
+            String ifRange = ProxyCacheUtils.getIfRange(offset, sourceInfo.etag);
             connection = openConnection(offset, timeout);
+            // 错误响应会在这里抛出异常，错误页的mime和ETag不能保存为资源的信息
+            inputStream = connection.getInputStream();
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                abortConnection();
+                throw new ProxyCacheException("response code=" + code + " for " + sourceInfo.url);
+            }
             String mime = connection.getContentType();
-            inputStream = new BufferedInputStream(connection.getInputStream(), DEFAULT_BUFFER_SIZE);
-            //long length = readSourceAvailableBytes(connection, offset, connection.getResponseCode());
-            this.sourceInfo = new SourceInfo(sourceInfo.url, sourceInfo.length, mime);
-            this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
+            String etag = connection.getHeaderField("ETag");
+            // 文件长度和mime从数据请求的响应头中获取，不需要额外的Head请求
+            long length = offset >= 0 ? readSourceLength(connection) : -1;
+            boolean changed = offset >= 0 && ProxyCacheUtils.isSourceChanged(sourceInfo, ifRange, code, length, etag);
+            SourceInfo sourceInfo = this.sourceInfo;
+            this.sourceInfo = new SourceInfo(sourceInfo.url, length > 0 ? length : sourceInfo.length, mime,
+                    etag != null ? etag : sourceInfo.etag);
+            this.sourceInfoStorage.put(sourceInfo.url, RedirectCache.getInstance().attach(this.sourceInfo));
+            if (changed) {
+                abortConnection();
+                throw new SourceChangedException("Source " + sourceInfo.url + " is changed: " + this.sourceInfo);
+            }
+            if (offset > 0 && code == HttpURLConnection.HTTP_OK) {
+                ProxyCacheUtils.skipFully(inputStream, offset);
+            }
+            if (sample != null) {
+                sample.onResponse(getContentInfo(connection));
+            }
         } catch (IOException e) {
             e.printStackTrace();
             throw new ProxyCacheException("Error opening connection for " + sourceInfo.url + " with offset " + offset + "\n raw reason:" + e.toString(), e);
         }
     }
 
-    private long readSourceAvailableBytes(HttpURLConnection connection, long offset, int responseCode) throws IOException {
-        long contentLength = getContentInfo(connection);
-        return responseCode == HTTP_OK ? contentLength
-                : responseCode == HTTP_PARTIAL ? contentLength + offset : sourceInfo.length;
+    private void abortConnection() {
+        connection.disconnect();
+        connection = null;
+        inputStream = null;
+    }
+
+    private long readSourceLength(HttpURLConnection connection) throws IOException {
+        return ProxyCacheUtils.getSourceLength(connection.getResponseCode(),
+                connection.getHeaderField("Content-Range"), connection.getHeaderField("Content-Length"));
     }
 
     private long getContentInfo(HttpURLConnection connection) {
@@ -109,9 +181,15 @@ public class HttpUrlSource implements Source {
 
     @Override
     public void close() throws ProxyCacheException {
+        if (sample != null) {
+            sample.finish();
+            sample = null;
+        }
         if (connection != null) {
             try {
-                connection.disconnect();
+                if (!releaseConnection()) {
+                    connection.disconnect();
+                }
             } catch (NullPointerException | IllegalArgumentException e) {
                 String message = "Wait... but why? WTF!? " +
                         "Really shouldn't happen any more after fixing https://github.com/danikula/AndroidVideoCache/issues/43. " +
@@ -126,13 +204,35 @@ public class HttpUrlSource implements Source {
         }
     }
 
+    /**
+     * 响应体已经读完时只关闭输入流，连接回到keep-alive连接池；disconnect()会直接关闭连接，下一个分段只能重新建立连接
+     *
+     * @return 连接是否已经回到连接池
+     */
+    private boolean releaseConnection() {
+        if (!endOfStream || inputStream == null) {
+            return false;
+        }
+        try {
+            inputStream.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     @Override
     public int read(byte[] buffer) throws ProxyCacheException {
         if (inputStream == null) {
             throw new ProxyCacheException("Error reading data from " + sourceInfo.url + ": connection is absent!");
         }
         try {
-            return inputStream.read(buffer, 0, buffer.length);
+            int read = inputStream.read(buffer, 0, buffer.length);
+            if (sample != null) {
+                sample.onRead(read);
+            }
+            endOfStream = read < 0;
+            return read;
         } catch (InterruptedIOException e) {
             throw new InterruptedProxyCacheException("Reading source " + sourceInfo.url + " is interrupted" + "--rawReason : " + e.toString(), e);
         } catch (IOException e) {
@@ -150,7 +250,7 @@ public class HttpUrlSource implements Source {
 //            String mime = urlConnection.getContentType();
 //            inputStream = urlConnection.getInputStream();
 //            this.sourceInfo = new SourceInfo(sourceInfo.url, length, mime);
-//            this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
+//            this.sourceInfoStorage.put(sourceInfo.url, RedirectCache.getInstance().attach(sourceInfo));
 //        } catch (IOException e) {
 //            HttpProxyCacheDebuger.printfError("Error fetching info from " + sourceInfo.url, e);
 //        } finally {
@@ -166,14 +266,19 @@ public class HttpUrlSource implements Source {
      *
      * @return
      */
+    @Override
     public void newFetchContentInfo() throws ProxyCacheException {
         HttpURLConnection connection = null;
         try {
             connection = openConnection(ConstantsUtil.HEAD_OFFSET, ConstantsUtil.SYSTEM_OUT_TIME);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                HttpProxyCacheDebuger.printfError("Error fetching info from " + sourceInfo.url + ", response code=" + connection.getResponseCode());
+                return;
+            }
             int contentLength = connection.getContentLength();
             String mime = connection.getContentType();
-            this.sourceInfo = new SourceInfo(sourceInfo.url, contentLength, mime);
-            this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
+            this.sourceInfo = new SourceInfo(sourceInfo.url, contentLength, mime, sourceInfo.etag);
+            this.sourceInfoStorage.put(sourceInfo.url, RedirectCache.getInstance().attach(sourceInfo));
 
             LogUtil.i(TAG, "contentLength::" + contentLength);
 
@@ -186,119 +291,190 @@ public class HttpUrlSource implements Source {
         }
     }
 
+    /**
+     * 优先请求缓存的重定向地址，返回4xx/5xx时删除缓存并从原始url重新请求
+     */
     private HttpURLConnection openConnection(long offset, int timeout) throws IOException, ProxyCacheException {
+        String redirectUrl = RedirectCache.getInstance().get(sourceInfo.url);
+        if (redirectUrl != null) {
+            HttpURLConnection connection = openConnection(redirectUrl, offset, timeout);
+            if (connection.getResponseCode() < HTTP_BAD_REQUEST) {
+                return connection;
+            }
+            LogUtil.i(TAG, "redirect url " + redirectUrl + " responds " + connection.getResponseCode());
+            connection.disconnect();
+            RedirectCache.getInstance().remove(sourceInfo.url);
+        }
+        return openConnection(sourceInfo.url, offset, timeout);
+    }
+
+    private HttpURLConnection openConnection(String url, long offset, int timeout) throws IOException, ProxyCacheException {
         HttpURLConnection connection;
         boolean redirected;
         int redirectCount = 0;
-        String originUrl = this.sourceInfo.url;
+        long redirectExpires = Long.MAX_VALUE;
+        String originUrl = url;
         LogUtil.i(TAG, "originUrl::" + originUrl);
         do {
-            URL url = new URL(originUrl);
-            //HttpDns
-            if (HttpDnsUtil.getInstance().getHttpDns() == null) {
-                LogUtil.i(TAG, "HttpDns 为null");
+            URL requestUrl = new URL(originUrl);
+            connection = openConnection(requestUrl, originUrl, offset, timeout);
+            int code = connection.getResponseCode();
+            redirected = code == HTTP_MOVED_PERM || code == HTTP_MOVED_TEMP || code == HTTP_SEE_OTHER
+                    || code == HTTP_TEMPORARY_REDIRECT || code == HTTP_PERMANENT_REDIRECT;
+            if (redirected) {
+                String location = connection.getHeaderField("Location");
+                redirectExpires = Math.min(redirectExpires, RedirectCache.getExpires(code, connection.getHeaderField("Cache-Control")));
+                connection.disconnect();
+                if (location == null) {
+                    throw new ProxyCacheException("Invalid redirect location for " + originUrl);
+                }
+                originUrl = new URL(requestUrl, location).toString();
+                redirectCount++;
+            }
+            if (redirectCount > MAX_REDIRECTS) {
+                throw new ProxyCacheException("Too many redirects: " + redirectCount);
             }
+        } while (redirected);
+        if (redirectCount > 0) {
+            RedirectCache.getInstance().put(sourceInfo.url, originUrl, redirectExpires);
+        }
+        return connection;
+    }
 
-            //如果dns为空或者originUrl是代理服务url,则不获取ip
-            if (HttpDnsUtil.getInstance().getHttpDns() != null && !HttpProxyCacheServer.PROXY_HOST.equals(url.getHost())) {
-                LogUtil.i(TAG, "异步接口获取IP");
-                // 异步接口获取IP
-                String ip = HttpDnsUtil.getInstance().getHttpDns().getIpByHostAsync(url.getHost());
-
-                if (ip != null) {
-                    // 通过HTTPDNS获取IP成功，进行URL替换和HOST头设置
-                    LogUtil.i(TAG, "Get IP: " + ip + " for host: " + url.getHost() + " from HTTPDNS successfully!");
-                    String newUrl = originUrl.replaceFirst(url.getHost(), ip);
-                    LogUtil.i(TAG, "newUrl::" + newUrl);
-                    connection = (HttpURLConnection) new URL(newUrl).openConnection();
-                    //设置HTTP请求头Host域
-                    connection.setRequestProperty("Host", url.getHost());
-
-                    hostnameVerifier(connection);
-                } else {
-                    LogUtil.i(TAG, "无法获取IP");
-                    connection = (HttpURLConnection) url.openConnection();
-                    cusHostNameVerifier(connection);
+    /**
+     * 按{@link ConnectionRacer}排好的顺序连接域名的IP，连接失败时换下一个IP，返回已经收到响应头的连接
+     */
+    private HttpURLConnection openConnection(URL requestUrl, String originUrl, long offset, int timeout) throws IOException {
+        List<InetAddress> addresses = resolve(requestUrl, timeout);
+        if (addresses.isEmpty()) {
+            HttpURLConnection connection = newConnection(requestUrl, null, originUrl, offset, timeout, timeout);
+            connection.getResponseCode();
+            return connection;
+        }
+        for (int i = 0; ; i++) {
+            InetAddress address = addresses.get(i);
+            boolean last = i == addresses.size() - 1;
+            int connectTimeout = last ? timeout : ConnectionRacer.getInstance().getConnectTimeout(address, timeout);
+            HttpURLConnection connection = newConnection(requestUrl, address, originUrl, offset, connectTimeout, timeout);
+            try {
+                connection.connect();
+            } catch (IOException e) {
+                ConnectionRacer.getInstance().onFailed(requestUrl.getHost(), address);
+                connection.disconnect();
+                // 证书错误换IP也没有用
+                if (last || e instanceof SSLException) {
+                    throw e;
                 }
-            } else {
-                connection = (HttpURLConnection) url.openConnection();
-                cusHostNameVerifier(connection);
+                LogUtil.i(TAG, "Error connecting to " + address + ", try next address: " + e);
+                continue;
             }
+            try {
+                connection.getResponseCode();
+                return connection;
+            } catch (IOException e) {
+                // 这个IP太慢或者不可用，下一次请求重新选择
+                ConnectionRacer.getInstance().onFailed(requestUrl.getHost(), address);
+                connection.disconnect();
+                throw e;
+            }
+        }
+    }
 
-            injectCustomHeaders(connection, originUrl);
-
-            //关于Range
-            //不指定Range，code为200，不是206，起码一次性会返回20M的内容
-            //只指定start,不指定end,则一次性下载完所有的数据；
-            //connection.setRequestProperty("Range", "bytes=" + start + "-");
-            //指定start,end 一次性只下载（end-start）的数据量
-            //connection.setRequestProperty("Range", "bytes=" + start + "-"+end);
+    /**
+     * @param address 直连的IP，为null时使用系统dns
+     */
+    private HttpURLConnection newConnection(URL requestUrl, InetAddress address, String originUrl, long offset,
+                                            int connectTimeout, int readTimeout) throws IOException {
+        HttpURLConnection connection;
+        if (address != null) {
+            // 使用解析好的IP直连，进行URL替换和HOST头设置
+            String ip = address instanceof Inet6Address ? "[" + address.getHostAddress() + "]" : address.getHostAddress();
+            URL ipUrl = new URL(requestUrl.getProtocol(), ip, requestUrl.getPort(), requestUrl.getFile());
+            LogUtil.i(TAG, "ipUrl::" + ipUrl);
+            connection = (HttpURLConnection) ipUrl.openConnection();
+            //设置HTTP请求头Host域
+            connection.setRequestProperty("Host", requestUrl.getPort() < 0 ? requestUrl.getHost() : requestUrl.getHost() + ":" + requestUrl.getPort());
+
+            hostnameVerifier(connection, requestUrl.getHost());
+        } else {
+            connection = (HttpURLConnection) requestUrl.openConnection();
+            cusHostNameVerifier(connection);
+        }
 
-            if (offset != ConstantsUtil.PING_SERVER_OFFSET && offset != ConstantsUtil.HEAD_OFFSET) {
-                connection.setRequestProperty("Range", "bytes=" + offset + "-" + RangeUtil.getRangeEnd(offset,sourceInfo.length));
+        injectCustomHeaders(connection, originUrl);
+
+        //关于Range
+        //不指定Range，code为200，不是206，起码一次性会返回20M的内容
+        //只指定start,不指定end,则一次性下载完所有的数据；
+        //connection.setRequestProperty("Range", "bytes=" + start + "-");
+        //指定start,end 一次性只下载（end-start）的数据量
+        //connection.setRequestProperty("Range", "bytes=" + start + "-"+end);
+
+        if (offset != ConstantsUtil.PING_SERVER_OFFSET && offset != ConstantsUtil.HEAD_OFFSET) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-" + getRangeEnd(offset));
+            // 文件改变时服务器返回200和完整的新文件，而不是拼接到旧数据后面
+            String ifRange = ProxyCacheUtils.getIfRange(offset, sourceInfo.etag);
+            if (ifRange != null) {
+                connection.setRequestProperty("If-Range", ifRange);
             }
+        }
 
-            if (offset == ConstantsUtil.HEAD_OFFSET) {
-                connection.setRequestMethod("HEAD");
-            } else {
-                connection.setRequestMethod("GET");
-            }
+        if (offset == ConstantsUtil.HEAD_OFFSET) {
+            connection.setRequestMethod("HEAD");
+        } else {
+            connection.setRequestMethod("GET");
+        }
 
-            //链接超时时间，系统默认的超时时间为8s;
-            connection.setConnectTimeout(timeout);
-            connection.setReadTimeout(timeout);
+        //自己处理重定向，才能缓存重定向后的地址
+        connection.setInstanceFollowRedirects(false);
 
-            int code = connection.getResponseCode();
-            redirected = code == HTTP_MOVED_PERM || code == HTTP_MOVED_TEMP || code == HTTP_SEE_OTHER;
-            if (redirected) {
-                originUrl = connection.getHeaderField("Location");
-                redirectCount++;
-                connection.disconnect();
-            }
-            if (redirectCount > MAX_REDIRECTS) {
-                throw new ProxyCacheException("Too many redirects: " + redirectCount);
-            }
-        } while (redirected);
+        //链接超时时间，系统默认的超时时间为8s;
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
         return connection;
     }
 
     /**
-     * 处理证书不匹配问题，同时处理 HTTPS IP直连（SNI）,定制SSLSocketFactory，在createSocket时替换为HTTPDNS的IP，并进行SNI/HostNameVerify配置。
+     * 通过{@link ConnectionRacer}选择域名的IP，解析到多个IP时最先连接成功的IP排在最前面
+     * <p>
+     * 只有设置了系统dns以外的解析器时才用IP直连；默认的系统dns仍然按域名请求，https证书的处理方式和之前一样
+     *
+     * @return 按顺序尝试的IP；没有设置解析器、代理服务的地址、IP字面量或者无法解析时返回空列表，使用系统dns
+     * @throws IOException 所有IP都无法连接
+     */
+    private List<InetAddress> resolve(URL url, int timeout) throws IOException {
+        String host = url.getHost();
+        if (!CachingResolver.getInstance().isCustomResolver()
+                || HttpProxyCacheServer.PROXY_HOST.equals(host) || CachingResolver.isIpAddress(host)) {
+            return Collections.emptyList();
+        }
+        int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        try {
+            return ConnectionRacer.getInstance().select(host, port, timeout);
+        } catch (UnknownHostException e) {
+            LogUtil.i(TAG, "无法获取IP " + e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * 处理证书不匹配问题，同时处理 HTTPS IP直连（SNI）,定制SSLSocketFactory，在createSocket时替换为解析到的IP，并进行SNI/HostNameVerify配置。
      *
      * @param connection
+     * @param host       真实的域名
      */
-    private void hostnameVerifier(HttpURLConnection connection) {
+    private void hostnameVerifier(HttpURLConnection connection, String host) {
         //如果是https
         if (!(connection instanceof HttpsURLConnection)){
             return;
         }
 
         Log.i(TAG,"处理证书不匹配问题");
-        final HttpsURLConnection finalConn = (HttpsURLConnection) connection;
-        HttpDnsTLSSniSocketFactory sslSocketFactory = new HttpDnsTLSSniSocketFactory(finalConn);
+        HttpsURLConnection finalConn = (HttpsURLConnection) connection;
+        // 同一个域名使用同一个SSLSocketFactory和HostnameVerifier，连接和TLS会话都可以复用
+        HttpDnsTLSSniSocketFactory sslSocketFactory = HttpDnsTLSSniSocketFactory.getInstance(host);
         finalConn.setSSLSocketFactory(sslSocketFactory);
-
-        finalConn.setHostnameVerifier(new HostnameVerifier() {
-            /*
-             * 关于这个接口的说明，官方有文档描述：
-             * This is an extended verification option that implementers can provide.
-             * It is to be used during a handshake if the URL's hostname does not match the
-             * peer's identification hostname.
-             *
-             * 使用HTTPDNS后URL里设置的hostname不是远程的主机名(如:m.taobao.com)，与证书颁发的域不匹配，
-             * Android HttpsURLConnection提供了回调接口让用户来处理这种定制化场景。
-             * 在确认HTTPDNS返回的源站IP与Session携带的IP信息一致后，您可以在回调方法中将待验证域名替换为原来的真实域名进行验证。
-             *
-             */
-            @Override
-            public boolean verify(String hostname, SSLSession session) {
-                String host = finalConn.getRequestProperty("Host");
-                if (null == host) {
-                    host = finalConn.getURL().getHost();
-                }
-                return HttpsURLConnection.getDefaultHostnameVerifier().verify(host, session);
-            }
-        });
+        finalConn.setHostnameVerifier(sslSocketFactory.getHostnameVerifier());
     }
 
 
@@ -313,9 +489,9 @@ public class HttpUrlSource implements Source {
         }
 
         final HttpsURLConnection finalConn = (HttpsURLConnection) connection;
-        HttpsUtils.SSLParams sslParams = HttpsUtils.getSslSocketFactory(null, null, null);
+        HttpsUtils.SSLParams sslParams = HttpsUtils.getDefaultSslParams();
         finalConn.setSSLSocketFactory(sslParams.sSLSocketFactory);
-        finalConn.setHostnameVerifier(new NullHostNameVerifier());
+        finalConn.setHostnameVerifier(NULL_HOSTNAME_VERIFIER);
 
     }
 
@@ -330,6 +506,7 @@ public class HttpUrlSource implements Source {
         }
     }
 
+    @Override
     public synchronized String getMime() throws ProxyCacheException {
         if (TextUtils.isEmpty(sourceInfo.mime)) {
             newFetchContentInfo();
@@ -337,10 +514,28 @@ public class HttpUrlSource implements Source {
         return sourceInfo.mime;
     }
 
+    @Override
     public String getUrl() {
         return sourceInfo.url;
     }
 
+    /**
+     * @return Range请求的结束位置（包含）；open时指定了结束位置时使用指定的位置，否则按照测量的网速计算
+     */
+    private long getRangeEnd(long offset) {
+        return requestEnd > offset ? requestEnd - 1 : chunkSizeController.getRangeEnd(offset, sourceInfo.length);
+    }
+
+    @Override
+    public ChunkSizeController getChunkSizeController() {
+        return chunkSizeController;
+    }
+
+    @Override
+    public UrlSource copy() {
+        return new HttpUrlSource(this);
+    }
+
     @Override
     public String toString() {
         return "HttpUrlSource{sourceInfo='" + sourceInfo + "}";
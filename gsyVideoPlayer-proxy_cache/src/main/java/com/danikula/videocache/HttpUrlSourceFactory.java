@@ -0,0 +1,15 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.headers.HeaderInjector;
+import com.danikula.videocache.sourcestorage.SourceInfoStorage;
+
+/**
+ * {@link SourceFactory} for {@link HttpUrlSource} based on {@link java.net.HttpURLConnection}, default one.
+ */
+public class HttpUrlSourceFactory implements SourceFactory {
+
+    @Override
+    public UrlSource newSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+        return new HttpUrlSource(url, sourceInfoStorage, headerInjector);
+    }
+}
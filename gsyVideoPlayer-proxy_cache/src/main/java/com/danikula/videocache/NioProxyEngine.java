@@ -0,0 +1,545 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.utils.ConstantsUtil;
+import com.danikula.videocache.utils.LogUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * Non-blocking engine for {@link HttpProxyCacheServer} based on {@link Selector} and {@link SocketChannel}s.
+ * <p>
+ * Few io threads multiplex all player connections: cached data is written by {@link NioResponse} without waiting for
+ * source, so long-lived streaming connections don't pin threads. Preparing response (source info, cache file) and
+ * requests which can't use cache (seek far from cached data) are processed on worker threads.
+ */
+final class NioProxyEngine {
+
+    private static final String TAG = "NioProxyEngine";
+    private static final int SELECT_TIMEOUT = 1000;
+
+    private final HttpProxyCacheServer server;
+    private final Pinger pinger;
+    private final ServerSocketChannel serverChannel;
+    private final IoLoop[] loops;
+    private final int keepAliveTimeout;
+    // 线程数和阻塞模式相同，连接突增时任务排队，不会每个连接创建一个线程
+    private final ExecutorService workers = Executors.newFixedThreadPool(HttpProxyCacheServer.SOCKET_PROCESSOR_THREADS);
+    private int nextLoop;
+
+    /**
+     * @param keepAliveTimeout 长连接空闲超时时间，0表示每个请求结束后关闭连接
+     */
+    NioProxyEngine(HttpProxyCacheServer server, ServerSocketChannel serverChannel, Pinger pinger, int ioThreads,
+                   int keepAliveTimeout) throws IOException {
+        checkArgument(ioThreads > 0, "Io threads count must be positive!");
+        this.server = checkNotNull(server);
+        this.serverChannel = checkNotNull(serverChannel);
+        this.pinger = checkNotNull(pinger);
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop(i);
+        }
+        serverChannel.configureBlocking(false);
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    void start() {
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    void shutdown() {
+        for (IoLoop loop : loops) {
+            loop.shutdown();
+        }
+        workers.shutdown();
+        ProxyCacheUtils.close(serverChannel);
+    }
+
+    /**
+     * 监听channel未关闭并且所有io线程都在运行
+     */
+    boolean isRunning() {
+        if (!serverChannel.isOpen()) {
+            return false;
+        }
+        for (IoLoop loop : loops) {
+            if (!loop.running || !loop.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void acceptConnections() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            IoLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.addChannel(channel);
+        }
+    }
+
+    private final class IoLoop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> readyConnections = new ConcurrentLinkedQueue<>();
+        // 工作线程处理完阻塞请求后交还的长连接
+        private final Queue<Connection> returnedConnections = new ConcurrentLinkedQueue<>();
+        // 以下只在io线程中访问
+        private final List<Connection> detachedConnections = new ArrayList<>();
+        private final Set<Connection> waitingConnections = new HashSet<>();
+        private long lastTimerTime;
+        private volatile boolean running = true;
+
+        IoLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "Nio proxy io #" + index);
+        }
+
+        void addChannel(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void resume(Connection connection) {
+            readyConnections.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * 阻塞请求处理完后把长连接交还给io线程，缓冲区中已经读到的后续请求继续处理
+         */
+        void reattach(Connection connection) {
+            returnedConnections.add(connection);
+            if (running) {
+                selector.wakeup();
+            } else {
+                closeReturnedConnections();
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    // 脱离selector的连接要等selectNow之后才真正注销，才能切换为阻塞模式
+                    if (detachedConnections.isEmpty()) {
+                        selector.select(SELECT_TIMEOUT);
+                    } else {
+                        selector.selectNow();
+                    }
+                    handOffDetachedConnections();
+                    registerNewChannels();
+                    registerReturnedConnections();
+                    resumeReadyConnections();
+                    processSelectedKeys();
+                    onTimer();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                HttpProxyCacheDebuger.printfError(TAG, "Error in io loop " + e.getMessage());
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    HttpProxyCacheDebuger.printfWarning(TAG, "Error registering connection " + e.getMessage());
+                    ProxyCacheUtils.close(channel);
+                }
+            }
+        }
+
+        private void registerReturnedConnections() {
+            Connection connection;
+            while ((connection = returnedConnections.poll()) != null) {
+                try {
+                    connection.channel.configureBlocking(false);
+                    connection.key = connection.channel.register(selector, 0, connection);
+                    connection.onReturned();
+                } catch (IOException | CancelledKeyException e) {
+                    LogUtil.i(TAG, "Connection closed: " + e.getMessage());
+                    connection.close(null);
+                }
+            }
+        }
+
+        private void closeReturnedConnections() {
+            Connection connection;
+            while ((connection = returnedConnections.poll()) != null) {
+                connection.closed = true;
+                ProxyCacheUtils.close(connection.channel);
+            }
+        }
+
+        private void resumeReadyConnections() {
+            Connection connection;
+            while ((connection = readyConnections.poll()) != null) {
+                waitingConnections.remove(connection);
+                connection.onResumed();
+            }
+        }
+
+        private void processSelectedKeys() throws IOException {
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    acceptConnections();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.onReadable();
+                    } else if (key.isWritable()) {
+                        connection.serve();
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    // 播放器主动断开连接，属于正常现象
+                    LogUtil.i(TAG, "Connection closed: " + e.getMessage());
+                    connection.close(null);
+                }
+            }
+        }
+
+        private void onTimer() {
+            long now = System.currentTimeMillis();
+            if (now - lastTimerTime < SELECT_TIMEOUT) {
+                return;
+            }
+            lastTimerTime = now;
+            // 下载线程结束一段后需要再次触发下载，定时重试避免漏掉通知
+            List<Connection> connections = new ArrayList<>(waitingConnections);
+            waitingConnections.clear();
+            for (Connection connection : connections) {
+                connection.serve();
+            }
+            closeIdleConnections(now);
+        }
+
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Connection) {
+                    Connection connection = (Connection) attachment;
+                    if (connection.isIdle(now)) {
+                        LogUtil.i(TAG, "Keep-alive connection is idle, close it");
+                        connection.close(null);
+                    }
+                }
+            }
+        }
+
+        private void handOffDetachedConnections() {
+            for (Connection connection : detachedConnections) {
+                try {
+                    connection.channel.configureBlocking(true);
+                    workers.submit(new BlockingRequestRunnable(connection));
+                } catch (IOException e) {
+                    HttpProxyCacheDebuger.printfWarning(TAG, "Error detaching connection " + e.getMessage());
+                    ProxyCacheUtils.close(connection.channel);
+                }
+            }
+            detachedConnections.clear();
+        }
+
+        private void closeAll() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    Object attachment = key.attachment();
+                    if (attachment instanceof Connection) {
+                        ((Connection) attachment).close(null);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // already closed
+            }
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                ProxyCacheUtils.close(channel);
+            }
+            closeReturnedConnections();
+            ProxyCacheUtils.close(selector);
+        }
+    }
+
+    private final class Connection {
+
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final ByteBuffer requestBuffer = ByteBuffer.allocate(HttpRequestParser.MAX_REQUEST_SIZE);
+        private final AtomicBoolean waitingData = new AtomicBoolean();
+        private final Runnable dataCallback = new Runnable() {
+            @Override
+            public void run() {
+                waitingData.set(false);
+                loop.resume(Connection.this);
+            }
+        };
+        private SelectionKey key;
+        private ByteBuffer pingResponse;
+        private boolean closed;
+        // 是否在等待下一个请求
+        private boolean awaitingRequest = true;
+        // 是否已经处理过请求，之后等待请求时才是长连接空闲
+        private boolean served;
+        private long lastActiveTime = System.currentTimeMillis();
+
+        // 以下字段由工作线程设置，经过readyConnections队列传递给io线程
+        private HttpProxyCacheServerClients clients;
+        private NioResponse response;
+        private GetRequest blockingRequest;
+        private boolean failed;
+
+        Connection(IoLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        void onReadable() throws IOException {
+            int read = channel.read(requestBuffer);
+            if (read < 0) {
+                close(null);
+                return;
+            }
+            lastActiveTime = System.currentTimeMillis();
+            processBufferedRequest();
+        }
+
+        /**
+         * 处理缓冲区中的下一个请求，播放器可能在一次发送中包含多个请求
+         */
+        private void processBufferedRequest() throws IOException {
+            int headersEnd = HttpRequestParser.findHeadersEnd(requestBuffer.array(), 0, requestBuffer.position());
+            if (headersEnd < 0) {
+                if (!requestBuffer.hasRemaining()) {
+                    HttpProxyCacheDebuger.printfWarning(TAG, "Too large request, close connection");
+                    close(null);
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+            GetRequest request;
+            try {
+                request = HttpRequestParser.parse(requestBuffer.array(), 0, headersEnd);
+            } catch (IllegalArgumentException e) {
+                HttpProxyCacheDebuger.printfWarning(TAG, "Invalid request " + e.getMessage());
+                close(null);
+                return;
+            }
+            requestBuffer.flip();
+            requestBuffer.position(headersEnd);
+            requestBuffer.compact();
+            awaitingRequest = false;
+            key.interestOps(0);
+            String url = ProxyCacheUtils.decode(request.uri);
+            if (pinger.isPingRequest(url)) {
+                pingResponse = ByteBuffer.wrap(pinger.newPingResponse());
+                serve();
+            } else {
+                workers.submit(new PrepareResponseRunnable(this, request, url));
+            }
+        }
+
+        /**
+         * 新连接等待第一个请求和请求只收到一部分时使用{@link ConstantsUtil#REQUEST_READ_TIMEOUT}，两个请求之间才使用长连接空闲超时时间
+         */
+        boolean isIdle(long now) {
+            if (!awaitingRequest) {
+                return false;
+            }
+            int timeout = served && requestBuffer.position() == 0 ? keepAliveTimeout : ConstantsUtil.REQUEST_READ_TIMEOUT;
+            return now - lastActiveTime > timeout;
+        }
+
+        void onResumed() {
+            if (closed) {
+                return;
+            }
+            if (failed) {
+                close(null);
+            } else if (blockingRequest != null) {
+                key.cancel();
+                loop.detachedConnections.add(this);
+            } else {
+                serve();
+            }
+        }
+
+        /**
+         * 阻塞请求处理完后重新注册到selector，等待下一个请求
+         */
+        void onReturned() throws IOException {
+            blockingRequest = null;
+            awaitingRequest = true;
+            served = true;
+            lastActiveTime = System.currentTimeMillis();
+            processBufferedRequest();
+        }
+
+        void serve() {
+            if (closed) {
+                return;
+            }
+            try {
+                if (pingResponse != null) {
+                    channel.write(pingResponse);
+                    if (pingResponse.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    } else {
+                        close(null);
+                    }
+                    return;
+                }
+                int state = response.write(channel);
+                if (state == NioResponse.WAITING_WRITE) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                } else if (state == NioResponse.WAITING_DATA) {
+                    key.interestOps(0);
+                    loop.waitingConnections.add(this);
+                    if (waitingData.compareAndSet(false, true)) {
+                        response.waitForData(dataCallback);
+                    }
+                } else {
+                    finishResponse();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                LogUtil.i(TAG, "Connection closed: " + e.getMessage());
+                close(null);
+            } catch (ProxyCacheException e) {
+                close(e);
+            }
+        }
+
+        private void finishResponse() throws IOException {
+            NioResponse finished = response;
+            boolean keepAlive = keepAliveTimeout > 0 && finished.isKeepAlive();
+            response = null;
+            clients.closeNioResponse(finished, null);
+            if (!keepAlive) {
+                close(null);
+                return;
+            }
+            awaitingRequest = true;
+            served = true;
+            lastActiveTime = System.currentTimeMillis();
+            processBufferedRequest();
+        }
+
+        void close(Exception error) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            loop.waitingConnections.remove(this);
+            if (response != null) {
+                NioResponse closing = response;
+                response = null;
+                clients.closeNioResponse(closing, error);
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            ProxyCacheUtils.close(channel);
+        }
+    }
+
+    private final class PrepareResponseRunnable implements Runnable {
+
+        private final Connection connection;
+        private final GetRequest request;
+        private final String url;
+
+        PrepareResponseRunnable(Connection connection, GetRequest request, String url) {
+            this.connection = connection;
+            this.request = request;
+            this.url = url;
+        }
+
+        @Override
+        public void run() {
+            try {
+                HttpProxyCacheServerClients clients = server.getClients(url);
+                connection.clients = clients;
+                connection.response = clients.openNioResponse(request);
+                if (connection.response == null) {
+                    connection.blockingRequest = request;
+                }
+            } catch (ProxyCacheException | IOException e) {
+                HttpProxyCacheDebuger.printfError(TAG, "Error preparing response " + e.getMessage());
+                connection.failed = true;
+            }
+            connection.loop.resume(connection);
+        }
+    }
+
+    private final class BlockingRequestRunnable implements Runnable {
+
+        private final Connection connection;
+
+        BlockingRequestRunnable(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            boolean keepAlive = false;
+            try {
+                keepAlive = connection.clients.processRequest(connection.blockingRequest, connection.channel.socket())
+                        && keepAliveTimeout > 0;
+            } catch (ProxyCacheException | IOException e) {
+                HttpProxyCacheDebuger.printfError(TAG, "Error processing request " + e.getMessage());
+            } finally {
+                if (keepAlive) {
+                    // 播放器已经发送的后续请求还在连接的缓冲区中，交还给io线程继续处理
+                    connection.loop.reattach(connection);
+                } else {
+                    connection.closed = true;
+                    ProxyCacheUtils.close(connection.channel);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.danikula.videocache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking response of {@link HttpProxyCache} used by {@link NioProxyEngine}.
+ * <p>
+ * Writes only data which is already cached and never waits for source, so single io thread can serve many players.
+ */
+final class NioResponse {
+
+    /**
+     * 响应已经全部写完
+     */
+    static final int FINISHED = 0;
+
+    /**
+     * socket写缓冲区已满，等待可写
+     */
+    static final int WAITING_WRITE = 1;
+
+    /**
+     * 缓存中暂无数据，等待下载
+     */
+    static final int WAITING_DATA = 2;
+
+    private final HttpProxyCache proxyCache;
+    // 只有需要从正在下载的数据中拷贝时才从BufferPool获取，结束时通过release()归还
+    private byte[] buffer;
+    private ByteBuffer pending;
+    private final long end;
+    private final boolean keepAlive;
+    private long offset;
+    private boolean bodyFinished;
+
+    /**
+     * @param end       响应体的结束位置（不包含），-1表示一直写到文件结束
+     * @param keepAlive 写到结束位置后连接是否可以复用
+     */
+    NioResponse(HttpProxyCache proxyCache, byte[] headers, long offset, long end, boolean keepAlive) {
+        this.proxyCache = proxyCache;
+        this.pending = ByteBuffer.wrap(headers);
+        this.offset = offset;
+        this.end = end;
+        this.bodyFinished = end >= 0 && offset >= end;
+        this.keepAlive = keepAlive;
+    }
+
+    HttpProxyCache getProxyCache() {
+        return proxyCache;
+    }
+
+    /**
+     * 响应结束后连接是否可以继续处理下一个请求，只有按Content-Length完整写出时才可以
+     */
+    boolean isKeepAlive() {
+        return keepAlive && offset == end && !pending.hasRemaining();
+    }
+
+    /**
+     * 尽可能多地写入数据，不会阻塞
+     *
+     * @return {@link #FINISHED}, {@link #WAITING_WRITE} or {@link #WAITING_DATA}
+     */
+    int write(SocketChannel channel) throws IOException, ProxyCacheException {
+        while (true) {
+            if (pending.hasRemaining()) {
+                channel.write(pending);
+                if (pending.hasRemaining()) {
+                    return WAITING_WRITE;
+                }
+            }
+            if (bodyFinished) {
+                return FINISHED;
+            }
+            long remaining = end < 0 ? Long.MAX_VALUE : end - offset;
+            long transferred = proxyCache.transferCached(offset, remaining, channel);
+            if (transferred == 0) {
+                return WAITING_WRITE;
+            }
+            if (transferred > 0) {
+                offset += transferred;
+                checkBodyFinished();
+                continue;
+            }
+            if (buffer == null) {
+                buffer = BufferPool.getInstance().acquire();
+            }
+            int readBytes = proxyCache.readAvailable(buffer, offset, (int) Math.min(buffer.length, remaining));
+            if (readBytes == 0) {
+                return WAITING_DATA;
+            }
+            if (readBytes < 0) {
+                bodyFinished = true;
+                continue;
+            }
+            pending = ByteBuffer.wrap(buffer, 0, readBytes);
+            offset += readBytes;
+            checkBodyFinished();
+        }
+    }
+
+    private void checkBodyFinished() {
+        if (end >= 0 && offset >= end) {
+            bodyFinished = true;
+        } else if (proxyCache.checkPrecacheStopped(offset)) {
+            bodyFinished = true;
+        }
+    }
+
+    /**
+     * 响应结束后归还buffer，只能调用一次
+     */
+    void release() {
+        BufferPool.getInstance().release(buffer);
+        buffer = null;
+    }
+
+    /**
+     * 缓存有新数据时回调，只回调一次
+     */
+    void waitForData(Runnable callback) {
+        proxyCache.waitForSourceDataAsync(callback);
+    }
+}
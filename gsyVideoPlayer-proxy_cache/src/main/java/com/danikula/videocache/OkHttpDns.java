@@ -1,23 +1,24 @@
 package com.danikula.videocache;
 
-import com.alibaba.sdk.android.httpdns.HttpDnsService;
+import com.danikula.videocache.dns.CachingResolver;
+import com.danikula.videocache.dns.ConnectionRacer;
 import com.danikula.videocache.utils.LogUtil;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Arrays;
 import java.util.List;
 
 import okhttp3.Dns;
 
+/**
+ * OkHttp的{@link Dns}，和{@link HttpUrlSource}一样通过{@link CachingResolver}解析域名
+ */
 public class OkHttpDns implements Dns {
 
     private static OkHttpDns instance = null;
-    private final HttpDnsService httpDns;
     private String TAG = OkHttpDns.class.getSimpleName();
 
     private OkHttpDns() {
-        httpDns = HttpDnsUtil.getInstance().getHttpDns();
     }
 
     public static OkHttpDns getInstance() {
@@ -34,18 +35,13 @@ public class OkHttpDns implements Dns {
     @Override
     public List<InetAddress> lookup(String hostname) throws UnknownHostException {
         LogUtil.i(TAG,"hostname="+hostname);
-        //如果dns为空或者originUrl是代理服务url,则不获取ip
-        if (httpDns != null && !HttpProxyCacheServer.PROXY_HOST.equals(hostname)) {
-            //通过异步解析接口获取ip
-            String ip = httpDns.getIpByHostAsync(hostname);
-            if (ip != null) {
-                //如果ip不为null，直接使用该ip进行网络请求
-                List<InetAddress> inetAddresses = Arrays.asList(InetAddress.getAllByName(ip));
-                LogUtil.i("OkHttpDns", "inetAddresses:" + inetAddresses);
-                return inetAddresses;
-            }
+        //代理服务url和ip字面量走系统DNS
+        if (HttpProxyCacheServer.PROXY_HOST.equals(hostname) || CachingResolver.isIpAddress(hostname)) {
+            return Dns.SYSTEM.lookup(hostname);
         }
-        //如果返回null，走系统DNS服务解析域名
-        return Dns.SYSTEM.lookup(hostname);
+        //按照连接耗时排序，ConnectionRacer选出的IP排在最前面，OkHttp按顺序连接
+        List<InetAddress> inetAddresses = ConnectionRacer.getInstance().sort(hostname, CachingResolver.getInstance().resolve(hostname));
+        LogUtil.i(TAG, "inetAddresses:" + inetAddresses);
+        return inetAddresses;
     }
 }
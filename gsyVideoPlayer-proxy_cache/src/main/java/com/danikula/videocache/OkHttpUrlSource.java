@@ -3,43 +3,57 @@ package com.danikula.videocache;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.danikula.videocache.dns.CachingResolver;
+import com.danikula.videocache.dns.ConnectionRacer;
 import com.danikula.videocache.headers.EmptyHeadersInjector;
 import com.danikula.videocache.headers.HeaderInjector;
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+import com.danikula.videocache.utils.ChunkSizeController;
 import com.danikula.videocache.utils.ConstantsUtil;
 import com.danikula.videocache.utils.LogUtil;
 import com.danikula.videocache.utils.OkHttpUtil;
-import com.danikula.videocache.utils.RangeUtil;
 
-import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
 import okhttp3.Headers;
-import okhttp3.MediaType;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
-import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
 
-//暂时不使用OkHttp 作为网络请求库，等待完善
-public class OkHttpUrlSource implements Source {
+/**
+ * {@link UrlSource} based on OkHttp.
+ * <p>
+ * All instances use the client of {@link OkHttpUtil}, so connections are kept alive in its pool and reused by
+ * following range requests instead of opening new TCP/TLS connection for every chunk.
+ */
+public class OkHttpUrlSource implements UrlSource {
 
     private final String TAG = OkHttpUrlSource.class.getSimpleName();
     private static final int MAX_REDIRECTS = 5;
     private final SourceInfoStorage sourceInfoStorage;
     private final HeaderInjector headerInjector;
-    private SourceInfo sourceInfo;
+    private final ChunkSizeController chunkSizeController;
+    //当前请求的测量，用来调整下一次请求的长度
+    private ChunkSizeController.Sample sample;
+    //当前请求的结束位置（不包含），-1表示按照chunkSizeController计算请求长度
+    private long requestEnd = -1;
+    //只在open和Head请求中整体替换，getKnownLength等方法不加锁读取，不会等待length()中的Head请求
+    private volatile SourceInfo sourceInfo;
 
     private Response response;
-    private BufferedInputStream inputStream;
+    private InputStream inputStream;
 
     public OkHttpUrlSource(String url) {
         this(url, SourceInfoStorageFactory.newEmptySourceInfoStorage());
@@ -52,7 +66,9 @@ public class OkHttpUrlSource implements Source {
     public OkHttpUrlSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
         this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
         this.headerInjector = checkNotNull(headerInjector);
+        this.chunkSizeController = new ChunkSizeController();
         SourceInfo sourceInfo = sourceInfoStorage.get(url);
+        RedirectCache.getInstance().restore(sourceInfo);
         this.sourceInfo = sourceInfo != null ? sourceInfo :
                 new SourceInfo(url, Integer.MIN_VALUE, ProxyCacheUtils.getSupposablyMime(url));
     }
@@ -61,25 +77,60 @@ public class OkHttpUrlSource implements Source {
         this.sourceInfo = source.sourceInfo;
         this.sourceInfoStorage = source.sourceInfoStorage;
         this.headerInjector = source.headerInjector;
+        this.chunkSizeController = source.chunkSizeController;
     }
 
 
     @Override
     public void open(long offset) throws ProxyCacheException {
+        open(offset, -1);
+    }
+
+    @Override
+    public void open(long offset, long end) throws ProxyCacheException {
+        requestEnd = end;
         int timeout = offset == ConstantsUtil.PING_SERVER_OFFSET ? ConstantsUtil.SYSTEM_OUT_TIME : ConstantsUtil.CUS_OUT_TIME;
         try {
+            sample = offset >= 0 ? chunkSizeController.newSample() : null;
+            String ifRange = ProxyCacheUtils.getIfRange(offset, sourceInfo.etag);
             response = openConnection(offset, timeout);
-            if (!response.isSuccessful()) {
-                throw new ProxyCacheException("response + code=" + response.code()+" for " + sourceInfo.url);
+            ResponseBody responseBody = response.body();
+            if (!response.isSuccessful() || responseBody == null) {
+                int code = response.code();
+                response.close();
+                response = null;
+                String message = "response + code=" + code + " for " + sourceInfo.url;
+                if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE) {
+                    // 和HttpURLConnection一样，文件不存在时不重试
+                    throw new ProxyCacheException(message, new FileNotFoundException(sourceInfo.url));
+                }
+                throw new ProxyCacheException(message);
             }
 
-            ResponseBody responseBody = response.body();
-            if (responseBody != null && response.isSuccessful()) {
-                inputStream = new BufferedInputStream(responseBody.byteStream(), DEFAULT_BUFFER_SIZE);
-                String mine = response.header("content-type");
-                LogUtil.i(TAG, "url:" + sourceInfo.url + "content-type=" + mine);
-                this.sourceInfo = new SourceInfo(sourceInfo.url, sourceInfo.length, mine);
-                this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
+            String mime = response.header("content-type");
+            String etag = response.header("etag");
+            LogUtil.i(TAG, "url:" + sourceInfo.url + "content-type=" + mime);
+            // 文件长度和mime从数据请求的响应头中获取，不需要额外的Head请求
+            long length = offset >= 0 ? ProxyCacheUtils.getSourceLength(response.code(),
+                    response.header("content-range"), response.header("content-length")) : -1;
+            boolean changed = offset >= 0 && ProxyCacheUtils.isSourceChanged(sourceInfo, ifRange, response.code(), length, etag);
+            SourceInfo sourceInfo = this.sourceInfo;
+            this.sourceInfo = new SourceInfo(sourceInfo.url, length > 0 ? length : sourceInfo.length, mime,
+                    etag != null ? etag : sourceInfo.etag);
+            this.sourceInfoStorage.put(sourceInfo.url, RedirectCache.getInstance().attach(this.sourceInfo));
+            if (changed) {
+                response.close();
+                response = null;
+                throw new SourceChangedException("Source " + sourceInfo.url + " is changed: " + this.sourceInfo);
+            }
+
+            // 调用方每次读取一整个buffer，不需要再经过BufferedInputStream拷贝
+            inputStream = responseBody.byteStream();
+            if (offset > 0 && response.code() == HttpURLConnection.HTTP_OK) {
+                ProxyCacheUtils.skipFully(inputStream, offset);
+            }
+            if (sample != null) {
+                sample.onResponse(responseBody.contentLength());
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -88,39 +139,60 @@ public class OkHttpUrlSource implements Source {
     }
 
     @Override
-    public long length() throws ProxyCacheException {
+    public synchronized long length() throws ProxyCacheException {
         if (sourceInfo.length == Integer.MIN_VALUE) {
             newFetchContentInfo();
         }
         return sourceInfo.length;
     }
 
+    /**
+     * 不发起网络请求，只返回已知的长度
+     */
+    @Override
+    public long getKnownLength() {
+        long length = sourceInfo.length;
+        return length > 0 ? length : -1;
+    }
+
+    /**
+     * 不发起网络请求，只返回已知的mime
+     */
+    @Override
+    public String getKnownMime() {
+        return sourceInfo.mime;
+    }
+
     /**
      * 通过Head 请求获取ContentLength
      *
      * @return
      */
+    @Override
     public void newFetchContentInfo() throws ProxyCacheException {
         Response response = null;
         try {
             response = openConnection(ConstantsUtil.HEAD_OFFSET, ConstantsUtil.SYSTEM_OUT_TIME);
-
             if (!response.isSuccessful()) {
-                throw new ProxyCacheException("response + code=" + response.code()+" for " + sourceInfo.url);
+                throw new ProxyCacheException("response + code=" + response.code() + " for " + sourceInfo.url);
             }
 
-            if (response != null && response.isSuccessful()) {
-                int contentLength = Integer.MIN_VALUE;
-                String contentLengthStr = response.header("content-length");
-                if (contentLengthStr != null && !contentLengthStr.equals("")) {
-                    contentLength = Integer.parseInt(contentLengthStr);
+            long contentLength = -1;
+            String contentLengthStr = response.header("content-length");
+            if (!TextUtils.isEmpty(contentLengthStr)) {
+                try {
+                    contentLength = Long.parseLong(contentLengthStr.trim());
+                } catch (NumberFormatException e) {
+                    LogUtil.e(TAG, "Invalid content-length " + contentLengthStr + " for " + sourceInfo.url);
                 }
+            }
 
-                String mime = response.header("content-type");
-                this.sourceInfo = new SourceInfo(sourceInfo.url, contentLength, mime);
-                this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
-                LogUtil.i(TAG, "contentLength::" + contentLength + ",,mime=" + mime);
+            String mime = response.header("content-type");
+            synchronized (this) {
+                this.sourceInfo = new SourceInfo(sourceInfo.url, contentLength, mime, sourceInfo.etag);
             }
+            this.sourceInfoStorage.put(sourceInfo.url, RedirectCache.getInstance().attach(sourceInfo));
+            LogUtil.i(TAG, "contentLength::" + contentLength + ",,mime=" + mime);
         } catch (IOException e) {
             LogUtil.e(TAG, "Error fetching info from " + sourceInfo.url + Log.getStackTraceString(e));
         } finally {
@@ -136,7 +208,11 @@ public class OkHttpUrlSource implements Source {
             throw new ProxyCacheException("Error reading data from " + sourceInfo.url + ": connection is absent!");
         }
         try {
-            return inputStream.read(buffer, 0, buffer.length);
+            int read = inputStream.read(buffer, 0, buffer.length);
+            if (sample != null) {
+                sample.onRead(read);
+            }
+            return read;
         } catch (InterruptedIOException e) {
             throw new InterruptedProxyCacheException("Reading source " + sourceInfo.url + " is interrupted" + "--rawReason : " + e.toString(), e);
         } catch (IOException e) {
@@ -146,8 +222,13 @@ public class OkHttpUrlSource implements Source {
 
     @Override
     public void close() throws ProxyCacheException {
+        if (sample != null) {
+            sample.finish();
+            sample = null;
+        }
         if (response != null) {
             try {
+                // body读完后关闭，连接会回到连接池中供后续请求复用
                 response.close();
             } catch (NullPointerException | IllegalArgumentException e) {
                 String message = "Wait... but why? WTF!? " +
@@ -163,11 +244,37 @@ public class OkHttpUrlSource implements Source {
         }
     }
 
+    /**
+     * 优先请求缓存的重定向地址，返回4xx/5xx时删除缓存并从原始url重新请求
+     */
     private Response openConnection(long offset, int timeout) throws IOException, ProxyCacheException {
+        String redirectUrl = RedirectCache.getInstance().get(sourceInfo.url);
+        if (redirectUrl != null) {
+            Response response = openConnection(redirectUrl, offset, timeout);
+            if (response.code() < HttpURLConnection.HTTP_BAD_REQUEST) {
+                return response;
+            }
+            LogUtil.i(TAG, "redirect url " + redirectUrl + " responds " + response.code());
+            response.close();
+            RedirectCache.getInstance().remove(sourceInfo.url);
+        }
+        return openConnection(sourceInfo.url, offset, timeout);
+    }
+
+    private Response openConnection(String url, long offset, int timeout) throws IOException, ProxyCacheException {
+        OkHttpClient client = OkHttpUtil.getInstance().getClient();
+        if (timeout != ConstantsUtil.CUS_OUT_TIME) {
+            // newBuilder创建的client共享连接池
+            client = client.newBuilder()
+                    .connectTimeout(timeout, TimeUnit.MILLISECONDS)
+                    .readTimeout(timeout, TimeUnit.MILLISECONDS)
+                    .build();
+        }
         Response response;
         boolean redirected;
         int redirectCount = 0;
-        String originUrl = this.sourceInfo.url;
+        long redirectExpires = Long.MAX_VALUE;
+        String originUrl = url;
         LogUtil.i(TAG, "originUrl::" + originUrl);
         do {
             Request.Builder builder = new Request.Builder();
@@ -180,26 +287,76 @@ public class OkHttpUrlSource implements Source {
             }
             Request request = builder.build();
 
-            Call call = OkHttpUtil.getInstance().getClient().newCall(request);
-            response = call.execute();
+            String host = request.url().host();
+            int port = request.url().port();
+            boolean resolved = selectAddress(host, port, timeout);
+            Call call = client.newCall(request);
+            try {
+                response = call.execute();
+                OkHttpUtil.getInstance().onResponse(host, port);
+            } catch (IOException e) {
+                if (resolved) {
+                    // 选出的IP太慢或者不可用，下一次请求重新选择
+                    ConnectionRacer.getInstance().onFailed(host);
+                }
+                throw e;
+            }
 
             redirected = response.isRedirect();
             if (redirected) {
-                originUrl = response.headers().get("Location");
+                String location = response.header("Location");
+                HttpUrl redirectUrl = location == null ? null : response.request().url().resolve(location);
+                redirectExpires = Math.min(redirectExpires, RedirectCache.getExpires(response.code(), response.header("Cache-Control")));
+                // 重定向的响应体需要关闭，否则连接不能回到连接池
+                response.close();
+                if (redirectUrl == null) {
+                    throw new ProxyCacheException("Invalid redirect location " + location + " for " + originUrl);
+                }
+                originUrl = redirectUrl.toString();
                 redirectCount++;
             }
             if (redirectCount > MAX_REDIRECTS) {
                 throw new ProxyCacheException("Too many redirects: " + redirectCount);
             }
         } while (redirected);
+        if (redirectCount > 0) {
+            RedirectCache.getInstance().put(sourceInfo.url, originUrl, redirectExpires);
+        }
         return response;
     }
 
+    /**
+     * 域名解析到多个IP时通过{@link ConnectionRacer}选出连接最快的IP，{@link OkHttpDns}会把它排在最前面
+     * <p>
+     * 和{@link HttpUrlSource}一样只有设置了系统dns以外的解析器时才竞速；连接池中有空闲连接时OkHttp直接复用，也不需要竞速
+     *
+     * @return 是否选择了IP；不需要竞速、代理服务的地址、IP字面量或者竞速失败时返回false，按OkHttp默认的顺序连接
+     */
+    private boolean selectAddress(String host, int port, int timeout) {
+        if (!CachingResolver.getInstance().isCustomResolver()
+                || HttpProxyCacheServer.PROXY_HOST.equals(host) || CachingResolver.isIpAddress(host)
+                || OkHttpUtil.getInstance().hasPooledConnection(host, port)) {
+            return false;
+        }
+        try {
+            ConnectionRacer.getInstance().select(host, port, timeout);
+            return true;
+        } catch (IOException e) {
+            LogUtil.i(TAG, "选择IP失败，使用默认的解析结果 " + e);
+            return false;
+        }
+    }
+
     private Headers injectCustomHeaders(long offset, String url) {
         Headers.Builder builder = new Headers.Builder();
 
         if (offset != ConstantsUtil.PING_SERVER_OFFSET && offset != ConstantsUtil.HEAD_OFFSET) {
-            builder.set("Range", "bytes=" + offset + "-" + RangeUtil.getRangeEnd(offset, sourceInfo.length));
+            builder.set("Range", "bytes=" + offset + "-" + getRangeEnd(offset));
+            // 文件改变时服务器返回200和完整的新文件，而不是拼接到旧数据后面
+            String ifRange = ProxyCacheUtils.getIfRange(offset, sourceInfo.etag);
+            if (ifRange != null) {
+                builder.set("If-Range", ifRange);
+            }
         }
 
         Map<String, String> extraHeaders = headerInjector.addHeaders(url);
@@ -214,6 +371,7 @@ public class OkHttpUrlSource implements Source {
         return builder.build();
     }
 
+    @Override
     public synchronized String getMime() throws ProxyCacheException {
         if (TextUtils.isEmpty(sourceInfo.mime)) {
             newFetchContentInfo();
@@ -221,10 +379,28 @@ public class OkHttpUrlSource implements Source {
         return sourceInfo.mime;
     }
 
+    @Override
     public String getUrl() {
         return sourceInfo.url;
     }
 
+    /**
+     * @return Range请求的结束位置（包含）；open时指定了结束位置时使用指定的位置，否则按照测量的网速计算
+     */
+    private long getRangeEnd(long offset) {
+        return requestEnd > offset ? requestEnd - 1 : chunkSizeController.getRangeEnd(offset, sourceInfo.length);
+    }
+
+    @Override
+    public ChunkSizeController getChunkSizeController() {
+        return chunkSizeController;
+    }
+
+    @Override
+    public UrlSource copy() {
+        return new OkHttpUrlSource(this);
+    }
+
     @Override
     public String toString() {
         return "OkHttpUrlSource{sourceInfo='" + sourceInfo + "}";
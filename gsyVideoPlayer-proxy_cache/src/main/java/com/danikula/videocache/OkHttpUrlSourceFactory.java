@@ -0,0 +1,18 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.headers.HeaderInjector;
+import com.danikula.videocache.sourcestorage.SourceInfoStorage;
+
+/**
+ * {@link SourceFactory} for {@link OkHttpUrlSource}.
+ * <p>
+ * All sources share connection pool of {@link com.danikula.videocache.utils.OkHttpUtil}, so consecutive range
+ * requests and different videos of the same host reuse keep-alive connections.
+ */
+public class OkHttpUrlSourceFactory implements SourceFactory {
+
+    @Override
+    public UrlSource newSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+        return new OkHttpUrlSource(url, sourceInfoStorage, headerInjector);
+    }
+}
@@ -74,6 +74,10 @@ class Pinger {
         return false;
     }
 
+    void shutdown() {
+        pingExecutor.shutdown();
+    }
+
     private List<Proxy> getDefaultProxies() {
         try {
             ProxySelector defaultProxySelector = ProxySelector.getDefault();
@@ -89,8 +93,11 @@ class Pinger {
 
     void responseToPing(Socket socket) throws IOException {
         OutputStream out = socket.getOutputStream();
-        out.write("HTTP/1.1 200 OK\n\n".getBytes());
-        out.write(PING_RESPONSE.getBytes());
+        out.write(newPingResponse());
+    }
+
+    byte[] newPingResponse() {
+        return ("HTTP/1.1 200 OK\n\n" + PING_RESPONSE).getBytes();
     }
 
     private boolean pingServer() throws ProxyCacheException {
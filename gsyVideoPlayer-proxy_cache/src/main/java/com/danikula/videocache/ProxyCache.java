@@ -1,10 +1,21 @@
 package com.danikula.videocache;
 
 
+import com.danikula.videocache.utils.ConstantsUtil;
 import com.danikula.videocache.utils.LogUtil;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.danikula.videocache.Preconditions.checkArgument;
 import static com.danikula.videocache.Preconditions.checkNotNull;
 
 /**
@@ -19,7 +30,6 @@ import static com.danikula.videocache.Preconditions.checkNotNull;
 class ProxyCache {
 
     private String TAG = ProxyCache.class.getSimpleName();
-    private static final int MAX_READ_SOURCE_ATTEMPTS = 1;
 
     private final Source source;
     private final Cache cache;
@@ -27,30 +37,80 @@ class ProxyCache {
     private final Object stopLock = new Object();
     private final AtomicInteger readSourceErrorsCount;
 
+    /**
+     * 非阻塞读取时等待新数据的回调，数据到达后只回调一次
+     */
+    private final List<Runnable> sourceDataCallbacks = new ArrayList<>();
+
     /**
      * 最后一次发生的异常
      */
     private Exception lastReadException;
 
     /**
-     * 是否已经清除过缓存了
+     * 下载出错后的重试策略
+     */
+    private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    /**
+     * 所有url共享的下载调度器，默认不限制同时下载的请求数
+     */
+    private volatile DownloadScheduler downloadScheduler = new DownloadScheduler(Integer.MAX_VALUE);
+
+    /**
+     * 预缓存的限速，为null时不限速
      */
-    private boolean hasClearCache;
+    private volatile BandwidthLimiter bandwidthLimiter;
 
-    private volatile Thread sourceReaderThread;
+    /**
+     * 当前下载持有的许可
+     */
+    private volatile DownloadScheduler.Ticket sourceTicket;
+
+    /**
+     * 正在执行下载的线程，只在stopLock内修改，保证不会中断线程池中执行其他任务的线程
+     */
+    private Thread sourceReaderThread;
+    private volatile boolean sourceReading;
+    private volatile ExecutorService sourceReaderExecutor = SourceReaderExecutor.getDefault();
     private volatile boolean stopped;
     protected volatile int percentsAvailable = -1;
 
     /**
-     * 标识是否处于暂停状态
+     * 同时下载的分段数
+     */
+    private volatile int segmentCount = 1;
+
+    /**
+     * 标识是否处于暂停状态，暂停时只下载播放器已经请求的数据
+     */
+    private volatile boolean pause;
+
+    /**
+     * 播放器最近一次读取的位置，用于控制预读的范围
+     */
+    private volatile long readPosition;
+
+    /**
+     * 已缓存的数据超过读取位置这么多字节时暂停下载，0表示不限制
+     */
+    private volatile long readAheadWindow;
+
+    /**
+     * 暂停下载后，已缓存的数据少于读取位置之后这么多字节时恢复下载
+     */
+    private volatile long readAheadLowWater;
+
+    /**
+     * 上一次顺序下载是否写到了已缓存的区间，只在下载线程中使用
      */
-    private boolean pause;
+    private boolean filledRangeReached;
 
 
     /**
      * 是否预缓存之后结束
      */
-    protected boolean shutdownAfterPrecache;
+    protected volatile boolean shutdownAfterPrecache;
 
     /**
      * 是否提前停止预缓存
@@ -67,34 +127,130 @@ class ProxyCache {
     public int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
         ProxyCacheUtils.assertBuffer(buffer, offset, length);
         LogUtil.i(TAG, "read offset::" + offset / 1024 + "K" + "，，已缓存：" + cache.available() / 1024 + "K");
+        readPosition = offset + length;
         //当文件没有缓存完成，已经缓存的文件大小不满足读取的offset，异步读取数据；
         while (!cache.isCompleted() && cache.available() < (offset + length) && !stopped) {
             readSourceAsync();
-            waitForSourceData();
+            waitForSourceData(offset + length);
             checkReadSourceErrorsCount();
         }
         int read = cache.read(buffer, offset, length);
+        onPlayerRead(offset + Math.max(read, 0));
+        notifyIfCompleted();
+        return read;
+    }
+
+    /**
+     * 非阻塞读取，只返回缓存中已有的数据，不会等待下载。
+     *
+     * @return 读取的字节数；缓存中暂无数据时返回0并触发异步下载，数据已读完返回-1
+     */
+    int readAvailable(byte[] buffer, long offset, int length) throws ProxyCacheException {
+        ProxyCacheUtils.assertBuffer(buffer, offset, length);
+        if (!cache.isCompleted() && !stopped) {
+            long cacheAvailable = cache.available();
+            if (cacheAvailable < offset + length) {
+                readPosition = offset + length;
+                readSourceAsync();
+                checkReadSourceErrorsCount();
+            }
+            if (cacheAvailable <= offset) {
+                return 0;
+            }
+            length = (int) Math.min(length, cacheAvailable - offset);
+        }
+        int read = cache.read(buffer, offset, length);
+        onPlayerRead(offset + Math.max(read, 0));
+        notifyIfCompleted();
+        return read;
+    }
+
+    /**
+     * 播放器读取到新的位置，下载因为预读已满暂停时，缓存的数据少于低水位后恢复下载
+     *
+     * @param position 已经发给播放器的数据的结束位置
+     */
+    protected void onPlayerRead(long position) throws ProxyCacheException {
+        readPosition = position;
+        if (readAheadWindow > 0) {
+            resumeReadingIfNeeded();
+        }
+    }
+
+    private void resumeReadingIfNeeded() throws ProxyCacheException {
+        if (!sourceReading && !stopped && !cache.isCompleted() && !isReadAheadFull(cache.available(), readAheadLowWater)) {
+            readSourceAsync();
+        }
+    }
+
+    private boolean isReadAheadFull() {
+        try {
+            return isReadAheadFull(cache.available(), readAheadWindow);
+        } catch (ProxyCacheException e) {
+            onError(e);
+            return true;
+        }
+    }
+
+    /**
+     * @param available 已缓存的位置
+     * @param limit     读取位置之后最多缓存的字节数
+     * @return 是否应该暂停下载：暂停时已经缓存了播放器请求的数据，或者预读的数据达到上限
+     */
+    private boolean isReadAheadFull(long available, long limit) {
+        long ahead = available - readPosition;
+        if (pause) {
+            return ahead >= 0;
+        }
+        return readAheadWindow > 0 && ahead >= limit;
+    }
+
+    /**
+     * 开始后台下载并等待新数据到达，最多等待1秒，用于从第一个数据请求的响应头获取文件信息
+     *
+     * @return 等待之后是否还在下载；暂停或者预读已满时不会下载，直接返回false，调用方不必继续等待
+     */
+    protected boolean awaitSourceData() throws ProxyCacheException {
+        if (cache.isCompleted() || stopped || isReadAheadFull()) {
+            return false;
+        }
+        readSourceAsync();
+        waitForSourceData(cache.available() + 1);
+        checkReadSourceErrorsCount();
+        return sourceReading;
+    }
+
+    /**
+     * 缓存完成后保证通知一次100%
+     */
+    protected void notifyIfCompleted() {
         if (cache.isCompleted() && percentsAvailable != 100) {
             percentsAvailable = 100;
             onCachePercentsAvailableChanged(100);
         }
-        return read;
+    }
+
+    /**
+     * 注册一次性回调，有新的缓存数据、下载结束或者shutdown时回调，配合{@link #readAvailable(byte[], long, int)}使用
+     */
+    void waitForSourceDataAsync(Runnable callback) {
+        synchronized (wc) {
+            sourceDataCallbacks.add(callback);
+        }
     }
 
 
+    /**
+     * 下载线程按照{@link RetryPolicy}重试仍然失败后，把错误抛给等待数据的客户端
+     */
     private void checkReadSourceErrorsCount() throws ProxyCacheException {
-        int errorsCount = readSourceErrorsCount.get();
-        if (errorsCount > MAX_READ_SOURCE_ATTEMPTS) {
-            readSourceErrorsCount.set(0);
+        int errorsCount = readSourceErrorsCount.getAndSet(0);
+        if (errorsCount > 0) {
             if(lastReadException == null){
                 throw new ProxyCacheException("Error reading source " + errorsCount + " times" );
             } else {
                 throw new ProxyCacheException("Error reading source " + errorsCount + " times" + lastReadException.toString() , lastReadException);
             }
-        } else if(errorsCount == 1 && !hasClearCache){
-            // 发生了一次错误，那么清空缓存
-            hasClearCache = true;
-            cache.reset();
         }
     }
 
@@ -110,19 +266,33 @@ class ProxyCache {
                 onError(e);
             }
         }
+        notifySourceDataCallbacks();
     }
 
     private synchronized void readSourceAsync() throws ProxyCacheException {
-        boolean readingInProgress = sourceReaderThread != null && sourceReaderThread.getState() != Thread.State.TERMINATED;
-        if (!stopped && !cache.isCompleted() && !readingInProgress) {
-            LogUtil.i(TAG, "调用readSourceAsync，开启子线程");
-            sourceReaderThread = new Thread(new SourceReaderRunnable(), "Source reader for " + source);
-            sourceReaderThread.start();
+        if (!stopped && !cache.isCompleted() && !sourceReading) {
+            LogUtil.i(TAG, "调用readSourceAsync，在线程池中下载");
+            sourceReading = true;
+            try {
+                sourceReaderExecutor.execute(new SourceReaderRunnable());
+            } catch (RejectedExecutionException e) {
+                sourceReading = false;
+                throw new ProxyCacheException("Source reader executor is shut down", e);
+            }
         }
     }
 
-    private void waitForSourceData() throws ProxyCacheException {
+    /**
+     * 等待下载线程的通知，最多等待1秒
+     *
+     * @param required 需要缓存到的位置；在锁内再检查一次，避免检查之后、wait之前的通知丢失而白等1秒
+     */
+    private void waitForSourceData(long required) throws ProxyCacheException {
         synchronized (wc) {
+            if (stopped || !sourceReading || readSourceErrorsCount.get() > 0 || cache.isCompleted()
+                    || cache.available() >= required) {
+                return;
+            }
             try {
                 wc.wait(1000);
             } catch (InterruptedException e) {
@@ -133,10 +303,34 @@ class ProxyCache {
 
     private void notifyNewCacheDataAvailable(long cacheAvailable, long sourceAvailable) {
         onCacheAvailable(cacheAvailable, sourceAvailable);
+        notifySourceDataWaiters();
+    }
 
+    private void notifySourceDataWaiters() {
         synchronized (wc) {
             wc.notifyAll();
         }
+        notifySourceDataCallbacks();
+    }
+
+    private void notifySourceDataCallbacks() {
+        List<Runnable> callbacks;
+        synchronized (wc) {
+            if (sourceDataCallbacks.isEmpty()) {
+                return;
+            }
+            callbacks = new ArrayList<>(sourceDataCallbacks);
+            sourceDataCallbacks.clear();
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * 源文件改变，缓存已经清空，子类在这里丢弃根据旧文件得到的数据
+     */
+    protected void onSourceChanged() {
     }
 
     protected void onCacheAvailable(long cacheAvailable, long sourceLength) {
@@ -153,43 +347,251 @@ class ProxyCache {
     protected void onCachePercentsAvailableChanged(int percentsAvailable) {
     }
 
-    private boolean hasError;
+    /**
+     * 下载出错时从已缓存的位置继续下载，连续出错的次数超过{@link RetryPolicy}的限制后放弃；
+     * 只有源文件改变时才清空缓存
+     */
     private void readSource() {
+        int retryCount = 0;
+        while (true) {
+            long startAvailable = -1;
+            Exception error;
+            if (isReadAheadFull()) {
+                // 播放器读取到低水位后由onPlayerRead重新开始下载
+                LogUtil.i(TAG, "suspend reading source at " + readPosition / 1024 + "K, pause " + pause);
+                return;
+            }
+            DownloadScheduler.Ticket ticket = downloadScheduler.newTicket(getPriority());
+            // 排队前记录许可，排队期间预缓存的视频开始播放时可以提高优先级
+            sourceTicket = ticket;
+            try {
+                ticket.await();
+            } catch (InterruptedException e) {
+                sourceTicket = null;
+                return;
+            }
+            try {
+                startAvailable = cache.available();
+                error = readSourceOnce(ticket);
+                if (error == null && (ticket.isPreempted() || filledRangeReached) && !isStopped() && !cache.isCompleted()) {
+                    // 被播放请求抢占或者下载到了已缓存的区间，重新排队，从已缓存的位置继续下载
+                    continue;
+                }
+                if (error == null || isStopped()) {
+                    return;
+                }
+                if (error instanceof SourceChangedException) {
+                    synchronized (stopLock) {
+                        if (isStopped()) {
+                            return;
+                        }
+                        LogUtil.i(TAG, "Source is changed, reset cache: " + error.getMessage());
+                        cache.reset();
+                        percentsAvailable = -1;
+                        onSourceChanged();
+                    }
+                } else if (cache.available() > startAvailable) {
+                    // 下载有进展，重新计算退避时间
+                    retryCount = 0;
+                }
+            } catch (ProxyCacheException e) {
+                error = e;
+            } finally {
+                sourceTicket = null;
+                ticket.release();
+            }
+            RetryPolicy policy = retryPolicy;
+            if (isStopped() || !policy.shouldRetry(retryCount, error)) {
+                lastReadException = error;
+                readSourceErrorsCount.incrementAndGet();
+                notifySourceDataWaiters();
+                return;
+            }
+            long delay = error instanceof SourceChangedException ? 0 : policy.getDelay(retryCount);
+            retryCount++;
+            HttpProxyCacheDebuger.printfWarning("Retry reading " + source + " in " + delay + "ms, attempt " + retryCount);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 从已缓存的位置下载一次
+     *
+     * @param ticket 下载许可，被抢占时停止下载
+     * @return 发生的错误；正常结束或者被抢占时返回null
+     */
+    private Exception readSourceOnce(DownloadScheduler.Ticket ticket) {
         long sourceAvailable = -1;
         long offset = 0;
+        List<SegmentFetch> segments = Collections.emptyList();
+        byte[] buffer = null;
+        filledRangeReached = false;
         try {
             offset = cache.available();
             source.open(offset);
             sourceAvailable = source.length();
-            byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+            // 稀疏缓存时只下载到下一个已缓存的区间，写到区间之后缓存位置直接跳到区间的结束位置
+            long filledStart = getNextFilledStart(offset);
+            segments = startSegmentFetches(offset, Math.min(sourceAvailable, filledStart), getPriority());
+            // 并行下载时当前连接只负责第一个分段，后面的分段由其他连接同时下载
+            long segmentEnd = segments.isEmpty() ? filledStart : segments.get(0).start;
+            buffer = BufferPool.getInstance().acquire();
             int readBytes;
-            while ((readBytes = source.read(buffer)) != -1) {
+            while (offset < segmentEnd && !ticket.isPreempted() && !isReadAheadFull(offset, readAheadWindow)
+                    && (readBytes = source.read(buffer)) != -1) {
+                limitBandwidth(getPriority(), readBytes);
                 synchronized (stopLock) {
                     if (isStopped()) {
-                        return;
+                        return null;
                     }
 
-                    cache.append(buffer, readBytes);
+                    int count = (int) Math.min(readBytes, segmentEnd - offset);
+                    cache.append(buffer, count);
                     if (cache.available() == source.length()) {
                         tryComplete();
                     }
-                    offset += readBytes;
+                    offset += count;
                     notifyNewCacheDataAvailable(offset, sourceAvailable);
                 }
             }
+            // 网络读取已经结束，等待分段时不占用许可，分段下载也需要许可
+            ticket.release();
+            offset = appendSegments(segments, offset, sourceAvailable, buffer);
+            filledRangeReached = offset >= filledStart;
             tryComplete();
             onSourceRead();
+            return null;
         } catch (Exception e) {
-            e.printStackTrace();
-            lastReadException = e;
-            readSourceErrorsCount.incrementAndGet();
             onError(e);
+            return e;
         } finally {
             closeSource();
+            BufferPool.getInstance().release(buffer);
+            for (SegmentFetch segment : segments) {
+                segment.close();
+            }
             notifyNewCacheDataAvailable(offset, sourceAvailable);
         }
     }
 
+    /**
+     * 开启后续分段的并行下载，每个分段的长度和当前单次请求的长度相同
+     *
+     * @return 按位置排序的分段；不需要并行下载时为空
+     */
+    private List<SegmentFetch> startSegmentFetches(long offset, long sourceLength, int priority) {
+        if (segmentCount <= 1 || sourceLength <= 0) {
+            return Collections.emptyList();
+        }
+        int segmentLength = getChunkSize();
+        List<SegmentFetch> segments = new ArrayList<>(segmentCount - 1);
+        // 播放时后续分段的优先级低于播放位置的数据，预缓存时和预缓存相同
+        int segmentPriority = priority == DownloadScheduler.PRIORITY_PLAYING ? DownloadScheduler.PRIORITY_NEAR_FUTURE : priority;
+        long start = offset + segmentLength;
+        for (int i = 1; i < segmentCount && start < sourceLength; i++) {
+            Source segmentSource = newSegmentSource();
+            if (segmentSource == null) {
+                break;
+            }
+            SegmentFetch segment;
+            try {
+                File file = newSegmentFile();
+                if (file == null) {
+                    break;
+                }
+                segment = new SegmentFetch(segmentSource, start, (int) Math.min(segmentLength, sourceLength - start), segmentPriority, file);
+            } catch (IOException e) {
+                HttpProxyCacheDebuger.printfWarning("Error creating segment file: " + e.getMessage());
+                break;
+            }
+            segments.add(segment);
+            segment.start();
+            start += segmentLength;
+        }
+        return segments;
+    }
+
+    /**
+     * 按顺序把并行下载的分段从临时文件写入缓存，某个分段失败或者和缓存位置不连续时停止并取消剩余的分段，剩余部分由下一次读取重新下载
+     *
+     * @return 写入后的缓存位置
+     */
+    private long appendSegments(List<SegmentFetch> segments, long offset, long sourceAvailable, byte[] buffer) throws ProxyCacheException {
+        for (int i = 0; i < segments.size(); i++) {
+            SegmentFetch segment = segments.get(i);
+            // 先检查位置再等待：还没有开始的分段在awaitCompleted中会由当前线程下载，不连续的分段下载了也用不上
+            if (segment.start != offset || !segment.awaitCompleted()) {
+                cancelSegments(segments, i);
+                break;
+            }
+            int position = 0;
+            while (position < segment.length) {
+                int count = segment.read(buffer, position, Math.min(buffer.length, segment.length - position));
+                synchronized (stopLock) {
+                    if (isStopped()) {
+                        cancelSegments(segments, i);
+                        return offset;
+                    }
+                    cache.append(buffer, count);
+                    position += count;
+                    offset += count;
+                    if (cache.available() == source.length()) {
+                        tryComplete();
+                    }
+                    notifyNewCacheDataAvailable(offset, sourceAvailable);
+                }
+            }
+            segment.close();
+        }
+        return offset;
+    }
+
+    private static void cancelSegments(List<SegmentFetch> segments, int from) {
+        for (int i = from; i < segments.size(); i++) {
+            segments.get(i).close();
+        }
+    }
+
+    /**
+     * 预缓存的下载按照{@link BandwidthLimiter}限速，不持有锁
+     */
+    private void limitBandwidth(int priority, int readBytes) throws InterruptedProxyCacheException {
+        BandwidthLimiter limiter = bandwidthLimiter;
+        if (limiter == null || priority != DownloadScheduler.PRIORITY_PRECACHE) {
+            return;
+        }
+        try {
+            limiter.acquire(readBytes);
+        } catch (InterruptedException e) {
+            throw new InterruptedProxyCacheException("Precache bandwidth limiting is interrupted", e);
+        }
+    }
+
+    /**
+     * @return 单次Range请求的长度
+     */
+    protected int getChunkSize() {
+        return ConstantsUtil.getInstance().getDownLoadLength();
+    }
+
+    /**
+     * 创建用于并行下载分段的新数据源，返回null表示不支持并行下载
+     */
+    protected Source newSegmentSource() {
+        return null;
+    }
+
+    /**
+     * 创建保存并行下载分段的临时文件，返回null表示不支持并行下载
+     */
+    protected File newSegmentFile() throws IOException {
+        return null;
+    }
+
     private void onSourceRead() {
         //LogUtil.e(TAG,"onSourceRead");
         // guaranteed notify listeners after source read and cache completed
@@ -197,8 +599,26 @@ class ProxyCache {
         onCachePercentsAvailableChanged(percentsAvailable);
     }
 
+    /**
+     * @return offset之后下一个已经缓存的区间的开始位置，顺序下载到这里为止；没有时返回{@link Long#MAX_VALUE}
+     */
+    protected long getNextFilledStart(long offset) {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * 不是由顺序下载写入的数据连到了已缓存的位置时，通知等待数据的读取
+     */
+    protected void onCacheWritten(long sourceLength) throws ProxyCacheException {
+        notifyNewCacheDataAvailable(cache.available(), sourceLength);
+    }
+
     protected void tryComplete() throws ProxyCacheException {
         synchronized (stopLock) {
+            if (cache.isCompleted()) {
+                // 已完成时不需要再获取源文件长度
+                return;
+            }
             LogUtil.i(TAG, "available::" + cache.available()/1024+"KB" + ",,length::" + source.length()/1024+"KB");
             if (!isStopped() && cache.available() == source.length()) {
                 cache.complete();
@@ -227,20 +647,338 @@ class ProxyCache {
         }
     }
 
+    /**
+     * 在线程池中下载[start, start + length)的数据，由子类决定数据保存在哪里
+     */
+    abstract class RangeFetch implements Runnable {
+
+        private final Source source;
+        final long start;
+        final int length;
+        private final int priority;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private Thread thread;
+        private boolean cancelled;
+        private int filled;
+        private boolean finished;
+        private boolean failed;
+
+        RangeFetch(Source source, long start, int length, int priority) {
+            this.source = source;
+            this.start = start;
+            this.length = length;
+            this.priority = priority;
+        }
+
+        /**
+         * 保存下载到的数据，在下载线程中按顺序调用
+         *
+         * @param position 相对start的位置
+         */
+        protected abstract void write(int position, byte[] buffer, int count) throws ProxyCacheException;
+
+        void start() {
+            try {
+                sourceReaderExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // 线程池已经关闭，由await在当前线程下载
+                HttpProxyCacheDebuger.printfWarning("Segment at " + start + " is rejected by executor");
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            Thread current = Thread.currentThread();
+            synchronized (this) {
+                if (cancelled) {
+                    failed = true;
+                    finished = true;
+                    notifyAll();
+                    return;
+                }
+                thread = current;
+            }
+            // 线程优先级由线程池设置，分段相对播放位置的优先级由DownloadScheduler控制
+            try {
+                fetch();
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                    // 清除cancel时的中断标记，线程还要执行其他任务
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        private void fetch() {
+            DownloadScheduler.Ticket ticket = null;
+            byte[] buffer = null;
+            try {
+                ticket = downloadScheduler.acquire(priority);
+                buffer = BufferPool.getInstance().acquire();
+                // 请求长度在分段开始后可能被调小，一次请求没有读满时继续请求剩余部分
+                boolean progress = true;
+                while (filled < length && progress) {
+                    int chunkStart = filled;
+                    try {
+                        source.open(start + filled);
+                        int readBytes;
+                        while (filled < length && (readBytes = source.read(buffer)) != -1) {
+                            if (Thread.currentThread().isInterrupted() || stopped || ticket.isPreempted()) {
+                                failed = true;
+                                return;
+                            }
+                            limitBandwidth(priority, readBytes);
+                            int count = Math.min(readBytes, length - filled);
+                            write(filled, buffer, count);
+                            synchronized (this) {
+                                filled += count;
+                                notifyAll();
+                            }
+                        }
+                    } finally {
+                        source.close();
+                    }
+                    progress = filled > chunkStart;
+                }
+                failed = filled < length;
+            } catch (ProxyCacheException e) {
+                failed = true;
+                onError(e);
+            } catch (InterruptedException e) {
+                failed = true;
+            } finally {
+                if (ticket != null) {
+                    ticket.release();
+                }
+                BufferPool.getInstance().release(buffer);
+                synchronized (this) {
+                    finished = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * 等待下载完成
+         *
+         * @return 是否下载成功
+         */
+        boolean awaitCompleted() throws ProxyCacheException {
+            if (started.compareAndSet(false, true)) {
+                // 线程池中还没有开始执行，直接在当前线程下载，避免线程池被等待分段的下载线程占满
+                fetch();
+            }
+            synchronized (this) {
+                while (!finished) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedProxyCacheException("Waiting segment is interrupted!", e);
+                    }
+                }
+                return !failed;
+            }
+        }
+
+        /**
+         * @return 是否已经下载成功，不会等待
+         */
+        synchronized boolean isCompleted() {
+            return finished && !failed;
+        }
+    }
+
+    /**
+     * 下载一个分段到临时文件，完成后由{@link #readSource()}按顺序写入缓存，不在内存中保存整个分段；
+     * 临时文件在{@link #close()}时删除
+     */
+    final class SegmentFetch extends RangeFetch {
+
+        private final File file;
+        private final RandomAccessFile dataFile;
+        private boolean closed;
+
+        SegmentFetch(Source source, long start, int length, int priority, File file) throws IOException {
+            super(source, start, length, priority);
+            this.file = file;
+            this.dataFile = new RandomAccessFile(file, "rw");
+        }
+
+        @Override
+        protected void write(int position, byte[] buffer, int count) throws ProxyCacheException {
+            synchronized (file) {
+                if (closed) {
+                    throw new InterruptedProxyCacheException("Segment file " + file + " is closed");
+                }
+                try {
+                    dataFile.seek(position);
+                    dataFile.write(buffer, 0, count);
+                } catch (IOException e) {
+                    throw new ProxyCacheException("Error writing segment to " + file, e);
+                }
+            }
+        }
+
+        /**
+         * 读取已经下载完成的分段
+         *
+         * @param position 相对start的位置
+         * @return 读取的字节数，大于0
+         */
+        int read(byte[] buffer, int position, int count) throws ProxyCacheException {
+            synchronized (file) {
+                try {
+                    if (closed) {
+                        throw new IOException("file is closed");
+                    }
+                    dataFile.seek(position);
+                    int readBytes = dataFile.read(buffer, 0, count);
+                    if (readBytes <= 0) {
+                        throw new IOException("unexpected end of file");
+                    }
+                    return readBytes;
+                } catch (IOException e) {
+                    throw new ProxyCacheException("Error reading segment at " + position + " from " + file, e);
+                }
+            }
+        }
+
+        /**
+         * 停止下载并删除临时文件，可以重复调用
+         */
+        void close() {
+            cancel();
+            synchronized (file) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    dataFile.close();
+                } catch (IOException e) {
+                    HttpProxyCacheDebuger.printfError("Error closing segment file " + file, e);
+                }
+            }
+            if (!file.delete()) {
+                HttpProxyCacheDebuger.printfError("Error deleting segment file " + file);
+            }
+        }
+    }
+
     private class SourceReaderRunnable implements Runnable {
 
         @Override
         public void run() {
-            readSource();
+            Thread thread = Thread.currentThread();
+            String name = thread.getName();
+            synchronized (stopLock) {
+                if (stopped) {
+                    sourceReading = false;
+                    return;
+                }
+                sourceReaderThread = thread;
+            }
+            thread.setName("Source reader for " + source);
+            try {
+                readSource();
+            } finally {
+                synchronized (stopLock) {
+                    sourceReaderThread = null;
+                    // 清除shutdown时的中断标记，线程还要执行其他任务
+                    Thread.interrupted();
+                }
+                thread.setName(name);
+                sourceReading = false;
+                notifySourceDataWaiters();
+            }
         }
     }
 
+    /**
+     * @param segmentCount 同时下载的分段数，大于1时开启多连接并行下载
+     */
+    public void setSegmentCount(int segmentCount) {
+        this.segmentCount = segmentCount;
+    }
+
+    /**
+     * @param retryPolicy 下载出错后的重试策略
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = checkNotNull(retryPolicy);
+    }
+
+    /**
+     * 暂停时只下载播放器已经请求的数据，恢复后继续预读
+     */
     public void setPause(boolean pause) {
         this.pause = pause;
+        if (!pause && readPosition > 0) {
+            try {
+                resumeReadingIfNeeded();
+            } catch (ProxyCacheException e) {
+                onError(e);
+            }
+        }
+    }
+
+    /**
+     * 控制预读的范围，已缓存的数据超过播放器读取位置window字节时暂停下载，少于lowWater字节时恢复
+     *
+     * @param window   预读的字节数，0表示不限制
+     * @param lowWater 恢复下载的字节数，不大于window
+     */
+    public void setReadAheadWindow(long window, long lowWater) {
+        checkArgument(window >= 0 && lowWater >= 0 && lowWater <= window, "Invalid read ahead window " + window + "/" + lowWater);
+        this.readAheadWindow = window;
+        this.readAheadLowWater = lowWater;
     }
 
     public void setShutdownAfterPrecache(boolean shutdownAfterPrecache) {
         this.shutdownAfterPrecache = shutdownAfterPrecache;
+        DownloadScheduler.Ticket ticket = sourceTicket;
+        if (ticket != null) {
+            ticket.setPriority(getPriority());
+        }
+    }
+
+    /**
+     * @param sourceReaderExecutor 读取数据源的线程池
+     */
+    public void setSourceReaderExecutor(ExecutorService sourceReaderExecutor) {
+        this.sourceReaderExecutor = checkNotNull(sourceReaderExecutor);
+    }
+
+    /**
+     * @param downloadScheduler 所有url共享的下载调度器
+     */
+    public void setDownloadScheduler(DownloadScheduler downloadScheduler) {
+        this.downloadScheduler = checkNotNull(downloadScheduler);
+    }
+
+    /**
+     * @param bandwidthLimiter 所有url共享的预缓存限速
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * @return 下载的优先级，预缓存的优先级低于播放
+     */
+    protected int getPriority() {
+        return shutdownAfterPrecache ? DownloadScheduler.PRIORITY_PRECACHE : DownloadScheduler.PRIORITY_PLAYING;
     }
 
     public void setShutdownCache(boolean shutdownPreCache) {
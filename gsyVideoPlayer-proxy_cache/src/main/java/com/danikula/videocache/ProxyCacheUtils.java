@@ -5,8 +5,11 @@ import android.webkit.MimeTypeMap;
 
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.security.MessageDigest;
@@ -32,6 +35,78 @@ public class ProxyCacheUtils {
         return TextUtils.isEmpty(extension) ? null : mimes.getMimeTypeFromExtension(extension);
     }
 
+    /**
+     * 从GET请求的响应头获取文件总长度：206响应取Content-Range中的总长度，200响应取Content-Length
+     *
+     * @return 长度；无法获取时返回-1
+     */
+    static long getSourceLength(int responseCode, String contentRange, String contentLength) {
+        try {
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL && contentRange != null) {
+                int slash = contentRange.lastIndexOf('/');
+                String total = slash < 0 ? "" : contentRange.substring(slash + 1).trim();
+                return total.isEmpty() || "*".equals(total) ? -1 : Long.parseLong(total);
+            }
+            if (responseCode == HttpURLConnection.HTTP_OK && contentLength != null) {
+                return Long.parseLong(contentLength.trim());
+            }
+        } catch (NumberFormatException e) {
+            HttpProxyCacheDebuger.printfWarning("Invalid length in response: " + contentRange + ", " + contentLength);
+        }
+        return -1;
+    }
+
+    /**
+     * 断点续传时发送的If-Range，只有强ETag可以用于If-Range
+     *
+     * @return If-Range请求头的值；不需要发送时返回null
+     */
+    static String getIfRange(long offset, String etag) {
+        return offset > 0 && isStrongEtag(etag) ? etag : null;
+    }
+
+    static boolean isStrongEtag(String etag) {
+        return etag != null && !etag.startsWith("W/");
+    }
+
+    /**
+     * 判断源文件是否已经改变，改变后已经缓存的数据不能继续使用。
+     * <p>
+     * 只有文件长度不同，或者If-Range不匹配（响应200）并且返回了不同的强ETag时才认为改变；
+     * CDN不同节点的ETag可能不同，弱ETag也可能在内容不变时改变，206响应中ETag不同不算改变
+     *
+     * @param known        已知的文件信息
+     * @param ifRange      请求时发送的If-Range，没有时为null
+     * @param responseCode 响应码
+     * @param length       响应头中的文件总长度，未知时为-1
+     * @param etag         响应头中的ETag，没有时为null
+     */
+    static boolean isSourceChanged(SourceInfo known, String ifRange, int responseCode, long length, String etag) {
+        if (known.length > 0 && length > 0 && known.length != length) {
+            return true;
+        }
+        // If-Range不匹配时服务器返回完整的新文件；ETag相同、弱ETag或者没有ETag时可能只是服务器不支持Range
+        return ifRange != null && responseCode == HttpURLConnection.HTTP_OK && isStrongEtag(etag) && !ifRange.equals(etag);
+    }
+
+    /**
+     * 读取并丢弃count字节，服务器不支持Range返回完整文件时跳到请求的位置
+     */
+    static void skipFully(InputStream in, long count) throws IOException {
+        byte[] buffer = BufferPool.getInstance().acquire();
+        try {
+            while (count > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+                if (read < 0) {
+                    throw new EOFException("Source ended " + count + " bytes before requested offset");
+                }
+                count -= read;
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
     static void assertBuffer(byte[] buffer, long offset, int length) {
         checkNotNull(buffer, "Buffer must be not null!");
         checkArgument(offset >= 0, "Data offset must be positive!");
@@ -0,0 +1,146 @@
+package com.danikula.videocache;
+
+import android.text.TextUtils;
+
+import com.danikula.videocache.utils.LogUtil;
+
+import java.net.HttpURLConnection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 记住原始url重定向后的最终地址，后续的Range请求直接请求最终地址，不用每次都经过重定向。
+ * <p>
+ * 有效期优先使用重定向响应的Cache-Control: max-age，没有时301/308默认1天，其他重定向默认5分钟；
+ * 最终地址返回4xx/5xx时由数据源调用{@link #remove(String)}删除并重新从原始url请求。
+ */
+public class RedirectCache {
+
+    private static final String TAG = RedirectCache.class.getSimpleName();
+
+    //最多缓存的url数量
+    private static final int MAX_ENTRIES = 64;
+
+    //临时重定向（302/303/307）的默认有效期
+    private static final long TEMPORARY_REDIRECT_TTL = 5 * 60 * 1000;
+
+    //永久重定向（301/308）的默认有效期
+    private static final long PERMANENT_REDIRECT_TTL = 24 * 60 * 60 * 1000;
+
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
+
+    private static volatile RedirectCache instance;
+
+    private final Map<String, SourceInfo> entries = new LinkedHashMap<String, SourceInfo>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SourceInfo> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private RedirectCache() {
+    }
+
+    public static RedirectCache getInstance() {
+        if (instance == null) {
+            synchronized (RedirectCache.class) {
+                if (instance == null) {
+                    instance = new RedirectCache();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return 重定向后的地址；没有缓存或者已经过期时返回null
+     */
+    public synchronized String get(String url) {
+        SourceInfo entry = entries.get(url);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.redirectExpires <= System.currentTimeMillis()) {
+            entries.remove(url);
+            return null;
+        }
+        return entry.redirectUrl;
+    }
+
+    /**
+     * @param expires 过期时间，小于等于当前时间时不缓存
+     */
+    public synchronized void put(String url, String redirectUrl, long expires) {
+        if (TextUtils.isEmpty(redirectUrl) || url.equals(redirectUrl) || expires <= System.currentTimeMillis()) {
+            return;
+        }
+        LogUtil.i(TAG, "cache redirect " + url + " -> " + redirectUrl);
+        entries.put(url, new SourceInfo(url, 0, null, redirectUrl, expires));
+    }
+
+    public synchronized void remove(String url) {
+        if (entries.remove(url) != null) {
+            LogUtil.i(TAG, "remove redirect of " + url);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * 从{@link com.danikula.videocache.sourcestorage.SourceInfoStorage}中保存的信息恢复重定向地址，内存中已有时不覆盖
+     */
+    public synchronized void restore(SourceInfo sourceInfo) {
+        if (sourceInfo != null && !entries.containsKey(sourceInfo.url)) {
+            put(sourceInfo.url, sourceInfo.redirectUrl, sourceInfo.redirectExpires);
+        }
+    }
+
+    /**
+     * 在保存到{@link com.danikula.videocache.sourcestorage.SourceInfoStorage}之前附加当前的重定向地址
+     */
+    public SourceInfo attach(SourceInfo sourceInfo) {
+        String redirectUrl;
+        long expires;
+        synchronized (this) {
+            SourceInfo entry = entries.get(sourceInfo.url);
+            redirectUrl = entry == null ? null : entry.redirectUrl;
+            expires = entry == null ? 0 : entry.redirectExpires;
+        }
+        return new SourceInfo(sourceInfo.url, sourceInfo.length, sourceInfo.mime, redirectUrl, expires, sourceInfo.etag);
+    }
+
+    /**
+     * 根据重定向响应计算过期时间
+     *
+     * @param code         响应码
+     * @param cacheControl Cache-Control响应头，可以为null
+     * @return 过期时间；不允许缓存时返回0
+     */
+    static long getExpires(int code, String cacheControl) {
+        long ttl = code == HttpURLConnection.HTTP_MOVED_PERM || code == HTTP_PERMANENT_REDIRECT
+                ? PERMANENT_REDIRECT_TTL : TEMPORARY_REDIRECT_TTL;
+        if (cacheControl != null) {
+            String value = cacheControl.toLowerCase(Locale.US);
+            if (value.contains("no-store") || value.contains("no-cache")) {
+                return 0;
+            }
+            int index = value.indexOf("max-age=");
+            if (index >= 0) {
+                int start = index + "max-age=".length();
+                int end = start;
+                while (end < value.length() && Character.isDigit(value.charAt(end))) {
+                    end++;
+                }
+                try {
+                    ttl = Long.parseLong(value.substring(start, end)) * 1000;
+                } catch (NumberFormatException e) {
+                    LogUtil.e(TAG, "Invalid Cache-Control: " + cacheControl);
+                }
+            }
+        }
+        return ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+    }
+}
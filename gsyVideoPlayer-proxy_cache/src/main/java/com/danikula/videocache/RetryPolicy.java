@@ -0,0 +1,76 @@
+package com.danikula.videocache;
+
+import java.io.FileNotFoundException;
+import java.util.Random;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+
+/**
+ * 下载出错后的重试策略：指数退避加随机抖动，重试时从已缓存的位置继续下载。
+ * <p>
+ * 第n次重试前等待的时间在[d/2, d]之间随机，d = min(maxDelay, baseDelay * 2^n)；
+ * 避免网络恢复时大量下载同时重试。文件不存在（404/410）和被中断的错误不重试。
+ */
+public class RetryPolicy {
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, 500, 10 * 1000);
+
+    /**
+     * 出错后不重试
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0, 0);
+
+    //退避时间最多翻倍的次数，避免溢出
+    private static final int MAX_BACKOFF_SHIFT = 20;
+
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+
+    /**
+     * @param maxRetries 连续出错时最多重试的次数，下载有进展后重新计数
+     * @param baseDelay  第一次重试前等待的时间，毫秒
+     * @param maxDelay   最长的等待时间，毫秒
+     */
+    public RetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+        checkArgument(maxRetries >= 0, "Max retries must be non-negative!");
+        checkArgument(baseDelay >= 0 && maxDelay >= baseDelay, "Invalid retry delays: " + baseDelay + ".." + maxDelay);
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @param retryCount 已经连续重试的次数
+     * @param error      本次的错误
+     */
+    public boolean shouldRetry(int retryCount, Throwable error) {
+        if (retryCount >= maxRetries || error instanceof InterruptedProxyCacheException) {
+            return false;
+        }
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof FileNotFoundException) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param retryCount 已经连续重试的次数
+     * @return 下一次重试前等待的时间，毫秒
+     */
+    public long getDelay(int retryCount) {
+        long delay = Math.min(maxDelay, baseDelay << Math.min(retryCount, MAX_BACKOFF_SHIFT));
+        long half = delay / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (delay - half));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{maxRetries=" + maxRetries + ", baseDelay=" + baseDelay + ", maxDelay=" + maxDelay + "}";
+    }
+}
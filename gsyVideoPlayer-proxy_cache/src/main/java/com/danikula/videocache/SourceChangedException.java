@@ -0,0 +1,11 @@
+package com.danikula.videocache;
+
+/**
+ * 断点续传时发现源文件的长度或者ETag已经改变，已经缓存的数据需要丢弃
+ */
+public class SourceChangedException extends ProxyCacheException {
+
+    public SourceChangedException(String message) {
+        super(message);
+    }
+}
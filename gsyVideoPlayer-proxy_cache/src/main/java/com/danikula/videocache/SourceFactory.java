@@ -0,0 +1,22 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.headers.HeaderInjector;
+import com.danikula.videocache.sourcestorage.SourceInfoStorage;
+
+/**
+ * Factory for {@link UrlSource} used to download videos.
+ * <p>
+ * See {@link HttpUrlSourceFactory} and {@link OkHttpUrlSourceFactory}.
+ */
+public interface SourceFactory {
+
+    /**
+     * Creates new source for url.
+     *
+     * @param url               url of video.
+     * @param sourceInfoStorage storage for length and mime of video.
+     * @param headerInjector    injector of custom request headers.
+     * @return new source.
+     */
+    UrlSource newSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector);
+}
@@ -11,10 +11,40 @@ public class SourceInfo {
     public final long length;
     public final String mime;
 
+    /**
+     * 重定向后的地址，没有时为null
+     */
+    public final String redirectUrl;
+
+    /**
+     * 重定向地址的过期时间
+     */
+    public final long redirectExpires;
+
+    /**
+     * 源文件的ETag，断点续传时用来判断文件是否改变，没有时为null
+     */
+    public final String etag;
+
     public SourceInfo(String url, long length, String mime) {
+        this(url, length, mime, null);
+    }
+
+    public SourceInfo(String url, long length, String mime, String etag) {
+        this(url, length, mime, null, 0, etag);
+    }
+
+    public SourceInfo(String url, long length, String mime, String redirectUrl, long redirectExpires) {
+        this(url, length, mime, redirectUrl, redirectExpires, null);
+    }
+
+    public SourceInfo(String url, long length, String mime, String redirectUrl, long redirectExpires, String etag) {
         this.url = url;
         this.length = length;
         this.mime = mime;
+        this.redirectUrl = redirectUrl;
+        this.redirectExpires = redirectExpires;
+        this.etag = etag;
     }
 
     @Override
@@ -23,6 +53,8 @@ public class SourceInfo {
                 "url='" + url + '\'' +
                 ", length=" + length +
                 ", mime='" + mime + '\'' +
+                ", redirectUrl='" + redirectUrl + '\'' +
+                ", etag='" + etag + '\'' +
                 '}';
     }
 }
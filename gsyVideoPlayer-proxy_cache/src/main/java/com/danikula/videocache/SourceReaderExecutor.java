@@ -0,0 +1,76 @@
+package com.danikula.videocache;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+
+/**
+ * 读取数据源的线程池，{@link ProxyCache}的下载线程和并行下载的分段在这里执行，不再每次下载都创建新线程。
+ * <p>
+ * 线程数有上限，超过时任务排队；空闲{@link #KEEP_ALIVE_SECONDS}秒后线程退出，不播放时不占用线程。
+ */
+public final class SourceReaderExecutor {
+
+    /**
+     * 默认的线程数
+     */
+    public static final int DEFAULT_POOL_SIZE = 16;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private SourceReaderExecutor() {
+    }
+
+    /**
+     * @param poolSize       最多的线程数
+     * @param threadPriority 线程优先级，{@link Process#setThreadPriority(int)}的取值，如{@link Process#THREAD_PRIORITY_DEFAULT}
+     */
+    public static ExecutorService newExecutor(int poolSize, int threadPriority) {
+        checkArgument(poolSize > 0, "Pool size must be positive!");
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new SourceReaderThreadFactory(threadPriority));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return 没有通过{@link HttpProxyCacheServer.Builder}配置时使用的线程池
+     */
+    static ExecutorService getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    private static final class DefaultHolder {
+        static final ExecutorService INSTANCE = newExecutor(DEFAULT_POOL_SIZE, Process.THREAD_PRIORITY_DEFAULT);
+    }
+
+    private static final class SourceReaderThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger();
+        private final int threadPriority;
+
+        SourceReaderThreadFactory(int threadPriority) {
+            this.threadPriority = threadPriority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(threadPriority);
+                    runnable.run();
+                }
+            }, "Source reader #" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.utils.ChunkSizeController;
+
+/**
+ * {@link Source} for http resource used by {@link HttpProxyCache}.
+ */
+public interface UrlSource extends Source {
+
+    /**
+     * Opens source for bytes {@code [offset, end)} using one range request instead of requests sized by
+     * {@link #getChunkSizeController()}.
+     *
+     * @param offset offset in bytes for source.
+     * @param end    end of requested range (exclusive), {@code -1} to use chunk sized requests as {@link #open(long)} does.
+     * @throws ProxyCacheException if error occur while opening source.
+     */
+    void open(long offset, long end) throws ProxyCacheException;
+
+    /**
+     * Returns url of this source.
+     *
+     * @return url.
+     */
+    String getUrl();
+
+    /**
+     * Returns mime of resource, fetches it from network if it is unknown.
+     *
+     * @return mime or {@code null} if it can't be fetched.
+     * @throws ProxyCacheException if error occur while fetching source info.
+     */
+    String getMime() throws ProxyCacheException;
+
+    /**
+     * Returns length known without network request, e.g. from {@link com.danikula.videocache.sourcestorage.SourceInfoStorage}.
+     *
+     * @return length or {@code -1} if length is unknown yet.
+     */
+    long getKnownLength();
+
+    /**
+     * Returns mime known without network request.
+     *
+     * @return mime or {@code null} if mime is unknown yet.
+     */
+    String getKnownMime();
+
+    /**
+     * Fetches length and mime of resource using HEAD request.
+     *
+     * @throws ProxyCacheException if error occur while fetching source info.
+     */
+    void newFetchContentInfo() throws ProxyCacheException;
+
+    /**
+     * Returns controller of range request length, it is shared with copies of this source.
+     *
+     * @return chunk size controller.
+     */
+    ChunkSizeController getChunkSizeController();
+
+    /**
+     * Creates new source for the same url sharing known source info, new source should be opened and closed separately.
+     *
+     * @return new source.
+     */
+    UrlSource copy();
+}
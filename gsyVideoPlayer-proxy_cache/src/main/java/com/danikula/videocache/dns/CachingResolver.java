@@ -0,0 +1,186 @@
+package com.danikula.videocache.dns;
+
+import com.danikula.videocache.utils.LogUtil;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * 所有数据源共享的dns缓存，真正的解析由{@link #setResolver(Resolver)}设置的{@link Resolver}完成，默认为{@link SystemResolver}。
+ * <p>
+ * 缓存过期后先返回旧的结果，同时在后台刷新，超过{@link #MAX_STALE}之后才同步解析；
+ * 配合{@link #prefetch(Collection)}提前解析即将播放的视频的域名，起播时不需要等待dns。
+ */
+public class CachingResolver implements Resolver {
+
+    private static final String TAG = CachingResolver.class.getSimpleName();
+
+    //解析结果的默认有效期
+    private static final long DEFAULT_TTL = 60 * 1000;
+
+    //过期后仍然可以使用旧结果（同时后台刷新）的时长
+    private static final long MAX_STALE = 10 * 60 * 1000;
+
+    //最多缓存的域名数量，超过时清空
+    private static final int MAX_ENTRIES = 256;
+
+    private static volatile CachingResolver instance;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Dns resolver");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile Resolver resolver = new SystemResolver();
+    private volatile long ttl = DEFAULT_TTL;
+
+    private CachingResolver() {
+    }
+
+    public static CachingResolver getInstance() {
+        if (instance == null) {
+            synchronized (CachingResolver.class) {
+                if (instance == null) {
+                    instance = new CachingResolver();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 设置真正的解析器，已经缓存的结果会被清除
+     */
+    public void setResolver(Resolver resolver) {
+        this.resolver = checkNotNull(resolver);
+        entries.clear();
+    }
+
+    public Resolver getResolver() {
+        return resolver;
+    }
+
+    /**
+     * @return 是否设置了系统dns以外的解析器；只有这时{@link com.danikula.videocache.HttpUrlSource}才用解析出的IP直连
+     */
+    public boolean isCustomResolver() {
+        return resolver.getClass() != SystemResolver.class;
+    }
+
+    /**
+     * @param ttl 解析结果的有效期，毫秒
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    @Override
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+        Entry entry = entries.get(host);
+        long now = System.currentTimeMillis();
+        if (entry != null) {
+            long age = now - entry.resolvedAt;
+            if (age < ttl) {
+                return entry.addresses;
+            }
+            if (age < ttl + MAX_STALE) {
+                refreshAsync(host, entry);
+                return entry.addresses;
+            }
+        }
+        return resolveAndCache(host);
+    }
+
+    /**
+     * 在后台解析域名并缓存，已经缓存并且没有过期的域名不会重复解析
+     *
+     * @param hosts 域名列表
+     */
+    public void prefetch(Collection<String> hosts) {
+        long now = System.currentTimeMillis();
+        for (String host : hosts) {
+            Entry entry = entries.get(host);
+            if (entry == null || now - entry.resolvedAt >= ttl) {
+                refreshAsync(host, entry);
+            }
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return host是否是ip字面量，ip不需要解析
+     */
+    public static boolean isIpAddress(String host) {
+        if (host.indexOf(':') >= 0) {
+            return true;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return !host.isEmpty();
+    }
+
+    private List<InetAddress> resolveAndCache(String host) throws UnknownHostException {
+        List<InetAddress> addresses = resolver.resolve(host);
+        if (addresses == null || addresses.isEmpty()) {
+            throw new UnknownHostException("No address for " + host);
+        }
+        if (entries.size() >= MAX_ENTRIES) {
+            entries.clear();
+        }
+        entries.put(host, new Entry(addresses, System.currentTimeMillis()));
+        return addresses;
+    }
+
+    private void refreshAsync(final String host, Entry entry) {
+        if (entry != null && !entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refreshExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    resolveAndCache(host);
+                } catch (UnknownHostException e) {
+                    LogUtil.e(TAG, "Error resolving " + host + ": " + e);
+                    Entry stale = entries.get(host);
+                    if (stale != null) {
+                        stale.refreshing.set(false);
+                    }
+                }
+            }
+        });
+    }
+
+    private static final class Entry {
+
+        private final List<InetAddress> addresses;
+        private final long resolvedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(List<InetAddress> addresses, long resolvedAt) {
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+}
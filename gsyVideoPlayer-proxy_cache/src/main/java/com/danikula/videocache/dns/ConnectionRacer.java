@@ -0,0 +1,340 @@
+package com.danikula.videocache.dns;
+
+import com.danikula.videocache.utils.LogUtil;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 域名解析到多个IP时，按照Happy Eyeballs（RFC 8305）的方式选择连接的IP：
+ * 按顺序每隔{@link #CONNECTION_ATTEMPT_DELAY}向下一个IP发起TCP连接，某个连接失败时立即尝试下一个，使用最先连接成功的IP。
+ * <p>
+ * 每个IP的连接耗时和失败次数会被记录下来，下一次优先尝试快的IP；IPv4和IPv6交替排列，一种协议不通时很快切换到另一种。
+ * 竞速选出的IP在{@link #PREFERRED_TTL}内直接使用，期间同一个域名的请求不再竞速，也能复用连接池中的连接。
+ * 竞速的连接只用来选择IP，调用方按{@link #select(String, int, int)}返回的顺序重新连接，失败时换下一个IP。
+ */
+public class ConnectionRacer {
+
+    private static final String TAG = ConnectionRacer.class.getSimpleName();
+
+    //两次连接尝试之间的间隔，RFC 8305推荐250ms
+    private static final long CONNECTION_ATTEMPT_DELAY = 250;
+
+    //竞速选出的IP直接使用的时长
+    private static final long PREFERRED_TTL = 5 * 60 * 1000;
+
+    //没有测量值的IP按这个连接耗时排序
+    private static final double UNKNOWN_CONNECT_TIME = 300;
+
+    //每次连续失败增加的排序耗时
+    private static final double FAILURE_PENALTY = 2000;
+
+    //新测量值的权重
+    private static final double SMOOTHING_FACTOR = 0.3;
+
+    //还有其他IP可以尝试时，连接超时时间为测量的连接耗时的倍数，但不小于MIN_CONNECT_TIMEOUT
+    private static final double CONNECT_TIMEOUT_FACTOR = 4;
+    private static final long MIN_CONNECT_TIMEOUT = 1000;
+
+    //最多记录的IP数量，超过时清空
+    private static final int MAX_ENTRIES = 512;
+
+    private static volatile ConnectionRacer instance;
+
+    private final ConcurrentMap<InetAddress, AddressStats> stats = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Preferred> preferred = new ConcurrentHashMap<>();
+    private final ExecutorService connectExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Connection racer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private ConnectionRacer() {
+    }
+
+    public static ConnectionRacer getInstance() {
+        if (instance == null) {
+            synchronized (ConnectionRacer.class) {
+                if (instance == null) {
+                    instance = new ConnectionRacer();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 通过{@link CachingResolver}解析域名，并选出连接最快的IP
+     *
+     * @param host    域名
+     * @param port    端口
+     * @param timeout 连接超时时间，毫秒
+     * @return 按{@link #sort(String, List)}排序的所有IP，选中的IP排在最前面；真正连接失败时按顺序尝试下一个
+     * @throws java.net.UnknownHostException 域名无法解析
+     * @throws IOException                   所有IP都无法连接
+     */
+    public List<InetAddress> select(String host, int port, int timeout) throws IOException {
+        List<InetAddress> addresses = CachingResolver.getInstance().resolve(host);
+        Preferred current = preferred.get(host);
+        if (current != null && current.expires > System.currentTimeMillis() && addresses.contains(current.address)) {
+            return sort(host, addresses);
+        }
+        if (addresses.size() == 1) {
+            return addresses;
+        }
+        InetAddress winner = race(sort(host, addresses), port, timeout);
+        LogUtil.i(TAG, "Select " + winner + " for " + host + " from " + addresses);
+        if (preferred.size() >= MAX_ENTRIES) {
+            preferred.clear();
+        }
+        preferred.put(host, new Preferred(winner, System.currentTimeMillis() + PREFERRED_TTL));
+        return sort(host, addresses);
+    }
+
+    /**
+     * 后面还有其他IP可以尝试时，不必等满timeout：按测量的连接耗时放宽{@link #CONNECT_TIMEOUT_FACTOR}倍
+     *
+     * @param timeout 最长的连接超时时间，毫秒
+     * @return 连接address的超时时间，毫秒
+     */
+    public int getConnectTimeout(InetAddress address, int timeout) {
+        AddressStats addressStats = stats.get(address);
+        double connectTime = addressStats == null ? UNKNOWN_CONNECT_TIME : addressStats.getConnectTime();
+        return (int) Math.min(timeout, Math.max(MIN_CONNECT_TIMEOUT, connectTime * CONNECT_TIMEOUT_FACTOR));
+    }
+
+    /**
+     * 按照连接耗时和失败次数排序，IPv4和IPv6交替排列；域名已经选出的IP排在最前面
+     */
+    public List<InetAddress> sort(String host, List<InetAddress> addresses) {
+        final Map<InetAddress, Double> scores = new HashMap<>();
+        for (InetAddress address : addresses) {
+            AddressStats addressStats = stats.get(address);
+            scores.put(address, addressStats == null ? UNKNOWN_CONNECT_TIME : addressStats.getScore());
+        }
+        Preferred current = preferred.get(host);
+        if (current != null && scores.containsKey(current.address)) {
+            scores.put(current.address, -1d);
+        }
+        List<InetAddress> sorted = new ArrayList<>(addresses);
+        Collections.sort(sorted, new Comparator<InetAddress>() {
+            @Override
+            public int compare(InetAddress lhs, InetAddress rhs) {
+                return Double.compare(scores.get(lhs), scores.get(rhs));
+            }
+        });
+        return interleave(sorted);
+    }
+
+    /**
+     * 使用选出的IP请求失败，下一次请求重新竞速
+     */
+    public void onFailed(String host, InetAddress address) {
+        preferred.remove(host);
+        getStats(address).onFailed();
+    }
+
+    /**
+     * 不知道具体IP时使用，惩罚域名当前选出的IP
+     */
+    public void onFailed(String host) {
+        Preferred current = preferred.remove(host);
+        if (current != null) {
+            getStats(current.address).onFailed();
+        }
+    }
+
+    public void clear() {
+        stats.clear();
+        preferred.clear();
+    }
+
+    private InetAddress race(List<InetAddress> candidates, int port, int timeout) throws IOException {
+        BlockingQueue<Attempt> results = new LinkedBlockingQueue<>();
+        List<Attempt> attempts = new ArrayList<>(candidates.size());
+        long deadline = System.currentTimeMillis() + timeout;
+        IOException lastError = null;
+        int failed = 0;
+        try {
+            while (true) {
+                if (attempts.size() < candidates.size()) {
+                    Attempt attempt = new Attempt(candidates.get(attempts.size()), port, timeout, results);
+                    attempts.add(attempt);
+                    connectExecutor.execute(attempt);
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Connect timed out to " + candidates);
+                }
+                long wait = attempts.size() < candidates.size() ? Math.min(CONNECTION_ATTEMPT_DELAY, remaining) : remaining;
+                Attempt done = results.poll(wait, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    continue;
+                }
+                if (done.error == null) {
+                    return done.address;
+                }
+                LogUtil.i(TAG, "Error connecting to " + done.address + ": " + done.error);
+                lastError = done.error;
+                if (++failed == candidates.size()) {
+                    throw lastError;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while connecting to " + candidates);
+        } finally {
+            // 只用来选择IP，HttpURLConnection无法接管已经建立的连接；真正的连接失败时由调用方换下一个IP
+            for (Attempt attempt : attempts) {
+                attempt.cancel();
+            }
+        }
+    }
+
+    private AddressStats getStats(InetAddress address) {
+        AddressStats addressStats = stats.get(address);
+        if (addressStats == null) {
+            if (stats.size() >= MAX_ENTRIES) {
+                stats.clear();
+            }
+            AddressStats newStats = new AddressStats();
+            addressStats = stats.putIfAbsent(address, newStats);
+            if (addressStats == null) {
+                addressStats = newStats;
+            }
+        }
+        return addressStats;
+    }
+
+    /**
+     * 从排在最前的IP的协议开始，IPv4和IPv6交替排列，同一种协议内保持原来的顺序
+     */
+    private static List<InetAddress> interleave(List<InetAddress> sorted) {
+        if (sorted.isEmpty()) {
+            return sorted;
+        }
+        boolean firstIsV6 = sorted.get(0) instanceof Inet6Address;
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        for (InetAddress address : sorted) {
+            (address instanceof Inet6Address == firstIsV6 ? first : second).add(address);
+        }
+        List<InetAddress> result = new ArrayList<>(sorted.size());
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                result.add(first.get(i));
+            }
+            if (i < second.size()) {
+                result.add(second.get(i));
+            }
+        }
+        return result;
+    }
+
+    private final class Attempt implements Runnable {
+
+        private final InetAddress address;
+        private final int port;
+        private final int timeout;
+        private final BlockingQueue<Attempt> results;
+        private final Socket socket = new Socket();
+        private volatile boolean cancelled;
+        private IOException error;
+
+        Attempt(InetAddress address, int port, int timeout, BlockingQueue<Attempt> results) {
+            this.address = address;
+            this.port = port;
+            this.timeout = timeout;
+            this.results = results;
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.nanoTime();
+            try {
+                socket.connect(new InetSocketAddress(address, port), timeout);
+                getStats(address).onConnected((System.nanoTime() - startTime) / 1000000);
+            } catch (IOException e) {
+                // 被取消的连接不算失败
+                if (!cancelled) {
+                    getStats(address).onFailed();
+                }
+                error = e;
+            } finally {
+                if (cancelled) {
+                    closeSocket();
+                }
+            }
+            results.add(this);
+        }
+
+        void cancel() {
+            cancelled = true;
+            closeSocket();
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LogUtil.e(TAG, "Error closing socket to " + address + ": " + e);
+            }
+        }
+    }
+
+    private static final class AddressStats {
+
+        //毫秒，未知时为-1
+        private double connectTime = -1;
+        private int failures;
+
+        synchronized void onConnected(long time) {
+            connectTime = connectTime < 0 ? time : connectTime + SMOOTHING_FACTOR * (time - connectTime);
+            failures = 0;
+        }
+
+        synchronized void onFailed() {
+            failures++;
+        }
+
+        synchronized double getConnectTime() {
+            return connectTime < 0 ? UNKNOWN_CONNECT_TIME : connectTime;
+        }
+
+        synchronized double getScore() {
+            return (connectTime < 0 ? UNKNOWN_CONNECT_TIME : connectTime) + failures * FAILURE_PENALTY;
+        }
+    }
+
+    private static final class Preferred {
+
+        private final InetAddress address;
+        private final long expires;
+
+        Preferred(InetAddress address, long expires) {
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+}
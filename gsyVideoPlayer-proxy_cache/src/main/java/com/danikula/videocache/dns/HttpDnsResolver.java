@@ -0,0 +1,50 @@
+package com.danikula.videocache.dns;
+
+import com.alibaba.sdk.android.httpdns.HttpDnsService;
+import com.danikula.videocache.utils.LogUtil;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * {@link Resolver} based on Alibaba HttpDNS.
+ * <p>
+ * HttpDNS异步接口还没有结果时使用备用的解析器（默认为系统dns），结果由{@link CachingResolver}缓存，
+ * 缓存刷新时会再次尝试HttpDNS。
+ */
+public class HttpDnsResolver implements Resolver {
+
+    private static final String TAG = HttpDnsResolver.class.getSimpleName();
+
+    private final HttpDnsService httpDns;
+    private final Resolver fallback;
+
+    public HttpDnsResolver(HttpDnsService httpDns) {
+        this(httpDns, new SystemResolver());
+    }
+
+    public HttpDnsResolver(HttpDnsService httpDns, Resolver fallback) {
+        this.httpDns = checkNotNull(httpDns);
+        this.fallback = checkNotNull(fallback);
+    }
+
+    @Override
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+        String[] ips = httpDns.getIpsByHostAsync(host);
+        if (ips != null && ips.length > 0) {
+            List<InetAddress> addresses = new ArrayList<>(ips.length);
+            for (String ip : ips) {
+                // ip字面量不会发起网络请求
+                addresses.add(InetAddress.getByName(ip));
+            }
+            LogUtil.i(TAG, "Get IP: " + addresses + " for host: " + host + " from HTTPDNS successfully!");
+            return addresses;
+        }
+        LogUtil.i(TAG, "HTTPDNS has no ip for " + host + " yet, use fallback");
+        return fallback.resolve(host);
+    }
+}
@@ -0,0 +1,21 @@
+package com.danikula.videocache.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+/**
+ * Resolves host names to ip addresses for upstream connections.
+ */
+public interface Resolver {
+
+    /**
+     * Resolves host name.
+     *
+     * @param host a host name to be resolved.
+     * @return not empty list of addresses.
+     * @throws UnknownHostException if host can't be resolved.
+     */
+    List<InetAddress> resolve(String host) throws UnknownHostException;
+
+}
@@ -0,0 +1,17 @@
+package com.danikula.videocache.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link Resolver} that uses system dns.
+ */
+public class SystemResolver implements Resolver {
+
+    @Override
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+        return Arrays.asList(InetAddress.getAllByName(host));
+    }
+}
@@ -1,13 +1,15 @@
 package com.danikula.videocache.file;
 
-import android.util.Log;
-
 import com.danikula.videocache.Cache;
+import com.danikula.videocache.HttpProxyCacheDebuger;
 import com.danikula.videocache.ProxyCacheException;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * {@link Cache} that uses file for storing data.
@@ -17,6 +19,8 @@ import java.io.RandomAccessFile;
 public class FileCache implements Cache {
 
     private static final String TEMP_POSTFIX = ".download";
+    //下载过程中使用的临时文件所在的子目录，不计入缓存大小，服务启动时清空
+    static final String TEMP_DIRECTORY = ".temp";
 
     private String originFileName;
 
@@ -29,6 +33,13 @@ public class FileCache implements Cache {
     }
 
     public FileCache(File file, DiskUsage diskUsage) throws ProxyCacheException {
+        this(file, diskUsage, false);
+    }
+
+    /**
+     * @param sparse 是否由{@link SparseFileCache}使用；不是时丢弃稀疏缓存留下的不连续数据
+     */
+    FileCache(File file, DiskUsage diskUsage, boolean sparse) throws ProxyCacheException {
         try {
             if (diskUsage == null) {
                 throw new NullPointerException();
@@ -39,6 +50,10 @@ public class FileCache implements Cache {
             boolean completed = file.exists();
             originFileName = file.getName();
             this.file = completed ? file : new File(file.getParentFile(), originFileName + TEMP_POSTFIX);
+            if (!completed && !sparse) {
+                // 关闭稀疏缓存后，预分配的文件中只有从0开始连续的数据有效，空洞不能当作视频数据返回
+                SparseFileCache.truncateToFilledPrefix(this.file);
+            }
             this.dataFile = new RandomAccessFile(this.file, completed ? "r" : "rw");
         } catch (IOException e) {
             throw new ProxyCacheException("Error using file " + file + " as disc cache", e);
@@ -66,21 +81,68 @@ public class FileCache implements Cache {
         }
     }
 
+    /**
+     * 将已缓存的数据通过{@link FileChannel#transferTo(long, long, WritableByteChannel)}直接写入target，不经过java堆内存。
+     * 传输过程中不持有锁，不会阻塞下载线程写入缓存。
+     *
+     * @return 传输的字节数
+     * @throws IOException         写入target失败
+     * @throws ProxyCacheException 缓存已经关闭
+     */
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException, ProxyCacheException {
+        while (true) {
+            FileChannel channel;
+            synchronized (this) {
+                channel = dataFile.getChannel();
+            }
+            try {
+                return channel.transferTo(offset, count, target);
+            } catch (ClosedChannelException e) {
+                if (channel.isOpen()) {
+                    throw e;
+                }
+                synchronized (this) {
+                    // 缓存完成时文件会重新打开，使用新的文件重试
+                    if (dataFile.getChannel() == channel) {
+                        throw new ProxyCacheException("Error transferring data from closed file " + file, e);
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     public synchronized void append(byte[] data, int length) throws ProxyCacheException {
         try {
             if (isCompleted()) {
                 throw new ProxyCacheException("Error append cache: cache file " + file + " is completed!");
             }
-            long available = available();
-            dataFile.seek(available);
-            dataFile.write(data, 0, length);
+            writeAt(available(), data, 0, length);
         } catch (IOException e) {
             String format = "Error writing %d bytes to %s from buffer with size %d";
             throw new ProxyCacheException(String.format(format, length, dataFile, data.length), e);
         }
     }
 
+    /**
+     * 在任意位置写入数据，由{@link SparseFileCache}写入不连续的区间
+     */
+    protected synchronized void writeAt(long position, byte[] data, int offset, int length) throws IOException {
+        dataFile.seek(position);
+        dataFile.write(data, offset, length);
+    }
+
+    /**
+     * @return 文件的实际长度，稀疏缓存预分配后会大于{@link #available()}
+     */
+    protected synchronized long getFileLength() throws IOException {
+        return dataFile.length();
+    }
+
+    protected synchronized void setFileLength(long length) throws IOException {
+        dataFile.setLength(length);
+    }
+
     @Override
     public synchronized void close() throws ProxyCacheException {
         try {
@@ -98,8 +160,7 @@ public class FileCache implements Cache {
         }
 
         close();
-        String fileName = file.getName().substring(0, file.getName().length() - TEMP_POSTFIX.length());
-        File completedFile = new File(file.getParentFile(), fileName);
+        File completedFile = getCompletedFile(file);
         boolean renamed = file.renameTo(completedFile);
         if (!renamed) {
             throw new ProxyCacheException("Error renaming file " + file + " to " + completedFile + " for completion!");
@@ -118,15 +179,18 @@ public class FileCache implements Cache {
         return !isTempFile(file);
     }
 
+    /**
+     * 清空未完成的缓存，源文件改变时使用；直接截断文件，不需要重新打开
+     */
     @Override
-    public void reset() {
-        try{
-            file.delete();
-
-//            this.file = new File(file.getParentFile(), originFileName + TEMP_POSTFIX);
-            this.dataFile = new RandomAccessFile(this.file, "rw");
-        } catch (Exception e) {
-            e.printStackTrace();
+    public synchronized void reset() {
+        if (isCompleted()) {
+            return;
+        }
+        try {
+            dataFile.setLength(0);
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error resetting file " + file, e);
         }
     }
 
@@ -143,4 +207,42 @@ public class FileCache implements Cache {
         return file.getName().endsWith(TEMP_POSTFIX);
     }
 
+    /**
+     * @return 缓存完成后的文件，file已经是完成的文件时直接返回
+     */
+    public static File getCompletedFile(File file) {
+        String name = file.getName();
+        if (!name.endsWith(TEMP_POSTFIX)) {
+            return file;
+        }
+        return new File(file.getParentFile(), name.substring(0, name.length() - TEMP_POSTFIX.length()));
+    }
+
+    /**
+     * 在缓存目录的临时子目录中创建临时文件，使用完由调用方删除
+     *
+     * @param file   使用临时文件的缓存文件
+     * @param suffix 临时文件的后缀
+     */
+    public static File createTempFile(File file, String suffix) throws IOException {
+        File directory = new File(file.getParentFile(), TEMP_DIRECTORY);
+        Files.makeDir(directory);
+        return File.createTempFile(getCompletedFile(file).getName(), suffix, directory);
+    }
+
+    /**
+     * 删除上次运行异常退出时留下的临时文件，需要在创建新的临时文件之前调用
+     */
+    public static void deleteTempFiles(File cacheRoot) {
+        File[] files = new File(cacheRoot, TEMP_DIRECTORY).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                HttpProxyCacheDebuger.printfError("Error deleting temp file " + file);
+            }
+        }
+    }
+
 }
@@ -5,7 +5,6 @@ import com.danikula.videocache.HttpProxyCacheDebuger;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -37,7 +36,12 @@ class Files {
         List<File> result = new LinkedList<>();
         File[] files = directory.listFiles();
         if (files != null) {
-            result = Arrays.asList(files);
+            for (File file : files) {
+                // 临时文件在子目录中，子目录不参与清理
+                if (file.isFile() && !SparseFileCache.isRangesFile(file)) {
+                    result.add(file);
+                }
+            }
             Collections.sort(result, new LastModifiedComparator());
         }
         return result;
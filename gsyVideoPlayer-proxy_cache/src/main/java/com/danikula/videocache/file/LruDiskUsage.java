@@ -19,6 +19,14 @@ public abstract class LruDiskUsage implements DiskUsage {
 
 
     private final ExecutorService workerThread = Executors.newSingleThreadExecutor();
+    private volatile OnCacheFileDeletedListener onCacheFileDeletedListener;
+
+    /**
+     * @param listener 缓存文件被删除时回调，null表示不回调
+     */
+    public void setOnCacheFileDeletedListener(OnCacheFileDeletedListener listener) {
+        this.onCacheFileDeletedListener = listener;
+    }
 
     @Override
     public void touch(File file) throws IOException {
@@ -42,6 +50,8 @@ public abstract class LruDiskUsage implements DiskUsage {
                 long fileSize = file.length();
                 boolean deleted = file.delete();
                 if (deleted) {
+                    deleteRangesFile(file);
+                    notifyDeleted(file);
                     totalCount--;
                     totalSize -= fileSize;
                     HttpProxyCacheDebuger.printfLog("Cache file " + file + " is deleted because it exceeds cache limit");
@@ -52,6 +62,24 @@ public abstract class LruDiskUsage implements DiskUsage {
         }
     }
 
+    private void deleteRangesFile(File file) {
+        File rangesFile = SparseFileCache.getRangesFile(file);
+        if (rangesFile.exists() && !rangesFile.delete()) {
+            HttpProxyCacheDebuger.printfError("Error deleting file " + rangesFile + " for trimming cache");
+        }
+    }
+
+    private void notifyDeleted(File file) {
+        OnCacheFileDeletedListener listener = onCacheFileDeletedListener;
+        if (listener != null) {
+            try {
+                listener.onCacheFileDeleted(file);
+            } catch (RuntimeException e) {
+                HttpProxyCacheDebuger.printfError("Error notifying deletion of " + file, e);
+            }
+        }
+    }
+
     private long countTotalSize(List<File> files) {
         long totalSize = 0;
         for (File file : files) {
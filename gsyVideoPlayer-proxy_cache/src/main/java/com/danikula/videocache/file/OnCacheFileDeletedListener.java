@@ -0,0 +1,16 @@
+package com.danikula.videocache.file;
+
+import java.io.File;
+
+/**
+ * 缓存文件因为超出缓存限制被删除时回调，用来删除和文件对应的数据
+ */
+public interface OnCacheFileDeletedListener {
+
+    /**
+     * 在{@link LruDiskUsage}的后台线程回调
+     *
+     * @param file 被删除的缓存文件
+     */
+    void onCacheFileDeleted(File file);
+}
@@ -0,0 +1,139 @@
+package com.danikula.videocache.file;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 稀疏缓存中已经写入的区间，按位置排序并且互不相邻，相邻或者重叠的区间会合并
+ */
+final class RangeIndex {
+
+    private static final int VERSION = 1;
+
+    // 每个元素为[start, end)
+    private final List<long[]> ranges = new ArrayList<>();
+
+    void add(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        int index = 0;
+        while (index < ranges.size() && ranges.get(index)[1] < start) {
+            index++;
+        }
+        while (index < ranges.size() && ranges.get(index)[0] <= end) {
+            long[] range = ranges.remove(index);
+            start = Math.min(start, range[0]);
+            end = Math.max(end, range[1]);
+        }
+        ranges.add(index, new long[]{start, end});
+    }
+
+    /**
+     * @return 从0开始连续的数据的长度
+     */
+    long getPrefixEnd() {
+        return !ranges.isEmpty() && ranges.get(0)[0] == 0 ? ranges.get(0)[1] : 0;
+    }
+
+    /**
+     * @return offset所在区间的结束位置；offset没有缓存时返回offset
+     */
+    long getFilledEnd(long offset) {
+        for (long[] range : ranges) {
+            if (range[0] > offset) {
+                break;
+            }
+            if (offset < range[1]) {
+                return range[1];
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * @return offset之后第一个区间的开始位置；没有时返回{@link Long#MAX_VALUE}
+     */
+    long getNextStart(long offset) {
+        for (long[] range : ranges) {
+            if (range[0] > offset) {
+                return range[0];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return 已经写入的总字节数
+     */
+    long getFilledBytes() {
+        long filled = 0;
+        for (long[] range : ranges) {
+            filled += range[1] - range[0];
+        }
+        return filled;
+    }
+
+    /**
+     * 删除超出文件长度的部分，文件没有写完就中断时使用
+     */
+    void clip(long length) {
+        for (int i = ranges.size() - 1; i >= 0; i--) {
+            long[] range = ranges.get(i);
+            if (range[0] >= length) {
+                ranges.remove(i);
+            } else if (range[1] > length) {
+                range[1] = length;
+            }
+        }
+    }
+
+    void clear() {
+        ranges.clear();
+    }
+
+    int size() {
+        return ranges.size();
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        DataOutputStream output = new DataOutputStream(out);
+        output.writeInt(VERSION);
+        output.writeInt(ranges.size());
+        for (long[] range : ranges) {
+            output.writeLong(range[0]);
+            output.writeLong(range[1]);
+        }
+        output.flush();
+    }
+
+    static RangeIndex readFrom(InputStream in) throws IOException {
+        DataInputStream input = new DataInputStream(in);
+        if (input.readInt() != VERSION) {
+            throw new IOException("Unsupported range index version");
+        }
+        int count = input.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid range count " + count);
+        }
+        RangeIndex index = new RangeIndex();
+        for (int i = 0; i < count; i++) {
+            index.add(input.readLong(), input.readLong());
+        }
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("RangeIndex{");
+        for (long[] range : ranges) {
+            builder.append('[').append(range[0]).append(", ").append(range[1]).append(')');
+        }
+        return builder.append('}').toString();
+    }
+}
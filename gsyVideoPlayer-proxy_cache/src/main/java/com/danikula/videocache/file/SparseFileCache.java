@@ -0,0 +1,271 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.HttpProxyCacheDebuger;
+import com.danikula.videocache.ProxyCacheException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * 可以在任意位置写入数据的{@link FileCache}，拖动到缓存位置之后的数据也会被缓存。
+ * <p>
+ * 已经写入的区间保存在缓存文件旁边的{@link #RANGES_POSTFIX}文件中，{@link #available()}仍然是从0开始连续的数据的长度，
+ * 顺序下载写到已缓存的区间时{@link #available()}直接跳到区间的结束位置；所有区间连成一片时缓存完成，区间文件被删除。
+ */
+public class SparseFileCache extends FileCache {
+
+    static final String RANGES_POSTFIX = ".ranges";
+
+    private static final String TEMP_POSTFIX = ".tmp";
+
+    //新写入这么多数据后保存一次区间文件，异常退出时最多丢失这么多数据的记录
+    private static final long SAVE_INTERVAL = 1024 * 1024;
+
+    private final File rangesFile;
+    private final RangeIndex ranges;
+    private long unsavedBytes;
+
+    public SparseFileCache(File file) throws ProxyCacheException {
+        this(file, new UnlimitedDiskUsage());
+    }
+
+    public SparseFileCache(File file, DiskUsage diskUsage) throws ProxyCacheException {
+        super(file, diskUsage, true);
+        this.rangesFile = getRangesFile(getFile());
+        this.ranges = isCompleted() ? new RangeIndex() : loadRanges();
+    }
+
+    @Override
+    public synchronized long available() throws ProxyCacheException {
+        return isCompleted() ? super.available() : ranges.getPrefixEnd();
+    }
+
+    @Override
+    public synchronized void append(byte[] data, int length) throws ProxyCacheException {
+        long offset = available();
+        super.append(data, length);
+        onWritten(offset, length);
+    }
+
+    /**
+     * 把data中从offset开始的length字节写到缓存的position处，缓存已经完成时忽略
+     */
+    public synchronized void write(long position, byte[] data, int offset, int length) throws ProxyCacheException {
+        if (isCompleted() || length <= 0) {
+            return;
+        }
+        try {
+            if (!rangesFile.exists()) {
+                // 先记录区间再写入，避免区间文件丢失时把预分配的文件当成已缓存的数据
+                saveRanges();
+            }
+            writeAt(position, data, offset, length);
+        } catch (IOException e) {
+            String format = "Error writing %d bytes at %d to %s";
+            throw new ProxyCacheException(String.format(format, length, position, getFile()), e);
+        }
+        onWritten(position, length);
+    }
+
+    /**
+     * 按源文件的长度预分配缓存文件
+     */
+    public synchronized void preallocate(long length) throws ProxyCacheException {
+        try {
+            if (isCompleted() || length <= 0 || getFileLength() >= length) {
+                return;
+            }
+            saveRanges();
+            setFileLength(length);
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error preallocating " + length + " bytes for " + getFile(), e);
+        }
+    }
+
+    /**
+     * @return offset所在的已缓存区间的结束位置；offset没有缓存时返回offset
+     */
+    public synchronized long getFilledEnd(long offset) throws ProxyCacheException {
+        if (isCompleted()) {
+            return Math.max(offset, super.available());
+        }
+        return ranges.getFilledEnd(offset);
+    }
+
+    /**
+     * @return offset之后下一个已缓存区间的开始位置；没有时返回{@link Long#MAX_VALUE}
+     */
+    public synchronized long getNextFilledStart(long offset) {
+        return isCompleted() ? Long.MAX_VALUE : ranges.getNextStart(offset);
+    }
+
+    /**
+     * @return 已经缓存的总字节数，包括不连续的区间
+     */
+    public synchronized long getFilledBytes() throws ProxyCacheException {
+        return isCompleted() ? super.available() : ranges.getFilledBytes();
+    }
+
+    @Override
+    public synchronized void close() throws ProxyCacheException {
+        if (!isCompleted() && unsavedBytes > 0) {
+            saveRangesQuietly();
+        }
+        super.close();
+    }
+
+    @Override
+    public synchronized void complete() throws ProxyCacheException {
+        if (isCompleted()) {
+            return;
+        }
+        super.complete();
+        ranges.clear();
+        deleteRanges();
+    }
+
+    @Override
+    public synchronized void reset() {
+        if (isCompleted()) {
+            return;
+        }
+        super.reset();
+        ranges.clear();
+        unsavedBytes = 0;
+        deleteRanges();
+    }
+
+    private void onWritten(long offset, int length) {
+        ranges.add(offset, offset + length);
+        unsavedBytes += length;
+        if (unsavedBytes >= SAVE_INTERVAL) {
+            saveRangesQuietly();
+        }
+    }
+
+    private RangeIndex loadRanges() throws ProxyCacheException {
+        long fileLength;
+        try {
+            fileLength = getFileLength();
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error reading length of file " + getFile(), e);
+        }
+        RangeIndex index = null;
+        if (rangesFile.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(rangesFile);
+                index = RangeIndex.readFrom(in);
+                index.clip(fileLength);
+            } catch (IOException e) {
+                HttpProxyCacheDebuger.printfError("Error reading ranges of " + getFile() + ", reset cache", e);
+                super.reset();
+                deleteRanges();
+                index = null;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+        if (index == null) {
+            // 没有区间文件的缓存是顺序写入的，整个文件都是有效数据
+            index = new RangeIndex();
+            index.add(0, fileLength);
+        }
+        return index;
+    }
+
+    private void saveRanges() throws IOException {
+        File tempFile = new File(rangesFile.getPath() + TEMP_POSTFIX);
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            ranges.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(rangesFile)) {
+            tempFile.delete();
+            throw new IOException("Error renaming " + tempFile + " to " + rangesFile);
+        }
+        unsavedBytes = 0;
+    }
+
+    private void saveRangesQuietly() {
+        try {
+            saveRanges();
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error saving ranges of " + getFile(), e);
+        }
+    }
+
+    private void deleteRanges() {
+        if (rangesFile.exists() && !rangesFile.delete()) {
+            HttpProxyCacheDebuger.printfError("Error deleting " + rangesFile);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                HttpProxyCacheDebuger.printfError("Error closing " + in, e);
+            }
+        }
+    }
+
+    /**
+     * 按区间文件把缓存文件截断到从0开始连续的数据，然后删除区间文件；没有区间文件时不处理。
+     * 区间文件无法读取时整个文件都不可信，截断为0
+     */
+    static void truncateToFilledPrefix(File file) throws IOException {
+        File rangesFile = getRangesFile(file);
+        if (!rangesFile.exists()) {
+            return;
+        }
+        long prefixEnd = 0;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(rangesFile);
+            prefixEnd = RangeIndex.readFrom(in).getPrefixEnd();
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error reading ranges of " + file + ", discard cache", e);
+        } finally {
+            closeQuietly(in);
+        }
+        RandomAccessFile dataFile = new RandomAccessFile(file, "rw");
+        try {
+            if (dataFile.length() > prefixEnd) {
+                dataFile.setLength(prefixEnd);
+            }
+        } finally {
+            dataFile.close();
+        }
+        HttpProxyCacheDebuger.printfLog("Truncate sparse cache " + file + " to " + prefixEnd + " bytes");
+        if (!rangesFile.delete()) {
+            throw new IOException("Error deleting " + rangesFile);
+        }
+        new File(rangesFile.getPath() + TEMP_POSTFIX).delete();
+    }
+
+    static File getRangesFile(File file) {
+        return new File(file.getPath() + RANGES_POSTFIX);
+    }
+
+    /**
+     * @return 是否是区间文件，区间文件随缓存文件一起删除，不单独计入缓存大小
+     */
+    static boolean isRangesFile(File file) {
+        String name = file.getName();
+        return name.endsWith(RANGES_POSTFIX) || name.endsWith(RANGES_POSTFIX + TEMP_POSTFIX);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SparseFileCache{" + getFile().getName() + ", " + ranges + "}";
+    }
+}
@@ -0,0 +1,116 @@
+package com.danikula.videocache.mp4;
+
+/**
+ * 解析MP4顶层box的头部（size + type），用于判断moov是否在文件末尾。
+ * <p>
+ * 没有faststart的MP4把moov放在mdat之后，播放器读完文件头后会马上seek到文件末尾读取moov。
+ */
+public final class Mp4BoxParser {
+
+    /**
+     * 判断moov在文件末尾时，文件头最少需要的字节数，通常足够包含ftyp、free和mdat的头部
+     */
+    public static final int PROBE_SIZE = 16 * 1024;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int LARGE_HEADER_SIZE = 16;
+
+    private Mp4BoxParser() {
+    }
+
+    /**
+     * 从文件头查找mdat之后的第一个顶层box
+     *
+     * @param head   文件开头的数据
+     * @param count  head中有效的字节数
+     * @param length 文件总长度
+     * @return mdat之后第一个box的位置，moov通常从这里开始；不是MP4、moov在mdat之前或者无法判断时返回-1
+     */
+    public static long findTrailingMoov(byte[] head, int count, long length) {
+        long offset = 0;
+        boolean first = true;
+        while (offset + HEADER_SIZE <= count) {
+            int position = (int) offset;
+            long size = readUInt32(head, position);
+            String type = readType(head, position + 4);
+            if (first && !"ftyp".equals(type)) {
+                return -1;
+            }
+            first = false;
+            if (size == 1) {
+                if (offset + LARGE_HEADER_SIZE > count) {
+                    return -1;
+                }
+                size = readInt64(head, position + HEADER_SIZE);
+            } else if (size == 0) {
+                // 最后一个box，一直到文件结束
+                size = length - offset;
+            }
+            if (size < HEADER_SIZE) {
+                return -1;
+            }
+            if ("moov".equals(type)) {
+                return -1;
+            }
+            if ("mdat".equals(type)) {
+                long next = offset + size;
+                return next < length ? next : -1;
+            }
+            offset += size;
+        }
+        return -1;
+    }
+
+    /**
+     * 从start开始依次查找顶层box
+     *
+     * @param data  数据，start必须是某个顶层box的开始位置
+     * @param start 开始查找的位置
+     * @param count data中有效的字节数
+     * @param type  box类型，比如moov
+     * @return box在data中的位置；没有找到或者box头部不完整时返回-1
+     */
+    public static int findBox(byte[] data, int start, int count, String type) {
+        long offset = start;
+        while (offset + HEADER_SIZE <= count) {
+            int position = (int) offset;
+            if (type.equals(readType(data, position + 4))) {
+                return position;
+            }
+            long size = getBoxSize(data, position, count);
+            if (size < HEADER_SIZE) {
+                return -1;
+            }
+            offset += size;
+        }
+        return -1;
+    }
+
+    /**
+     * @return box的长度；64位长度不完整或者长度一直到文件结束时返回-1
+     */
+    public static long getBoxSize(byte[] data, int offset, int count) {
+        long size = readUInt32(data, offset);
+        if (size == 1) {
+            return offset + LARGE_HEADER_SIZE <= count ? readInt64(data, offset + HEADER_SIZE) : -1;
+        }
+        return size == 0 ? -1 : size;
+    }
+
+    static long readUInt32(byte[] data, int offset) {
+        return ((data[offset] & 0xFFL) << 24) | ((data[offset + 1] & 0xFFL) << 16)
+                | ((data[offset + 2] & 0xFFL) << 8) | (data[offset + 3] & 0xFFL);
+    }
+
+    static long readInt64(byte[] data, int offset) {
+        return (readUInt32(data, offset) << 32) | readUInt32(data, offset + 4);
+    }
+
+    static String readType(byte[] data, int offset) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = (char) (data[offset + i] & 0xFF);
+        }
+        return new String(type);
+    }
+}
@@ -0,0 +1,483 @@
+package com.danikula.videocache.mp4;
+
+import com.danikula.videocache.utils.LogUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * MP4的时间和文件位置的对应表，由moov中的sample table（stts、stss、stsz、stsc、stco/co64）生成。
+ * <p>
+ * 每个表项是视频轨道的一个关键帧（间隔至少{@link #MIN_ENTRY_INTERVAL}毫秒），位置取这个时间点所有轨道中最靠前的sample，
+ * 从这个位置开始下载可以拿到这个时间点之后的全部数据。序列化后由{@link com.danikula.videocache.sourcestorage.SourceInfoStorage}保存。
+ */
+public final class Mp4Index {
+
+    private static final String TAG = Mp4Index.class.getSimpleName();
+
+    //两个表项之间的最小时间间隔，毫秒
+    private static final long MIN_ENTRY_INTERVAL = 1000;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final long sourceLength;
+    private final long durationMs;
+    private final long endOffset;
+    private final long[] times;
+    private final long[] offsets;
+
+    private Mp4Index(long sourceLength, long durationMs, long endOffset, long[] times, long[] offsets) {
+        this.sourceLength = sourceLength;
+        this.durationMs = durationMs;
+        this.endOffset = endOffset;
+        this.times = times;
+        this.offsets = offsets;
+    }
+
+    /**
+     * 解析moov box
+     *
+     * @param data         包含完整moov box的数据
+     * @param offset       moov box在data中的位置
+     * @param length       moov box的长度
+     * @param sourceLength 文件总长度，用于判断保存的索引是否还有效
+     * @return 索引；不支持的格式返回null
+     */
+    public static Mp4Index fromMoov(byte[] data, int offset, int length, long sourceLength) {
+        try {
+            return SampleTableParser.parse(data, offset, length, sourceLength);
+        } catch (RuntimeException e) {
+            // 数据被截断或者格式错误
+            LogUtil.e(TAG, "Error parsing moov: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * 从{@link #toBytes()}的结果恢复
+     *
+     * @return 索引；数据无效时返回null
+     */
+    public static Mp4Index fromBytes(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            long sourceLength = in.readLong();
+            long durationMs = in.readLong();
+            long endOffset = in.readLong();
+            int count = in.readInt();
+            if (count < 0 || count > bytes.length / 12) {
+                return null;
+            }
+            long[] times = new long[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = in.readInt() & 0xFFFFFFFFL;
+                offsets[i] = in.readLong();
+            }
+            return new Mp4Index(sourceLength, durationMs, endOffset, times, offsets);
+        } catch (IOException e) {
+            LogUtil.e(TAG, "Invalid index: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return 序列化后的数据，每个表项12字节
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + times.length * 12);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(sourceLength);
+            out.writeLong(durationMs);
+            out.writeLong(endOffset);
+            out.writeInt(times.length);
+            for (int i = 0; i < times.length; i++) {
+                out.writeInt((int) times[i]);
+                out.writeLong(offsets[i]);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error writing index", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public long getSourceLength() {
+        return sourceLength;
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    /**
+     * @return 从fromMs之前的关键帧开始播放durationMs需要下载的字节数；没有表项时返回-1
+     */
+    public long bytesForDuration(long fromMs, long durationMs) {
+        if (times.length == 0) {
+            return -1;
+        }
+        int first = floorIndex(fromMs);
+        return getSpanEnd(first, fromMs + durationMs) - offsets[first];
+    }
+
+    /**
+     * @return 从offset开始播放durationMs需要下载到的位置（不包含）；没有表项时返回-1
+     */
+    public long getSpanEnd(long offset, long durationMs) {
+        if (times.length == 0) {
+            return -1;
+        }
+        // offset所在的时间：位置不超过offset的最后一个表项
+        int first = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] <= offset) {
+                first = i;
+            }
+        }
+        return Math.max(offset, getSpanEnd(first, times[first] + durationMs));
+    }
+
+    /**
+     * @return 时间不超过timeMs的最后一个关键帧的位置；没有表项时返回-1
+     */
+    public long getOffset(long timeMs) {
+        return times.length == 0 ? -1 : offsets[floorIndex(timeMs)];
+    }
+
+    private long getSpanEnd(int first, long endTimeMs) {
+        long end = offsets[first];
+        for (int i = first + 1; i < times.length; i++) {
+            end = Math.max(end, offsets[i]);
+            if (times[i] >= endTimeMs) {
+                return end;
+            }
+        }
+        return Math.max(end, endOffset);
+    }
+
+    private int floorIndex(long timeMs) {
+        int index = Arrays.binarySearch(times, timeMs);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return Math.max(index, 0);
+    }
+
+    @Override
+    public String toString() {
+        return "Mp4Index{entries=" + times.length + ", duration=" + durationMs + "ms, end=" + endOffset + "}";
+    }
+
+    /**
+     * 解析moov中各个轨道的sample table，生成关键帧的时间和位置
+     */
+    private static final class SampleTableParser {
+
+        static Mp4Index parse(byte[] data, int offset, int length, long sourceLength) {
+            Track primary = null;
+            Track[] tracks = new Track[0];
+            int end = offset + length;
+            int position = offset + headerSize(data, offset);
+            while (position + 8 <= end) {
+                int size = boxSize(data, position, end);
+                if ("trak".equals(Mp4BoxParser.readType(data, position + 4))) {
+                    Track track = parseTrack(data, position, size);
+                    if (track != null) {
+                        tracks = Arrays.copyOf(tracks, tracks.length + 1);
+                        tracks[tracks.length - 1] = track;
+                        if (primary == null || (track.video && !primary.video)) {
+                            primary = track;
+                        }
+                    }
+                }
+                position += size;
+            }
+            if (primary == null) {
+                return null;
+            }
+            return buildIndex(primary, tracks, sourceLength);
+        }
+
+        private static Mp4Index buildIndex(Track primary, Track[] tracks, long sourceLength) {
+            SampleCursor[] others = new SampleCursor[tracks.length - 1];
+            int count = 0;
+            for (Track track : tracks) {
+                if (track != primary) {
+                    others[count++] = new SampleCursor(track);
+                }
+            }
+            long[] times = new long[16];
+            long[] offsets = new long[16];
+            int entries = 0;
+            int syncIndex = 0;
+            long lastTime = 0;
+            long endOffset = 0;
+            SampleCursor cursor = new SampleCursor(primary);
+            while (cursor.hasSample()) {
+                boolean sync = primary.syncSamples == null;
+                if (!sync) {
+                    while (syncIndex < primary.syncSamples.length && primary.syncSamples[syncIndex] < cursor.sample + 1) {
+                        syncIndex++;
+                    }
+                    sync = syncIndex < primary.syncSamples.length && primary.syncSamples[syncIndex] == cursor.sample + 1;
+                }
+                long time = cursor.getTimeMs();
+                if (sync && (entries == 0 || time - lastTime >= MIN_ENTRY_INTERVAL)) {
+                    long entryOffset = cursor.offset;
+                    for (SampleCursor other : others) {
+                        other.skipTo(time);
+                        if (other.hasSample()) {
+                            entryOffset = Math.min(entryOffset, other.offset);
+                        }
+                    }
+                    if (entries == times.length) {
+                        times = Arrays.copyOf(times, entries * 2);
+                        offsets = Arrays.copyOf(offsets, entries * 2);
+                    }
+                    times[entries] = time;
+                    offsets[entries] = entryOffset;
+                    entries++;
+                    lastTime = time;
+                }
+                endOffset = Math.max(endOffset, cursor.offset + cursor.getSize());
+                cursor.next();
+            }
+            long durationMs = cursor.getTimeMs();
+            for (SampleCursor other : others) {
+                other.skipToEnd();
+                endOffset = Math.max(endOffset, other.lastEnd);
+                durationMs = Math.max(durationMs, other.getTimeMs());
+            }
+            return new Mp4Index(sourceLength, durationMs, endOffset, Arrays.copyOf(times, entries), Arrays.copyOf(offsets, entries));
+        }
+
+        private static Track parseTrack(byte[] data, int offset, int length) {
+            Track track = new Track();
+            parseContainer(data, offset, length, track);
+            if (track.timescale <= 0 || track.chunkOffsets == null || track.stscFirstChunks == null
+                    || track.sttsCounts == null || track.sampleCount <= 0 || track.chunkOffsets.length == 0) {
+                return null;
+            }
+            return track;
+        }
+
+        /**
+         * 递归解析trak、mdia、minf、stbl，读取其中需要的box
+         */
+        private static void parseContainer(byte[] data, int offset, int length, Track track) {
+            int end = offset + length;
+            int position = offset + headerSize(data, offset);
+            while (position + 8 <= end) {
+                int size = boxSize(data, position, end);
+                String type = Mp4BoxParser.readType(data, position + 4);
+                int body = position + headerSize(data, position);
+                switch (type) {
+                    case "mdia":
+                    case "minf":
+                    case "stbl":
+                        parseContainer(data, position, size, track);
+                        break;
+                    case "mdhd":
+                        // version(1) + flags(3)，版本1的时间字段是64位
+                        boolean version1 = data[body] == 1;
+                        track.timescale = readUInt32(data, body + (version1 ? 20 : 12));
+                        break;
+                    case "hdlr":
+                        track.video = "vide".equals(Mp4BoxParser.readType(data, body + 8));
+                        break;
+                    case "stts":
+                        int sttsCount = readCount(data, body + 4);
+                        track.sttsCounts = new long[sttsCount];
+                        track.sttsDeltas = new long[sttsCount];
+                        for (int i = 0; i < sttsCount; i++) {
+                            track.sttsCounts[i] = readUInt32(data, body + 8 + i * 8);
+                            track.sttsDeltas[i] = readUInt32(data, body + 12 + i * 8);
+                        }
+                        break;
+                    case "stss":
+                        int syncCount = readCount(data, body + 4);
+                        track.syncSamples = new long[syncCount];
+                        for (int i = 0; i < syncCount; i++) {
+                            track.syncSamples[i] = readUInt32(data, body + 8 + i * 4);
+                        }
+                        break;
+                    case "stsz":
+                        track.constantSize = readUInt32(data, body + 4);
+                        track.sampleCount = readCount(data, body + 8);
+                        if (track.constantSize == 0) {
+                            track.sizes = new long[track.sampleCount];
+                            for (int i = 0; i < track.sampleCount; i++) {
+                                track.sizes[i] = readUInt32(data, body + 12 + i * 4);
+                            }
+                        }
+                        break;
+                    case "stsc":
+                        int stscCount = readCount(data, body + 4);
+                        track.stscFirstChunks = new long[stscCount];
+                        track.stscSamplesPerChunk = new long[stscCount];
+                        for (int i = 0; i < stscCount; i++) {
+                            track.stscFirstChunks[i] = readUInt32(data, body + 8 + i * 12);
+                            track.stscSamplesPerChunk[i] = readUInt32(data, body + 12 + i * 12);
+                        }
+                        break;
+                    case "stco":
+                        int chunkCount = readCount(data, body + 4);
+                        track.chunkOffsets = new long[chunkCount];
+                        for (int i = 0; i < chunkCount; i++) {
+                            track.chunkOffsets[i] = readUInt32(data, body + 8 + i * 4);
+                        }
+                        break;
+                    case "co64":
+                        int chunk64Count = readCount(data, body + 4);
+                        track.chunkOffsets = new long[chunk64Count];
+                        for (int i = 0; i < chunk64Count; i++) {
+                            track.chunkOffsets[i] = Mp4BoxParser.readInt64(data, body + 8 + i * 8);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                position += size;
+            }
+        }
+
+        private static int headerSize(byte[] data, int offset) {
+            return Mp4BoxParser.readUInt32(data, offset) == 1 ? 16 : 8;
+        }
+
+        private static int boxSize(byte[] data, int offset, int end) {
+            long size = Mp4BoxParser.readUInt32(data, offset);
+            if (size == 1) {
+                size = Mp4BoxParser.readInt64(data, offset + 8);
+            } else if (size == 0) {
+                size = end - offset;
+            }
+            if (size < 8 || offset + size > end) {
+                throw new IllegalArgumentException("Invalid box size " + size + " at " + offset);
+            }
+            return (int) size;
+        }
+
+        private static long readUInt32(byte[] data, int offset) {
+            return Mp4BoxParser.readUInt32(data, offset);
+        }
+
+        private static int readCount(byte[] data, int offset) {
+            long count = readUInt32(data, offset);
+            if (count > data.length) {
+                throw new IllegalArgumentException("Invalid entry count " + count);
+            }
+            return (int) count;
+        }
+    }
+
+    private static final class Track {
+        boolean video;
+        long timescale;
+        long[] sttsCounts;
+        long[] sttsDeltas;
+        long[] syncSamples;
+        long constantSize;
+        long[] sizes;
+        int sampleCount;
+        long[] stscFirstChunks;
+        long[] stscSamplesPerChunk;
+        long[] chunkOffsets;
+    }
+
+    /**
+     * 按顺序遍历一个轨道的sample，计算每个sample的时间和位置
+     */
+    private static final class SampleCursor {
+
+        private final Track track;
+        int sample;
+        long offset;
+        long lastEnd;
+        private long time;
+        private int chunk;
+        private long sampleInChunk;
+        private long samplesPerChunk;
+        private int stscIndex;
+        private int sttsIndex;
+        private long sttsRemaining;
+
+        SampleCursor(Track track) {
+            this.track = track;
+            this.offset = track.chunkOffsets[0];
+            this.samplesPerChunk = track.stscSamplesPerChunk[0];
+            this.sttsRemaining = track.sttsCounts.length > 0 ? track.sttsCounts[0] : 0;
+        }
+
+        boolean hasSample() {
+            return sample < track.sampleCount && chunk < track.chunkOffsets.length && samplesPerChunk > 0;
+        }
+
+        long getTimeMs() {
+            return time * 1000 / track.timescale;
+        }
+
+        long getSize() {
+            return track.sizes == null ? track.constantSize : track.sizes[sample];
+        }
+
+        /**
+         * 移动到覆盖timeMs的sample，即下一个sample的时间大于timeMs
+         */
+        void skipTo(long timeMs) {
+            while (hasSample() && sample + 1 < track.sampleCount && getNextTimeMs() <= timeMs) {
+                next();
+            }
+        }
+
+        void skipToEnd() {
+            while (hasSample()) {
+                next();
+            }
+        }
+
+        void next() {
+            long size = getSize();
+            lastEnd = offset + size;
+            if (sttsIndex < track.sttsDeltas.length) {
+                time += track.sttsDeltas[sttsIndex];
+                if (--sttsRemaining <= 0 && sttsIndex + 1 < track.sttsCounts.length) {
+                    sttsIndex++;
+                    sttsRemaining = track.sttsCounts[sttsIndex];
+                }
+            }
+            sample++;
+            sampleInChunk++;
+            if (sampleInChunk < samplesPerChunk) {
+                offset += size;
+                return;
+            }
+            chunk++;
+            sampleInChunk = 0;
+            if (chunk < track.chunkOffsets.length) {
+                offset = track.chunkOffsets[chunk];
+            }
+            if (stscIndex + 1 < track.stscFirstChunks.length && chunk + 1 >= track.stscFirstChunks[stscIndex + 1]) {
+                stscIndex++;
+                samplesPerChunk = track.stscSamplesPerChunk[stscIndex];
+            }
+        }
+
+        private long getNextTimeMs() {
+            long delta = sttsIndex < track.sttsDeltas.length ? track.sttsDeltas[sttsIndex] : 0;
+            return (time + delta) * 1000 / track.timescale;
+        }
+    }
+}
@@ -16,24 +16,44 @@ import static com.danikula.videocache.Preconditions.checkNotNull;
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
-class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoStorage {
+class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoStorage, Mp4IndexStorage {
 
     private static final String TABLE = "SourceInfo";
     private static final String COLUMN_ID = "_id";
     private static final String COLUMN_URL = "url";
     private static final String COLUMN_LENGTH = "length";
     private static final String COLUMN_MIME = "mime";
-    private static final String[] ALL_COLUMNS = new String[]{COLUMN_ID, COLUMN_URL, COLUMN_LENGTH, COLUMN_MIME};
+    private static final String COLUMN_REDIRECT_URL = "redirectUrl";
+    private static final String COLUMN_REDIRECT_EXPIRES = "redirectExpires";
+    private static final String COLUMN_ETAG = "etag";
+    private static final String[] ALL_COLUMNS = new String[]{COLUMN_ID, COLUMN_URL, COLUMN_LENGTH, COLUMN_MIME,
+            COLUMN_REDIRECT_URL, COLUMN_REDIRECT_EXPIRES, COLUMN_ETAG};
     private static final String CREATE_SQL =
             "CREATE TABLE " + TABLE + " (" +
                     COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
                     COLUMN_URL + " TEXT NOT NULL," +
                     COLUMN_MIME + " TEXT," +
-                    COLUMN_LENGTH + " INTEGER" +
+                    COLUMN_LENGTH + " INTEGER," +
+                    COLUMN_REDIRECT_URL + " TEXT," +
+                    COLUMN_REDIRECT_EXPIRES + " INTEGER," +
+                    COLUMN_ETAG + " TEXT" +
                     ");";
 
+    private static final String INDEX_TABLE = "Mp4Index";
+    private static final String COLUMN_CACHE_NAME = "cacheName";
+    private static final String COLUMN_INDEX = "data";
+    private static final String CREATE_INDEX_SQL =
+            "CREATE TABLE " + INDEX_TABLE + " (" +
+                    COLUMN_CACHE_NAME + " TEXT PRIMARY KEY NOT NULL," +
+                    COLUMN_ETAG + " TEXT," +
+                    COLUMN_INDEX + " BLOB" +
+                    ");";
+
+    //版本2增加了重定向地址，版本3增加了ETag，版本4增加了MP4索引表
+    private static final int DATABASE_VERSION = 4;
+
     DatabaseSourceInfoStorage(Context context) {
-        super(context, "AndroidVideoCache.db", null, 1);
+        super(context, "AndroidVideoCache.db", null, DATABASE_VERSION);
         checkNotNull(context);
     }
 
@@ -41,11 +61,21 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
     public void onCreate(SQLiteDatabase db) {
         checkNotNull(db);
         db.execSQL(CREATE_SQL);
+        db.execSQL(CREATE_INDEX_SQL);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        throw new IllegalStateException("Should not be called. There is no any migration");
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_REDIRECT_URL + " TEXT");
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_REDIRECT_EXPIRES + " INTEGER");
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_ETAG + " TEXT");
+        }
+        if (oldVersion < 4) {
+            db.execSQL(CREATE_INDEX_SQL);
+        }
     }
 
     @Override
@@ -75,6 +105,42 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
         }
     }
 
+    @Override
+    public byte[] getMp4Index(String cacheName, String etag) {
+        checkNotNull(cacheName);
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(INDEX_TABLE, new String[]{COLUMN_ETAG, COLUMN_INDEX},
+                    COLUMN_CACHE_NAME + "=?", new String[]{cacheName}, null, null, null);
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            String savedEtag = cursor.getString(0);
+            boolean sameEtag = etag == null ? savedEtag == null : etag.equals(savedEtag);
+            return sameEtag ? cursor.getBlob(1) : null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public void putMp4Index(String cacheName, String etag, byte[] index) {
+        checkAllNotNull(cacheName, index);
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_CACHE_NAME, cacheName);
+        values.put(COLUMN_ETAG, etag);
+        values.put(COLUMN_INDEX, index);
+        getWritableDatabase().replace(INDEX_TABLE, null, values);
+    }
+
+    @Override
+    public void removeMp4Index(String cacheName) {
+        checkNotNull(cacheName);
+        getWritableDatabase().delete(INDEX_TABLE, COLUMN_CACHE_NAME + "=?", new String[]{cacheName});
+    }
+
     @Override
     public void release() {
         close();
@@ -84,7 +150,10 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
         return new SourceInfo(
                 cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_URL)),
                 cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_LENGTH)),
-                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MIME))
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MIME)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_REDIRECT_URL)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_REDIRECT_EXPIRES)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_ETAG))
         );
     }
 
@@ -93,6 +162,9 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
         values.put(COLUMN_URL, sourceInfo.url);
         values.put(COLUMN_LENGTH, sourceInfo.length);
         values.put(COLUMN_MIME, sourceInfo.mime);
+        values.put(COLUMN_REDIRECT_URL, sourceInfo.redirectUrl);
+        values.put(COLUMN_REDIRECT_EXPIRES, sourceInfo.redirectExpires);
+        values.put(COLUMN_ETAG, sourceInfo.etag);
         return values;
     }
 }
@@ -0,0 +1,23 @@
+package com.danikula.videocache.sourcestorage;
+
+/**
+ * 可选的MP4索引存储，{@link SourceInfoStorage}的实现同时实现这个接口时才会保存MP4索引
+ */
+public interface Mp4IndexStorage {
+
+    /**
+     * MP4索引按缓存文件名保存，缓存文件被删除时可以直接删除对应的索引
+     *
+     * @param cacheName 缓存完成后的文件名
+     * @param etag      源文件当前的ETag，和保存时的不同说明源文件已经改变
+     * @return 保存的{@link com.danikula.videocache.mp4.Mp4Index}序列化数据，没有或者ETag不同时返回null
+     */
+    byte[] getMp4Index(String cacheName, String etag);
+
+    void putMp4Index(String cacheName, String etag, byte[] index);
+
+    /**
+     * 缓存文件被删除或者源文件改变时删除索引
+     */
+    void removeMp4Index(String cacheName);
+}
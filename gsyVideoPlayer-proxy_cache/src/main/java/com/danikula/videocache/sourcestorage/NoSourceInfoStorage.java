@@ -3,11 +3,11 @@ package com.danikula.videocache.sourcestorage;
 import com.danikula.videocache.SourceInfo;
 
 /**
- * {@link SourceInfoStorage} that does nothing.
+ * {@link SourceInfoStorage} and {@link Mp4IndexStorage} that does nothing.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
-public class NoSourceInfoStorage implements SourceInfoStorage {
+public class NoSourceInfoStorage implements SourceInfoStorage, Mp4IndexStorage {
 
     @Override
     public SourceInfo get(String url) {
@@ -18,6 +18,19 @@ public class NoSourceInfoStorage implements SourceInfoStorage {
     public void put(String url, SourceInfo sourceInfo) {
     }
 
+    @Override
+    public byte[] getMp4Index(String cacheName, String etag) {
+        return null;
+    }
+
+    @Override
+    public void putMp4Index(String cacheName, String etag, byte[] index) {
+    }
+
+    @Override
+    public void removeMp4Index(String cacheName) {
+    }
+
     @Override
     public void release() {
     }
@@ -16,4 +16,11 @@ public class SourceInfoStorageFactory {
     public static SourceInfoStorage newEmptySourceInfoStorage() {
         return new NoSourceInfoStorage();
     }
+
+    /**
+     * @return storage本身实现了{@link Mp4IndexStorage}时返回它，否则返回不保存索引的实现
+     */
+    public static Mp4IndexStorage getMp4IndexStorage(SourceInfoStorage storage) {
+        return storage instanceof Mp4IndexStorage ? (Mp4IndexStorage) storage : new NoSourceInfoStorage();
+    }
 }
@@ -0,0 +1,193 @@
+package com.danikula.videocache.utils;
+
+/**
+ * 根据实际的下载速度和首字节时间调整每次Range请求的长度。
+ * <p>
+ * 网速快时增大单次请求长度，减少请求次数带来的开销；网速慢时减小单次请求长度，让每次请求尽快完成。
+ * 长度限制在{@link ConstantsUtil#getMinDownLoadLength()}和{@link ConstantsUtil#getMaxDownLoadLength()}之间，
+ * 两者相同时不做调整。
+ */
+public class ChunkSizeController {
+
+    private static final String TAG = ChunkSizeController.class.getSimpleName();
+
+    //单次请求期望的下载耗时
+    private static final long TARGET_CHUNK_DURATION = 2 * 1000;
+
+    //单次请求的下载耗时至少是首字节时间的倍数，保证请求开销不超过10%
+    private static final int FIRST_BYTE_TIME_FACTOR = 10;
+
+    //新测量值的权重
+    private static final double SMOOTHING_FACTOR = 0.3;
+
+    //每次最多放大或缩小的倍数，避免一次异常的测量值导致长度剧烈变化
+    private static final int MAX_CHANGE_FACTOR = 2;
+
+    //过小的请求测量误差太大，不参与计算
+    private static final long MIN_SAMPLE_LENGTH = 16 * 1024;
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private int chunkSize;
+    //字节/毫秒，未知时为-1
+    private double throughput = -1;
+    //毫秒，未知时为-1
+    private double firstByteTime = -1;
+    private int samplesCount;
+
+    public ChunkSizeController() {
+        this(ConstantsUtil.getInstance().getDownLoadLength(),
+                ConstantsUtil.getInstance().getMinDownLoadLength(),
+                ConstantsUtil.getInstance().getMaxDownLoadLength());
+    }
+
+    public ChunkSizeController(int initialChunkSize, int minChunkSize, int maxChunkSize) {
+        if (minChunkSize <= 0 || maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("Invalid chunk size bounds: " + minChunkSize + ".." + maxChunkSize);
+        }
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.chunkSize = clamp(initialChunkSize, minChunkSize, maxChunkSize);
+    }
+
+    /**
+     * @return 下一次Range请求的长度
+     */
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return 平均下载速度，字节/秒；还没有测量值时返回-1
+     */
+    public synchronized long getThroughput() {
+        return throughput < 0 ? -1 : (long) (throughput * 1000);
+    }
+
+    /**
+     * @return 平均首字节时间，毫秒；还没有测量值时返回-1
+     */
+    public synchronized long getFirstByteTime() {
+        return firstByteTime < 0 ? -1 : (long) firstByteTime;
+    }
+
+    /**
+     * @return 参与计算的请求次数
+     */
+    public synchronized int getSamplesCount() {
+        return samplesCount;
+    }
+
+    /**
+     * 按照当前的请求长度计算Range的结束位置
+     */
+    public long getRangeEnd(long offset, long length) {
+        return RangeUtil.getRangeEnd(offset, length, getChunkSize());
+    }
+
+    /**
+     * 开始测量一次请求，在发起请求前调用
+     */
+    public Sample newSample() {
+        return new Sample();
+    }
+
+    /**
+     * 一次请求完整下载后更新平均值，并重新计算请求长度
+     *
+     * @param length        下载的字节数
+     * @param firstByteTime 从发起请求到收到响应头的耗时，毫秒
+     * @param duration      从发起请求到读完数据的耗时，毫秒
+     */
+    public synchronized void onChunkLoaded(long length, long firstByteTime, long duration) {
+        if (length < MIN_SAMPLE_LENGTH || duration <= 0) {
+            return;
+        }
+        long transferTime = Math.max(1, duration - firstByteTime);
+        double sampleThroughput = (double) length / transferTime;
+        this.throughput = smooth(this.throughput, sampleThroughput);
+        this.firstByteTime = smooth(this.firstByteTime, Math.max(0, firstByteTime));
+        this.samplesCount++;
+
+        long targetDuration = Math.max(TARGET_CHUNK_DURATION, (long) (this.firstByteTime * FIRST_BYTE_TIME_FACTOR));
+        long target = (long) (this.throughput * targetDuration);
+        target = Math.max(chunkSize / MAX_CHANGE_FACTOR, Math.min((long) chunkSize * MAX_CHANGE_FACTOR, target));
+        int newChunkSize = clamp(target, minChunkSize, maxChunkSize);
+        if (newChunkSize != chunkSize) {
+            LogUtil.i(TAG, "chunk size " + chunkSize / 1024 + "K -> " + newChunkSize / 1024 + "K, throughput="
+                    + getThroughput() / 1024 + "K/s, firstByteTime=" + getFirstByteTime() + "ms");
+            chunkSize = newChunkSize;
+        }
+    }
+
+    private static double smooth(double average, double value) {
+        return average < 0 ? value : average + SMOOTHING_FACTOR * (value - average);
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ChunkSizeController{chunkSize=" + chunkSize + ", throughput=" + getThroughput()
+                + ", firstByteTime=" + getFirstByteTime() + ", samples=" + samplesCount + "}";
+    }
+
+    /**
+     * 一次请求的测量，由数据源在同一个线程里调用；只有完整读完的请求才会参与计算
+     */
+    public final class Sample {
+
+        private final long startTime = System.nanoTime();
+        private long responseTime = -1;
+        private long lastReadTime;
+        private long expectedLength = -1;
+        private long length;
+        private boolean endOfStream;
+        private boolean finished;
+
+        private Sample() {
+        }
+
+        /**
+         * 收到响应头
+         *
+         * @param contentLength 响应体长度，未知时为-1
+         */
+        public void onResponse(long contentLength) {
+            responseTime = System.nanoTime();
+            expectedLength = contentLength;
+        }
+
+        /**
+         * @param count 读取的字节数，-1表示数据已经读完
+         */
+        public void onRead(int count) {
+            if (count < 0) {
+                endOfStream = true;
+            } else if (count > 0) {
+                length += count;
+                lastReadTime = System.nanoTime();
+            }
+        }
+
+        /**
+         * 请求结束，关闭数据源时调用
+         */
+        public void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            boolean completed = endOfStream || (expectedLength > 0 && length >= expectedLength);
+            if (responseTime > 0 && length > 0 && completed) {
+                onChunkLoaded(length, toMillis(responseTime - startTime), toMillis(lastReadTime - startTime));
+            }
+        }
+
+        private long toMillis(long nanos) {
+            return nanos / 1000000;
+        }
+    }
+}
@@ -15,12 +15,36 @@ public class ConstantsUtil {
     //自定义超时时间
     public static final int CUS_OUT_TIME = 30 * 1000;
 
+    //播放器和代理之间长连接的空闲超时时间
+    public static final int KEEP_ALIVE_TIMEOUT = 5 * 1000;
+
+    //读取请求的超时时间：新连接等待第一个请求，或者请求只收到一部分时使用，和长连接是否开启无关
+    public static final int REQUEST_READ_TIMEOUT = 10 * 1000;
+
+    //后台检查代理服务是否存活的间隔
+    public static final int LIVENESS_CHECK_INTERVAL = 5 * 1000;
+
     //每次默认下载500K文件
     private static final int DOWN_LOAD_LENGTH = 500 * 1024;
 
+    //根据网速调整时，每次下载长度的下限
+    private static final int MIN_DOWN_LOAD_LENGTH = 128 * 1024;
+
+    //根据网速调整时，每次下载长度的上限
+    private static final int MAX_DOWN_LOAD_LENGTH = 4 * 1024 * 1024;
+
     //预缓存的最大长度
     private static final int PRE_CACHE_LENGTH = 500*1024;
 
+    //默认预读的长度，已缓存的数据超过播放位置这么多时暂停下载
+    public static final long READ_AHEAD_WINDOW = 32 * 1024 * 1024;
+
+    //seek到缓存之外时，根据MP4索引一次请求之后这么长时间的数据，毫秒
+    public static final long SEEK_PREFETCH_DURATION = 10 * 1000;
+
+    //默认恢复下载的长度，暂停后已缓存的数据少于播放位置之后这么多时恢复下载
+    public static final long READ_AHEAD_LOW_WATER = 16 * 1024 * 1024;
+
 
     public static final int NO_CACHE_LENGTH_BARRIER = 15 * 1024 * 1024;
 
@@ -42,6 +66,10 @@ public class ConstantsUtil {
     //文件每次下载长度
     private int downLoadLength;
 
+    //每次下载长度的调整范围
+    private int minDownLoadLength;
+    private int maxDownLoadLength;
+
     private static ConstantsUtil instance;
 
     private ConstantsUtil(){}
@@ -75,4 +103,19 @@ public class ConstantsUtil {
         this.downLoadLength = downLoadLength;
     }
 
+    public int getMinDownLoadLength() {
+        int min = minDownLoadLength > 0 ? minDownLoadLength : MIN_DOWN_LOAD_LENGTH;
+        return Math.min(min, getDownLoadLength());
+    }
+
+    public int getMaxDownLoadLength() {
+        int max = maxDownLoadLength > 0 ? maxDownLoadLength : MAX_DOWN_LOAD_LENGTH;
+        return Math.max(max, getDownLoadLength());
+    }
+
+    public void setDownLoadLengthRange(int minDownLoadLength, int maxDownLoadLength) {
+        this.minDownLoadLength = minDownLoadLength;
+        this.maxDownLoadLength = maxDownLoadLength;
+    }
+
 }
@@ -30,6 +30,24 @@ public class HttpsUtils {
         public X509TrustManager trustManager;
     }
 
+    private static volatile SSLParams defaultSslParams;
+
+    /**
+     * 所有https连接共享的SSLParams，第一次使用时创建。
+     * 同一个SSLContext会缓存TLS会话，后续连接可以恢复会话，不需要每次都进行完整的握手；
+     * HttpURLConnection也只有SSLSocketFactory是同一个实例时才会复用连接池中的连接
+     */
+    public static SSLParams getDefaultSslParams() {
+        if (defaultSslParams == null) {
+            synchronized (HttpsUtils.class) {
+                if (defaultSslParams == null) {
+                    defaultSslParams = getSslSocketFactory(null, null, null);
+                }
+            }
+        }
+        return defaultSslParams;
+    }
+
     public static SSLParams getSslSocketFactory(InputStream[] certificates, InputStream bksFile, String password) {
         SSLParams sslParams = new SSLParams();
         try {
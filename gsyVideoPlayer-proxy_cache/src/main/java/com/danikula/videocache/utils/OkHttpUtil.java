@@ -2,13 +2,23 @@ package com.danikula.videocache.utils;
 
 import com.danikula.videocache.OkHttpDns;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
 
 public class OkHttpUtil {
+    //连接池中保留的空闲连接数和空闲时间，同一个CDN上连续的分段请求和不同视频都可以复用
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_DURATION_MINUTES = 5;
+    private static final int MAX_RESPONSE_ENTRIES = 512;
+
     private static OkHttpUtil instance;
     private OkHttpClient okHttpClient;
+    //最近收到响应的host:port和时间，空闲时间内连接池中可能还有它的连接
+    private final Map<String, Long> responseTimes = new ConcurrentHashMap<>();
 
     private OkHttpUtil() {
         OkHttpsUtils.SSLParams sslParams = OkHttpsUtils.getSslSocketFactory(null, null, null);
@@ -16,6 +26,7 @@ public class OkHttpUtil {
         okHttpClient = new OkHttpClient.Builder().connectTimeout(30, TimeUnit.SECONDS)
                 .callTimeout(30, TimeUnit.SECONDS)
                 .readTimeout(30, TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MINUTES, TimeUnit.MINUTES))
                 .followRedirects(false)//禁制OkHttp的重定向操作，我们自己处理重定向
                 .dns(OkHttpDns.getInstance())
                 .sslSocketFactory(sslParams.sSLSocketFactory , sslParams.trustManager)
@@ -36,4 +47,24 @@ public class OkHttpUtil {
     public OkHttpClient getClient() {
         return okHttpClient;
     }
+
+    /**
+     * 记录收到了host:port的响应，读完响应体后连接回到连接池
+     */
+    public void onResponse(String host, int port) {
+        if (responseTimes.size() >= MAX_RESPONSE_ENTRIES) {
+            responseTimes.clear();
+        }
+        responseTimes.put(host + ":" + port, System.currentTimeMillis());
+    }
+
+    /**
+     * @return 连接池中是否可能有host:port的空闲连接，有的话OkHttp直接复用，不需要再选择IP
+     */
+    public boolean hasPooledConnection(String host, int port) {
+        Long responseTime = responseTimes.get(host + ":" + port);
+        return responseTime != null
+                && System.currentTimeMillis() - responseTime < TimeUnit.MINUTES.toMillis(KEEP_ALIVE_DURATION_MINUTES)
+                && okHttpClient.connectionPool().idleConnectionCount() > 0;
+    }
 }
@@ -3,7 +3,16 @@ package com.danikula.videocache.utils;
 public class RangeUtil {
     public static long getRangeEnd(long offset, long length) {
         //客户端每次请求只下载500K
-        long end = offset + ConstantsUtil.getInstance().getDownLoadLength();
-        return Math.min(end, length-1);
+        return getRangeEnd(offset, length, ConstantsUtil.getInstance().getDownLoadLength());
+    }
+
+    /**
+     * @param length    文件长度，未知时小于等于0
+     * @param chunkSize 本次请求的长度
+     * @return Range的结束位置（包含）
+     */
+    public static long getRangeEnd(long offset, long length, long chunkSize) {
+        long end = offset + chunkSize - 1;
+        return length > 0 ? Math.min(end, length - 1) : end;
     }
 }
@@ -0,0 +1,149 @@
+package com.danikula.videocache;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 通过不真正等待的时钟验证令牌桶计算出的等待时间，结果和机器的负载无关
+ */
+public class BandwidthLimiterTest {
+
+    private static final int KB = 1024;
+    private static final int DATA_SIZE = 512 * KB;
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void waitsForMissingTokens() throws Exception {
+        FakeClock clock = new FakeClock();
+        BandwidthLimiter limiter = new BandwidthLimiter(new DownloadScheduler(), 1024 * KB, 0, clock);
+        // 令牌桶开始是空的，512K按1M/s需要等待500ms
+        limiter.acquire(512 * KB);
+        assertEquals(500 * MS, clock.getSlept(), MS);
+    }
+
+    @Test
+    public void unlimitedRateNeverWaits() throws Exception {
+        FakeClock clock = new FakeClock();
+        BandwidthLimiter limiter = new BandwidthLimiter(new DownloadScheduler(), 0, 0, clock);
+        limiter.acquire(8 * 1024 * KB);
+        assertEquals(0, clock.getSlept());
+    }
+
+    @Test
+    public void refilledTokensAreUsedWithoutWaiting() throws Exception {
+        FakeClock clock = new FakeClock();
+        BandwidthLimiter limiter = new BandwidthLimiter(new DownloadScheduler(), 1024 * KB, 0, clock);
+        clock.advance(1000 * MS);
+        limiter.acquire(1024 * KB);
+        assertEquals(0, clock.getSlept());
+    }
+
+    @Test
+    public void burstIsLimitedToOneSecond() throws Exception {
+        FakeClock clock = new FakeClock();
+        BandwidthLimiter limiter = new BandwidthLimiter(new DownloadScheduler(), 1024 * KB, 0, clock);
+        clock.advance(10000 * MS);
+        limiter.acquire(2 * 1024 * KB);
+        assertEquals(1000 * MS, clock.getSlept(), MS);
+    }
+
+    @Test
+    public void foregroundRateAppliesWhilePlaying() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        FakeClock clock = new FakeClock();
+        BandwidthLimiter limiter = new BandwidthLimiter(scheduler, 0, 256 * KB, clock);
+        assertEquals(0, limiter.getCurrentRate());
+        limiter.acquire(256 * KB);
+        assertEquals(0, clock.getSlept());
+
+        DownloadScheduler.Ticket playing = scheduler.acquire(DownloadScheduler.PRIORITY_PLAYING);
+        try {
+            assertEquals(256 * KB, limiter.getCurrentRate());
+            limiter.acquire(128 * KB);
+            assertEquals(500 * MS, clock.getSlept(), MS);
+        } finally {
+            playing.release();
+        }
+    }
+
+    @Test
+    public void precacheIsLimited() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        FakeClock clock = new FakeClock();
+        BandwidthLimiter limiter = new BandwidthLimiter(scheduler, 1024 * KB, 0, clock);
+        ProxyCache proxyCache = newProxyCache(scheduler, limiter);
+        proxyCache.setShutdownAfterPrecache(true);
+        readAll(proxyCache);
+        assertEquals(500 * MS, clock.getSlept(), MS);
+    }
+
+    @Test
+    public void playingDownloadIsNotLimited() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        FakeClock clock = new FakeClock();
+        BandwidthLimiter limiter = new BandwidthLimiter(scheduler, 64 * KB, 64 * KB, clock);
+        readAll(newProxyCache(scheduler, limiter));
+        assertEquals(0, clock.getSlept());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeRate() {
+        new BandwidthLimiter(new DownloadScheduler(), -1, 0);
+    }
+
+    private ProxyCache newProxyCache(DownloadScheduler scheduler, BandwidthLimiter limiter) {
+        ProxyCache proxyCache = new ProxyCache(new ByteArraySource(generate(DATA_SIZE)), new ByteArrayCache());
+        proxyCache.setDownloadScheduler(scheduler);
+        proxyCache.setBandwidthLimiter(limiter);
+        return proxyCache;
+    }
+
+    private void readAll(ProxyCache proxyCache) throws ProxyCacheException {
+        byte[] read = new byte[DATA_SIZE];
+        try {
+            assertEquals(DATA_SIZE, proxyCache.read(read, 0, read.length));
+        } finally {
+            proxyCache.shutdown();
+        }
+        assertArrayEquals(generate(DATA_SIZE), read);
+    }
+
+    private static byte[] generate(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * 等待时只推进时间并记录等待的总时长
+     */
+    private static final class FakeClock implements BandwidthLimiter.Clock {
+
+        private long now;
+        private long slept;
+
+        @Override
+        public synchronized long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public synchronized void sleep(long nanos) {
+            now += nanos;
+            slept += nanos;
+        }
+
+        synchronized void advance(long nanos) {
+            now += nanos;
+        }
+
+        synchronized long getSlept() {
+            return slept;
+        }
+    }
+}
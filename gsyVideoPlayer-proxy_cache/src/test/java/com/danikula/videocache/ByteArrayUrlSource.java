@@ -0,0 +1,141 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.utils.ChunkSizeController;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 内存中的{@link UrlSource}，记录打开（GET）和Head请求的次数，copy出来的数据源共享计数
+ */
+class ByteArrayUrlSource implements UrlSource {
+
+    static final String URL = "http://example.com/video.mp4";
+    static final String MIME = "video/mp4";
+
+    private final byte[] data;
+    private final boolean lengthKnown;
+    private final AtomicInteger opens;
+    private final AtomicInteger heads;
+    private final ChunkSizeController chunkSizeController;
+    private final AtomicReference<CountDownLatch> mimeGate = new AtomicReference<>();
+    private final CountDownLatch mimeBlocked = new CountDownLatch(1);
+    private int position;
+    private int end;
+
+    /**
+     * @param lengthKnown 长度是否已经保存过，为{@code false}时需要从下载或者Head请求中获取
+     */
+    ByteArrayUrlSource(byte[] data, boolean lengthKnown) {
+        this(data, lengthKnown, new AtomicInteger(), new AtomicInteger(), new ChunkSizeController());
+    }
+
+    private ByteArrayUrlSource(byte[] data, boolean lengthKnown, AtomicInteger opens, AtomicInteger heads,
+                               ChunkSizeController chunkSizeController) {
+        this.data = data;
+        this.lengthKnown = lengthKnown;
+        this.opens = opens;
+        this.heads = heads;
+        this.chunkSizeController = chunkSizeController;
+    }
+
+    /**
+     * 下一次获取mime时等待gate，用来让请求停在处理过程中
+     */
+    void blockNextMime(CountDownLatch gate) {
+        mimeGate.set(gate);
+    }
+
+    /**
+     * 等待请求停在{@link #blockNextMime(CountDownLatch)}设置的gate上
+     */
+    boolean awaitMimeBlocked() throws InterruptedException {
+        return mimeBlocked.await(10, TimeUnit.SECONDS);
+    }
+
+    int getOpens() {
+        return opens.get();
+    }
+
+    int getHeads() {
+        return heads.get();
+    }
+
+    @Override
+    public void open(long offset) throws ProxyCacheException {
+        open(offset, -1);
+    }
+
+    @Override
+    public synchronized void open(long offset, long end) throws ProxyCacheException {
+        opens.incrementAndGet();
+        this.position = (int) Math.min(offset, data.length);
+        this.end = end < 0 ? data.length : (int) Math.min(end, data.length);
+    }
+
+    @Override
+    public long length() throws ProxyCacheException {
+        return data.length;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer) throws ProxyCacheException {
+        if (position >= end) {
+            return -1;
+        }
+        int count = Math.min(buffer.length, end - position);
+        System.arraycopy(data, position, buffer, 0, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws ProxyCacheException {
+    }
+
+    @Override
+    public String getUrl() {
+        return URL;
+    }
+
+    @Override
+    public String getMime() throws ProxyCacheException {
+        return getKnownMime();
+    }
+
+    @Override
+    public long getKnownLength() {
+        return lengthKnown ? data.length : -1;
+    }
+
+    @Override
+    public String getKnownMime() {
+        CountDownLatch gate = mimeGate.getAndSet(null);
+        if (gate != null) {
+            mimeBlocked.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return MIME;
+    }
+
+    @Override
+    public void newFetchContentInfo() throws ProxyCacheException {
+        heads.incrementAndGet();
+    }
+
+    @Override
+    public ChunkSizeController getChunkSizeController() {
+        return chunkSizeController;
+    }
+
+    @Override
+    public UrlSource copy() {
+        return new ByteArrayUrlSource(data, lengthKnown, opens, heads, chunkSizeController);
+    }
+}
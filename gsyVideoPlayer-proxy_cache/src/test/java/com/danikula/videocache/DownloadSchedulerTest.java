@@ -0,0 +1,182 @@
+package com.danikula.videocache;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.danikula.videocache.DownloadScheduler.PRIORITY_NEAR_FUTURE;
+import static com.danikula.videocache.DownloadScheduler.PRIORITY_PLAYING;
+import static com.danikula.videocache.DownloadScheduler.PRIORITY_PRECACHE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadSchedulerTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private final BlockingQueue<Acquired> acquired = new LinkedBlockingQueue<>();
+
+    @Test
+    public void limitsRunningDownloads() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(2);
+        DownloadScheduler.Ticket first = scheduler.acquire(PRIORITY_PLAYING);
+        scheduler.acquire(PRIORITY_PRECACHE);
+        acquireAsync(scheduler, "third", PRIORITY_PLAYING);
+        awaitQueueDepth(scheduler, 1);
+        assertEquals(2, scheduler.getRunningCount());
+        assertNull(acquired.poll(100, TimeUnit.MILLISECONDS));
+
+        first.release();
+        first.release();
+        assertEquals("third", take().name);
+        assertEquals(2, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void startsByPriorityThenArrival() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1);
+        DownloadScheduler.Ticket running = scheduler.acquire(PRIORITY_PLAYING);
+        acquireAsync(scheduler, "precache", PRIORITY_PRECACHE);
+        awaitQueueDepth(scheduler, 1);
+        acquireAsync(scheduler, "segment", PRIORITY_NEAR_FUTURE);
+        awaitQueueDepth(scheduler, 2);
+        acquireAsync(scheduler, "playing1", PRIORITY_PLAYING);
+        awaitQueueDepth(scheduler, 3);
+        acquireAsync(scheduler, "playing2", PRIORITY_PLAYING);
+        awaitQueueDepth(scheduler, 4);
+
+        running.release();
+        String[] expected = {"playing1", "playing2", "segment", "precache"};
+        for (String name : expected) {
+            Acquired next = take();
+            assertEquals(name, next.name);
+            next.ticket.release();
+        }
+    }
+
+    @Test
+    public void playingPreemptsPrecache() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1);
+        DownloadScheduler.Ticket precache = scheduler.acquire(PRIORITY_PRECACHE);
+        acquireAsync(scheduler, "playing", PRIORITY_PLAYING);
+        awaitQueueDepth(scheduler, 1);
+        assertTrue(precache.isPreempted());
+        assertEquals(1, scheduler.getPreemptedCount());
+        assertTrue(scheduler.isForegroundActive());
+
+        precache.release();
+        assertEquals("playing", take().name);
+    }
+
+    @Test
+    public void segmentDoesNotPreemptPrecache() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1);
+        DownloadScheduler.Ticket precache = scheduler.acquire(PRIORITY_PRECACHE);
+        acquireAsync(scheduler, "segment", PRIORITY_NEAR_FUTURE);
+        awaitQueueDepth(scheduler, 1);
+        assertFalse(precache.isPreempted());
+        assertEquals(0, scheduler.getPreemptedCount());
+        precache.release();
+        take().ticket.release();
+    }
+
+    @Test
+    public void raisedPriorityJumpsQueue() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1);
+        DownloadScheduler.Ticket running = scheduler.acquire(PRIORITY_PLAYING);
+        acquireAsync(scheduler, "segment", PRIORITY_NEAR_FUTURE);
+        awaitQueueDepth(scheduler, 1);
+        DownloadScheduler.Ticket precache = scheduler.newTicket(PRIORITY_PRECACHE);
+        awaitAsync(precache, "precache");
+        awaitQueueDepth(scheduler, 2);
+
+        precache.setPriority(PRIORITY_PLAYING);
+        assertEquals(1, scheduler.getQueueDepth(PRIORITY_PLAYING));
+        running.release();
+        Acquired next = take();
+        assertEquals("precache", next.name);
+        next.ticket.release();
+        assertEquals("segment", take().name);
+    }
+
+    @Test
+    public void interruptedWaiterLeavesQueue() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1);
+        DownloadScheduler.Ticket running = scheduler.acquire(PRIORITY_PLAYING);
+        Thread waiter = acquireAsync(scheduler, "interrupted", PRIORITY_PLAYING);
+        awaitQueueDepth(scheduler, 1);
+        waiter.interrupt();
+        awaitQueueDepth(scheduler, 0);
+        running.release();
+        assertEquals(0, scheduler.getRunningCount());
+        assertNull(acquired.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void precacheAloneIsBackground() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(2);
+        DownloadScheduler.Ticket precache = scheduler.acquire(PRIORITY_PRECACHE);
+        assertFalse(scheduler.isForegroundActive());
+        DownloadScheduler.Ticket playing = scheduler.acquire(PRIORITY_PLAYING);
+        assertTrue(scheduler.isForegroundActive());
+        playing.release();
+        // 播放的请求刚刚结束，下一个分段请求马上就会开始
+        assertTrue(scheduler.isForegroundActive());
+        precache.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidPriority() {
+        new DownloadScheduler().newTicket(3);
+    }
+
+    private Thread acquireAsync(DownloadScheduler scheduler, String name, int priority) {
+        return awaitAsync(scheduler.newTicket(priority), name);
+    }
+
+    private Thread awaitAsync(final DownloadScheduler.Ticket ticket, final String name) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ticket.await();
+                    acquired.add(new Acquired(name, ticket));
+                } catch (InterruptedException e) {
+                    // 测试中断排队
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private Acquired take() throws InterruptedException {
+        Acquired next = acquired.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue("No ticket acquired in " + TIMEOUT + "ms", next != null);
+        return next;
+    }
+
+    private static void awaitQueueDepth(DownloadScheduler scheduler, int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (scheduler.getQueueDepth() != depth) {
+            assertTrue("Queue depth " + scheduler.getQueueDepth() + " != " + depth, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static final class Acquired {
+        final String name;
+        final DownloadScheduler.Ticket ticket;
+
+        Acquired(String name, DownloadScheduler.Ticket ticket) {
+            this.name = name;
+            this.ticket = ticket;
+        }
+    }
+}
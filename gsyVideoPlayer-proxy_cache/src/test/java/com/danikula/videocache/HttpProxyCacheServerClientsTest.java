@@ -0,0 +1,153 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.file.FileNameGenerator;
+import com.danikula.videocache.file.UnlimitedDiskUsage;
+import com.danikula.videocache.headers.EmptyHeadersInjector;
+import com.danikula.videocache.headers.HeaderInjector;
+import com.danikula.videocache.sourcestorage.NoSourceInfoStorage;
+import com.danikula.videocache.sourcestorage.SourceInfoStorage;
+import com.danikula.videocache.utils.ConstantsUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 同一个url的请求共享一个{@link HttpProxyCache}，最后一个请求结束时释放
+ */
+public class HttpProxyCacheServerClientsTest {
+
+    private File dir;
+    private ByteArrayUrlSource source;
+    private AtomicInteger createdSources;
+    private AtomicInteger totalClientsCount;
+    private ExecutorService sourceReaderExecutor;
+    private HttpProxyCacheServerClients clients;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("clients", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        source = new ByteArrayUrlSource(new byte[10000], true);
+        createdSources = new AtomicInteger();
+        totalClientsCount = new AtomicInteger();
+        sourceReaderExecutor = Executors.newCachedThreadPool();
+        DownloadScheduler downloadScheduler = new DownloadScheduler();
+        Config config = new Config(dir, new FileNameGenerator() {
+            @Override
+            public String generate(String url) {
+                return "video.mp4";
+            }
+        }, new UnlimitedDiskUsage(), new NoSourceInfoStorage(), new EmptyHeadersInjector(), null,
+                false, 1, 0, false, 1, new SourceFactory() {
+            @Override
+            public UrlSource newSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+                createdSources.incrementAndGet();
+                return source;
+            }
+        }, RetryPolicy.NONE, downloadScheduler, new BandwidthLimiter(downloadScheduler, 0, 0), sourceReaderExecutor,
+                ConstantsUtil.READ_AHEAD_WINDOW, ConstantsUtil.READ_AHEAD_LOW_WATER, false);
+        clients = new HttpProxyCacheServerClients(ByteArrayUrlSource.URL, config, totalClientsCount);
+    }
+
+    @After
+    public void tearDown() {
+        clients.shutdown();
+        sourceReaderExecutor.shutdownNow();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void finishedRequestReleasesCache() throws Exception {
+        assertTrue(head());
+        assertEquals(0, clients.getClientsCount());
+        assertEquals(0, totalClientsCount.get());
+
+        assertTrue(head());
+        assertEquals(2, createdSources.get());
+    }
+
+    @Test
+    public void concurrentRequestsShareCache() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        source.blockNextMime(gate);
+        HeadThread blocked = new HeadThread();
+        blocked.start();
+        assertTrue(source.awaitMimeBlocked());
+        assertEquals(1, clients.getClientsCount());
+
+        assertTrue(head());
+        assertEquals(1, createdSources.get());
+        assertEquals(1, clients.getClientsCount());
+        assertEquals(1, totalClientsCount.get());
+
+        gate.countDown();
+        blocked.join();
+        assertTrue(blocked.served.get());
+        assertEquals(0, clients.getClientsCount());
+        assertEquals(0, totalClientsCount.get());
+    }
+
+    @Test
+    public void shutdownDoesNotMakeCountersNegative() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        source.blockNextMime(gate);
+        HeadThread blocked = new HeadThread();
+        blocked.start();
+        assertTrue(source.awaitMimeBlocked());
+
+        clients.shutdown();
+        assertEquals(0, clients.getClientsCount());
+        assertEquals(0, totalClientsCount.get());
+
+        gate.countDown();
+        blocked.join();
+        assertEquals(0, clients.getClientsCount());
+        assertEquals(0, totalClientsCount.get());
+
+        // 被shutdown的实例不会再被复用
+        assertTrue(head());
+        assertEquals(2, createdSources.get());
+    }
+
+    private boolean head() throws Exception {
+        LoopbackConnection connection = new LoopbackConnection();
+        try {
+            boolean reusable = clients.processRequest(LoopbackConnection.request("HEAD", null, true), connection.getProxySocket());
+            assertEquals(200, connection.readResponse(true).code);
+            return reusable;
+        } finally {
+            connection.close();
+        }
+    }
+
+    private final class HeadThread extends Thread {
+
+        private final AtomicBoolean served = new AtomicBoolean();
+
+        @Override
+        public void run() {
+            try {
+                served.set(head());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
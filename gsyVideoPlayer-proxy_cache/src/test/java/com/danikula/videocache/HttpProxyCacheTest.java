@@ -0,0 +1,212 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.LoopbackConnection.Response;
+import com.danikula.videocache.file.FileCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpProxyCacheTest {
+
+    private static final int LENGTH = 10000;
+    private static final byte[] DATA = generate(LENGTH);
+
+    private File dir;
+    private ByteArrayUrlSource source;
+    private HttpProxyCache proxyCache;
+    private LoopbackConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("proxycache", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        source = new ByteArrayUrlSource(DATA, true);
+        proxyCache = new HttpProxyCache(source, new FileCache(new File(dir, "video.mp4"))) {
+            @Override
+            boolean hasEnoughSpace() {
+                return true;
+            }
+        };
+        connection = new LoopbackConnection();
+    }
+
+    @After
+    public void tearDown() {
+        connection.close();
+        proxyCache.shutdown();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void suffixRangeReturnsTail() throws Exception {
+        Response response = get("-100", true);
+        assertEquals(206, response.code);
+        assertEquals("bytes 9900-9999/10000", response.header("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(DATA, 9900, LENGTH), response.body);
+    }
+
+    @Test
+    public void suffixRangeLongerThanFileReturnsWholeFile() throws Exception {
+        Response response = get("-20000", true);
+        assertEquals(206, response.code);
+        assertEquals("bytes 0-9999/10000", response.header("Content-Range"));
+        assertArrayEquals(DATA, response.body);
+    }
+
+    @Test
+    public void rangeStartingAtLengthIsNotSatisfiable() throws Exception {
+        assertTrue(proxyCache.processRequest(LoopbackConnection.request("GET", "10000-", true), connection.getProxySocket()));
+        Response response = connection.readResponse(false);
+        assertEquals(416, response.code);
+        assertEquals("bytes */10000", response.header("Content-Range"));
+        assertEquals("0", response.header("Content-Length"));
+        assertTrue(connection.isDrained());
+    }
+
+    @Test
+    public void rangesPastLengthAreNotSatisfiable() throws Exception {
+        Response response = get("20000-30000,10000-", true);
+        assertEquals(416, response.code);
+        assertEquals("bytes */10000", response.header("Content-Range"));
+        assertEquals(0, source.getOpens());
+    }
+
+    @Test
+    public void overlappingRangesAreMerged() throws Exception {
+        Response response = get("50-199,0-99", true);
+        assertEquals(206, response.code);
+        assertEquals("bytes 0-199/10000", response.header("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(DATA, 0, 200), response.body);
+    }
+
+    @Test
+    public void multipartResponseContainsEachRange() throws Exception {
+        Response response = get("0-99,200-299", true);
+        assertEquals(206, response.code);
+        assertNull(response.header("Content-Range"));
+        String contentType = response.header("Content-Type");
+        assertTrue(contentType, contentType.startsWith("multipart/byteranges; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writePart(expected, boundary, 0, 99);
+        writePart(expected, boundary, 200, 299);
+        expected.write(("\r\n--" + boundary + "--\r\n").getBytes("UTF-8"));
+        assertArrayEquals(expected.toByteArray(), response.body);
+        assertTrue(connection.isDrained());
+    }
+
+    @Test
+    public void multipartResponseMergesOverlappingRanges() throws Exception {
+        Response response = get("500-599,0-99,100-199,550-699", true);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        String contentType = response.header("Content-Type");
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        writePart(expected, boundary, 0, 199);
+        writePart(expected, boundary, 500, 699);
+        expected.write(("\r\n--" + boundary + "--\r\n").getBytes("UTF-8"));
+        assertArrayEquals(expected.toByteArray(), response.body);
+    }
+
+    @Test
+    public void headSendsHeadersOnly() throws Exception {
+        assertTrue(proxyCache.processRequest(LoopbackConnection.request("HEAD", null, true), connection.getProxySocket()));
+        Response response = connection.readResponse(true);
+        assertEquals(200, response.code);
+        assertEquals("10000", response.header("Content-Length"));
+        assertEquals(ByteArrayUrlSource.MIME, response.header("Content-Type"));
+        assertTrue(connection.isDrained());
+        assertEquals(0, source.getOpens());
+        assertEquals(0, source.getHeads());
+    }
+
+    @Test
+    public void headWithRangeSendsPartialHeadersOnly() throws Exception {
+        assertTrue(proxyCache.processRequest(LoopbackConnection.request("HEAD", "100-199", true), connection.getProxySocket()));
+        Response response = connection.readResponse(true);
+        assertEquals(206, response.code);
+        assertEquals("100", response.header("Content-Length"));
+        assertEquals("bytes 100-199/10000", response.header("Content-Range"));
+        assertTrue(connection.isDrained());
+        assertEquals(0, source.getOpens());
+    }
+
+    @Test
+    public void keepAliveConnectionServesNextRequest() throws Exception {
+        Response first = get("0-99", true);
+        assertEquals("keep-alive", first.header("Connection"));
+        assertArrayEquals(Arrays.copyOfRange(DATA, 0, 100), first.body);
+
+        Response second = get("100-199", true);
+        assertEquals("bytes 100-199/10000", second.header("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(DATA, 100, 200), second.body);
+        assertTrue(connection.isDrained());
+    }
+
+    @Test
+    public void connectionCloseIsNotKeptAlive() throws Exception {
+        assertFalse(proxyCache.processRequest(LoopbackConnection.request("GET", "0-99", false), connection.getProxySocket()));
+        Response response = connection.readResponse(false);
+        assertEquals("close", response.header("Connection"));
+        assertArrayEquals(Arrays.copyOfRange(DATA, 0, 100), response.body);
+    }
+
+    @Test
+    public void nioEngineFallsBackForMultipleRanges() throws Exception {
+        assertNull(proxyCache.newNioResponse(LoopbackConnection.request("GET", "0-99,200-299", true)));
+        NioResponse notSatisfiable = proxyCache.newNioResponse(LoopbackConnection.request("GET", "10000-", true));
+        assertNotNull(notSatisfiable);
+        notSatisfiable.release();
+    }
+
+    @Test
+    public void releasedCacheCanNotBeRetained() {
+        assertTrue(proxyCache.retain());
+        assertTrue(proxyCache.releaseIfShared());
+        assertFalse(proxyCache.releaseIfShared());
+        assertTrue(proxyCache.release());
+        assertFalse(proxyCache.retain());
+    }
+
+    private Response get(String range, boolean keepAlive) throws Exception {
+        boolean reusable = proxyCache.processRequest(LoopbackConnection.request("GET", range, keepAlive), connection.getProxySocket());
+        assertEquals(keepAlive, reusable);
+        return connection.readResponse(false);
+    }
+
+    private static void writePart(ByteArrayOutputStream out, String boundary, int start, int end) throws IOException {
+        String header = "\r\n--" + boundary + "\r\n" +
+                "Content-Type: " + ByteArrayUrlSource.MIME + "\r\n" +
+                "Content-Range: bytes " + start + "-" + end + "/" + LENGTH + "\r\n" +
+                "\r\n";
+        out.write(header.getBytes("UTF-8"));
+        out.write(DATA, start, end - start + 1);
+    }
+
+    private static byte[] generate(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+}
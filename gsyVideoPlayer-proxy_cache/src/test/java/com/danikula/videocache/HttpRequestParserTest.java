@@ -0,0 +1,141 @@
+package com.danikula.videocache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpRequestParserTest {
+
+    @Test
+    public void parsesRequestLine() throws IOException {
+        GetRequest request = read("GET /http%3A%2F%2Fexample.com%2Fvideo.mp4 HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+        assertEquals("http%3A%2F%2Fexample.com%2Fvideo.mp4", request.uri);
+        assertFalse(request.head);
+        assertFalse(request.partial);
+        assertEquals(0, request.rangeOffset);
+        assertTrue(request.keepAlive);
+    }
+
+    @Test
+    public void parsesHeadRequest() throws IOException {
+        GetRequest request = read("HEAD /video HTTP/1.1\n\n");
+        assertTrue(request.head);
+        assertEquals("video", request.uri);
+    }
+
+    @Test
+    public void parsesRanges() throws IOException {
+        GetRequest request = read("GET /video HTTP/1.1\r\nrange:  bytes=100-199, 500-, -300\r\n\r\n");
+        List<ByteRange> ranges = request.ranges;
+        assertEquals(3, ranges.size());
+        assertEquals(100, ranges.get(0).start);
+        assertEquals(199, ranges.get(0).end);
+        assertEquals(500, ranges.get(1).start);
+        assertEquals(-1, ranges.get(1).end);
+        assertTrue(ranges.get(2).isSuffix());
+        assertEquals(300, ranges.get(2).suffixLength);
+        assertTrue(request.partial);
+        assertEquals(100, request.rangeOffset);
+    }
+
+    @Test
+    public void suffixRangeHasNoOffset() throws IOException {
+        GetRequest request = read("GET /video HTTP/1.1\r\nRange: bytes=-500\r\n\r\n");
+        assertTrue(request.partial);
+        assertEquals(0, request.rangeOffset);
+    }
+
+    @Test
+    public void ignoresInvalidRanges() throws IOException {
+        assertFalse(read("GET /video HTTP/1.1\r\nRange: bytes=200-100\r\n\r\n").partial);
+        assertFalse(read("GET /video HTTP/1.1\r\nRange: bytes=-\r\n\r\n").partial);
+        assertFalse(read("GET /video HTTP/1.1\r\nRange: bytes=abc\r\n\r\n").partial);
+        assertFalse(read("GET /video HTTP/1.1\r\nRange: items=0-\r\n\r\n").partial);
+    }
+
+    @Test
+    public void ignoresOverflowingRanges() throws IOException {
+        assertFalse(read("GET /video HTTP/1.1\r\nRange: bytes=99999999999999999999-\r\n\r\n").partial);
+        assertFalse(read("GET /video HTTP/1.1\r\nRange: bytes=0-99999999999999999999\r\n\r\n").partial);
+        assertFalse(read("GET /video HTTP/1.1\r\nRange: bytes=-9223372036854775808\r\n\r\n").partial);
+        GetRequest max = read("GET /video HTTP/1.1\r\nRange: bytes=9223372036854775807-\r\n\r\n");
+        assertEquals(Long.MAX_VALUE, max.rangeOffset);
+    }
+
+    @Test
+    public void detectsKeepAlive() throws IOException {
+        assertFalse(read("GET /video HTTP/1.1\r\nConnection: close\r\n\r\n").keepAlive);
+        assertFalse(read("GET /video HTTP/1.0\r\n\r\n").keepAlive);
+        assertTrue(read("GET /video HTTP/1.0\r\nCONNECTION: Keep-Alive\r\n\r\n").keepAlive);
+    }
+
+    @Test
+    public void readsPipelinedRequests() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser();
+        InputStream in = new ByteArrayInputStream(
+                "GET /first HTTP/1.1\r\n\r\n\r\nGET /second HTTP/1.1\r\nRange: bytes=10-\r\n\r\n".getBytes("UTF-8"));
+        assertEquals("first", parser.read(in).uri);
+        GetRequest second = parser.read(in);
+        assertEquals("second", second.uri);
+        assertEquals(10, second.rangeOffset);
+        assertNull(parser.read(in));
+    }
+
+    @Test
+    public void readsRequestSplitAcrossReads() throws IOException {
+        final byte[] data = "GET /video HTTP/1.1\r\nRange: bytes=42-\r\n\r\n".getBytes("UTF-8");
+        // 每次只返回一个字节
+        InputStream in = new InputStream() {
+            private int position;
+
+            @Override
+            public int read() {
+                return position < data.length ? data[position++] : -1;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                int value = read();
+                if (value < 0) {
+                    return -1;
+                }
+                buffer[offset] = (byte) value;
+                return 1;
+            }
+        };
+        assertEquals(42, new HttpRequestParser().read(in).rangeOffset);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedMethod() throws IOException {
+        read("POST /video HTTP/1.1\r\n\r\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTooLargeRequest() throws IOException {
+        StringBuilder request = new StringBuilder("GET /video HTTP/1.1\r\n");
+        while (request.length() <= HttpRequestParser.MAX_REQUEST_SIZE) {
+            request.append("X-Padding: 0123456789\r\n");
+        }
+        read(request.toString());
+    }
+
+    @Test
+    public void findsHeadersEnd() {
+        byte[] data = "GET / HTTP/1.1\r\nHost: a\r\n\r\nGET".getBytes();
+        assertEquals(data.length - 3, HttpRequestParser.findHeadersEnd(data, 0, data.length));
+        assertEquals(-1, HttpRequestParser.findHeadersEnd(data, 0, data.length - 5));
+    }
+
+    private static GetRequest read(String request) throws IOException {
+        return new HttpRequestParser().read(new ByteArrayInputStream(request.getBytes("UTF-8")));
+    }
+}
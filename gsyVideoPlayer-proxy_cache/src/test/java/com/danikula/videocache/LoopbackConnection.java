@@ -0,0 +1,118 @@
+package com.danikula.videocache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 本机的一对socket：代理在{@link #getProxySocket()}上写响应，测试从播放器一端读取并解析
+ */
+class LoopbackConnection {
+
+    private final Socket playerSocket;
+    private final Socket proxySocket;
+    private final InputStream in;
+
+    LoopbackConnection() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            playerSocket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+            proxySocket = serverSocket.accept();
+        } finally {
+            serverSocket.close();
+        }
+        playerSocket.setSoTimeout(10 * 1000);
+        in = new BufferedInputStream(playerSocket.getInputStream());
+    }
+
+    static GetRequest request(String method, String range, boolean keepAlive) throws IOException {
+        String request = method + " /video HTTP/1.1\r\n" +
+                (range != null ? "Range: bytes=" + range + "\r\n" : "") +
+                (keepAlive ? "" : "Connection: close\r\n") +
+                "\r\n";
+        return new HttpRequestParser().read(new ByteArrayInputStream(request.getBytes("UTF-8")));
+    }
+
+    Socket getProxySocket() {
+        return proxySocket;
+    }
+
+    /**
+     * 读取一个响应，HEAD请求的响应没有body，其他响应按Content-Length读取body
+     */
+    Response readResponse(boolean head) throws IOException {
+        String statusLine = readLine();
+        int code = Integer.parseInt(statusLine.split(" ")[1]);
+        Map<String, String> headers = new HashMap<>();
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+        }
+        byte[] body = new byte[0];
+        String contentLength = headers.get("content-length");
+        if (!head && contentLength != null) {
+            body = new byte[Integer.parseInt(contentLength)];
+            int offset = 0;
+            while (offset < body.length) {
+                int read = in.read(body, offset, body.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of response body at " + offset);
+                }
+                offset += read;
+            }
+        }
+        return new Response(code, headers, body);
+    }
+
+    /**
+     * @return 代理关闭了连接并且没有多余的数据时返回{@code true}
+     */
+    boolean isDrained() throws IOException {
+        proxySocket.shutdownOutput();
+        return in.read() < 0;
+    }
+
+    void close() {
+        ProxyCacheUtils.close(playerSocket);
+        ProxyCacheUtils.close(proxySocket);
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Unexpected end of response headers");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("UTF-8");
+    }
+
+    static final class Response {
+
+        final int code;
+        final Map<String, String> headers;
+        final byte[] body;
+
+        Response(int code, Map<String, String> headers, byte[] body) {
+            this.code = code;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+    }
+}
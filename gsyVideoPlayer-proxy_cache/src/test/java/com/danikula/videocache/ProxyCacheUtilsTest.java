@@ -0,0 +1,81 @@
+package com.danikula.videocache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProxyCacheUtilsTest {
+
+    private static final SourceInfo KNOWN = new SourceInfo("http://example.com/video.mp4", 1000, "video/mp4", "\"v1\"");
+
+    @Test
+    public void sendsIfRangeOnlyForStrongEtag() {
+        assertEquals("\"v1\"", ProxyCacheUtils.getIfRange(100, "\"v1\""));
+        assertNull(ProxyCacheUtils.getIfRange(100, "W/\"v1\""));
+        assertNull(ProxyCacheUtils.getIfRange(100, null));
+        assertNull(ProxyCacheUtils.getIfRange(0, "\"v1\""));
+    }
+
+    @Test
+    public void changedWhenLengthDiffers() {
+        assertTrue(ProxyCacheUtils.isSourceChanged(KNOWN, "\"v1\"", 206, 2000, "\"v1\""));
+        assertFalse(ProxyCacheUtils.isSourceChanged(KNOWN, "\"v1\"", 206, -1, "\"v1\""));
+    }
+
+    @Test
+    public void changedWhenIfRangeFailsWithNewStrongEtag() {
+        assertTrue(ProxyCacheUtils.isSourceChanged(KNOWN, "\"v1\"", 200, 1000, "\"v2\""));
+    }
+
+    @Test
+    public void partialResponseWithOtherEtagIsNotChanged() {
+        // CDN的另一个节点返回了不同的ETag，但是接受了If-Range
+        assertFalse(ProxyCacheUtils.isSourceChanged(KNOWN, "\"v1\"", 206, 1000, "\"edge-2\""));
+        assertFalse(ProxyCacheUtils.isSourceChanged(KNOWN, null, 206, 1000, "\"edge-2\""));
+    }
+
+    @Test
+    public void weakEtagIsNotChanged() {
+        SourceInfo weak = new SourceInfo(KNOWN.url, 1000, "video/mp4", "W/\"v1\"");
+        assertFalse(ProxyCacheUtils.isSourceChanged(weak, null, 206, 1000, "W/\"v2\""));
+        assertFalse(ProxyCacheUtils.isSourceChanged(KNOWN, "\"v1\"", 200, 1000, "W/\"v2\""));
+    }
+
+    @Test
+    public void fullResponseWithSameEtagIsNotChanged() {
+        // 服务器不支持Range，返回完整文件
+        assertFalse(ProxyCacheUtils.isSourceChanged(KNOWN, "\"v1\"", 200, 1000, "\"v1\""));
+        assertFalse(ProxyCacheUtils.isSourceChanged(KNOWN, "\"v1\"", 200, 1000, null));
+    }
+
+    @Test
+    public void readsSourceLength() {
+        assertEquals(5000, ProxyCacheUtils.getSourceLength(206, "bytes 100-199/5000", "100"));
+        assertEquals(-1, ProxyCacheUtils.getSourceLength(206, "bytes 100-199/*", "100"));
+        assertEquals(5000, ProxyCacheUtils.getSourceLength(200, null, "5000"));
+        assertEquals(-1, ProxyCacheUtils.getSourceLength(200, null, "abc"));
+    }
+
+    @Test
+    public void skipsToOffset() throws IOException {
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        ProxyCacheUtils.skipFully(in, 12345);
+        assertEquals((byte) 12345, (byte) in.read());
+    }
+
+    @Test(expected = EOFException.class)
+    public void skipPastEndFails() throws IOException {
+        ProxyCacheUtils.skipFully(new ByteArrayInputStream(new byte[100]), 101);
+    }
+}
@@ -0,0 +1,72 @@
+package com.danikula.videocache;
+
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void retriesUntilLimit() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+        ProxyCacheException error = new ProxyCacheException("Error reading", new IOException("reset"));
+        assertTrue(policy.shouldRetry(0, error));
+        assertTrue(policy.shouldRetry(2, error));
+        assertFalse(policy.shouldRetry(3, error));
+    }
+
+    @Test
+    public void noneNeverRetries() {
+        assertFalse(RetryPolicy.NONE.shouldRetry(0, new ProxyCacheException("Error reading")));
+    }
+
+    @Test
+    public void doesNotRetryMissingFile() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+        ProxyCacheException error = new ProxyCacheException("Error opening", new FileNotFoundException("404"));
+        assertFalse(policy.shouldRetry(0, error));
+    }
+
+    @Test
+    public void doesNotRetryInterruption() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+        assertFalse(policy.shouldRetry(0, new InterruptedProxyCacheException("Interrupted")));
+    }
+
+    @Test
+    public void delayBacksOffWithJitter() {
+        RetryPolicy policy = new RetryPolicy(5, 100, 1000);
+        for (int i = 0; i < 100; i++) {
+            assertInRange(policy.getDelay(0), 50, 100);
+            assertInRange(policy.getDelay(1), 100, 200);
+            assertInRange(policy.getDelay(2), 200, 400);
+            assertInRange(policy.getDelay(4), 500, 1000);
+        }
+    }
+
+    @Test
+    public void delayDoesNotOverflow() {
+        RetryPolicy policy = new RetryPolicy(100, 500, 10 * 1000);
+        assertInRange(policy.getDelay(63), 5000, 10000);
+        assertInRange(policy.getDelay(Integer.MAX_VALUE), 5000, 10000);
+    }
+
+    @Test
+    public void zeroDelay() {
+        assertEquals(0, new RetryPolicy(3, 0, 0).getDelay(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidDelays() {
+        new RetryPolicy(3, 1000, 100);
+    }
+
+    private static void assertInRange(long value, long min, long max) {
+        assertTrue(value + " is not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+}
@@ -0,0 +1,102 @@
+package com.danikula.videocache.file;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class RangeIndexTest {
+
+    @Test
+    public void mergesOverlappingAndAdjacentRanges() {
+        RangeIndex index = new RangeIndex();
+        index.add(100, 200);
+        index.add(300, 400);
+        index.add(150, 250);
+        index.add(250, 300);
+        assertEquals(1, index.size());
+        assertEquals(400, index.getFilledEnd(100));
+        assertEquals(300, index.getFilledBytes());
+    }
+
+    @Test
+    public void keepsRangesSorted() {
+        RangeIndex index = new RangeIndex();
+        index.add(500, 600);
+        index.add(0, 100);
+        index.add(200, 300);
+        assertEquals(3, index.size());
+        assertEquals(100, index.getPrefixEnd());
+        assertEquals(200, index.getNextStart(100));
+        assertEquals(500, index.getNextStart(200));
+        assertEquals(Long.MAX_VALUE, index.getNextStart(500));
+    }
+
+    @Test
+    public void ignoresEmptyRanges() {
+        RangeIndex index = new RangeIndex();
+        index.add(10, 10);
+        index.add(20, 10);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void prefixStartsAtZero() {
+        RangeIndex index = new RangeIndex();
+        index.add(10, 100);
+        assertEquals(0, index.getPrefixEnd());
+        index.add(0, 10);
+        assertEquals(100, index.getPrefixEnd());
+    }
+
+    @Test
+    public void filledEndOfUncachedOffsetIsOffset() {
+        RangeIndex index = new RangeIndex();
+        index.add(100, 200);
+        assertEquals(50, index.getFilledEnd(50));
+        assertEquals(200, index.getFilledEnd(100));
+        assertEquals(200, index.getFilledEnd(199));
+        assertEquals(200, index.getFilledEnd(200));
+    }
+
+    @Test
+    public void clipsToFileLength() {
+        RangeIndex index = new RangeIndex();
+        index.add(0, 100);
+        index.add(200, 400);
+        index.add(500, 600);
+        index.clip(300);
+        assertEquals(2, index.size());
+        assertEquals(300, index.getFilledEnd(200));
+        assertEquals(200, index.getFilledBytes());
+    }
+
+    @Test
+    public void survivesSerialization() throws IOException {
+        RangeIndex index = new RangeIndex();
+        index.add(0, 100);
+        index.add(1000, 5000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.writeTo(out);
+        RangeIndex read = RangeIndex.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(index.toString(), read.toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownVersion() throws IOException {
+        RangeIndex.readFrom(new ByteArrayInputStream(new byte[]{0, 0, 0, 9, 0, 0, 0, 0}));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedData() throws IOException {
+        RangeIndex index = new RangeIndex();
+        index.add(0, 100);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.writeTo(out);
+        byte[] data = out.toByteArray();
+        RangeIndex.readFrom(new ByteArrayInputStream(data, 0, data.length - 4));
+    }
+}
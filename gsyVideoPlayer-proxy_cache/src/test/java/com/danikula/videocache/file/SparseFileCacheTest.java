@@ -0,0 +1,162 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.ProxyCacheException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SparseFileCacheTest {
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("sparse", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        file = new File(dir, "video.mp4");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void availableSkipsOverWrittenRange() throws ProxyCacheException {
+        SparseFileCache cache = new SparseFileCache(file);
+        cache.preallocate(300);
+        cache.write(100, data(100, 1), 0, 100);
+        assertEquals(0, cache.available());
+        assertEquals(200, cache.getFilledEnd(100));
+        assertEquals(100, cache.getNextFilledStart(0));
+
+        cache.append(data(100, 0), 100);
+        assertEquals(200, cache.available());
+        assertEquals(200, cache.getFilledBytes());
+        cache.close();
+    }
+
+    @Test
+    public void readsWrittenRange() throws ProxyCacheException {
+        SparseFileCache cache = new SparseFileCache(file);
+        cache.preallocate(300);
+        byte[] written = data(50, 7);
+        cache.write(200, written, 0, written.length);
+        byte[] read = new byte[50];
+        assertEquals(50, cache.read(read, 200, read.length));
+        assertArrayEquals(written, read);
+        cache.close();
+    }
+
+    @Test
+    public void restoresRangesAfterReopen() throws ProxyCacheException {
+        SparseFileCache cache = new SparseFileCache(file);
+        cache.preallocate(300);
+        cache.append(data(100, 0), 100);
+        cache.write(200, data(100, 2), 0, 100);
+        cache.close();
+
+        SparseFileCache reopened = new SparseFileCache(file);
+        assertEquals(100, reopened.available());
+        assertEquals(300, reopened.getFilledEnd(200));
+        assertEquals(200, reopened.getFilledBytes());
+        reopened.close();
+    }
+
+    @Test
+    public void completeDeletesRangesFile() throws ProxyCacheException {
+        SparseFileCache cache = new SparseFileCache(file);
+        cache.preallocate(100);
+        cache.write(50, data(50, 1), 0, 50);
+        cache.append(data(50, 0), 50);
+        File rangesFile = SparseFileCache.getRangesFile(cache.getFile());
+        assertTrue(rangesFile.exists());
+        cache.complete();
+        assertTrue(cache.isCompleted());
+        assertFalse(rangesFile.exists());
+        assertEquals(100, cache.available());
+        cache.close();
+    }
+
+    @Test
+    public void resetDropsRanges() throws ProxyCacheException {
+        SparseFileCache cache = new SparseFileCache(file);
+        cache.preallocate(100);
+        cache.write(50, data(50, 1), 0, 50);
+        cache.reset();
+        assertEquals(0, cache.available());
+        assertEquals(0, cache.getFilledBytes());
+        assertFalse(SparseFileCache.getRangesFile(cache.getFile()).exists());
+        cache.close();
+    }
+
+    @Test
+    public void plainCacheKeepsOnlyFilledPrefix() throws ProxyCacheException {
+        SparseFileCache sparse = new SparseFileCache(file);
+        sparse.preallocate(300);
+        sparse.append(data(100, 1), 100);
+        sparse.write(200, data(100, 2), 0, 100);
+        File rangesFile = SparseFileCache.getRangesFile(sparse.getFile());
+        sparse.close();
+
+        FileCache cache = new FileCache(file);
+        assertEquals(100, cache.available());
+        assertFalse(rangesFile.exists());
+        byte[] read = new byte[100];
+        assertEquals(100, cache.read(read, 0, 100));
+        assertArrayEquals(data(100, 1), read);
+        cache.close();
+    }
+
+    @Test
+    public void plainCacheDiscardsUnreadableRanges() throws Exception {
+        SparseFileCache sparse = new SparseFileCache(file);
+        sparse.preallocate(300);
+        sparse.write(100, data(100, 1), 0, 100);
+        File rangesFile = SparseFileCache.getRangesFile(sparse.getFile());
+        sparse.close();
+        FileOutputStream out = new FileOutputStream(rangesFile);
+        out.write(1);
+        out.close();
+
+        FileCache cache = new FileCache(file);
+        assertEquals(0, cache.available());
+        assertFalse(rangesFile.exists());
+        cache.close();
+    }
+
+    @Test
+    public void plainCacheKeepsFileWithoutRanges() throws ProxyCacheException {
+        FileCache written = new FileCache(file);
+        written.append(data(100, 1), 100);
+        written.close();
+
+        FileCache cache = new FileCache(file);
+        assertEquals(100, cache.available());
+        cache.close();
+    }
+
+    private static byte[] data(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+}
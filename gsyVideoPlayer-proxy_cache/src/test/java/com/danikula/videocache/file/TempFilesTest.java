@@ -0,0 +1,85 @@
+package com.danikula.videocache.file;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TempFilesTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("tempfiles", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void tempFileIsCreatedInTempDirectory() throws IOException {
+        File temp = FileCache.createTempFile(new File(dir, "video.mp4.download"), ".moov");
+        assertEquals(new File(dir, FileCache.TEMP_DIRECTORY), temp.getParentFile());
+        assertTrue(temp.getName().startsWith("video.mp4"));
+        assertTrue(temp.getName().endsWith(".moov"));
+    }
+
+    @Test
+    public void tempFilesAreNotInLruList() throws IOException {
+        File video = new File(dir, "video.mp4");
+        write(video, 100);
+        write(FileCache.createTempFile(video, ".moov"), 1000);
+
+        List<File> files = Files.getLruListFiles(dir);
+        assertEquals(1, files.size());
+        assertEquals(video, files.get(0));
+    }
+
+    @Test
+    public void deletesLeftTempFiles() throws IOException {
+        File video = new File(dir, "video.mp4");
+        File first = FileCache.createTempFile(video, ".moov");
+        File second = FileCache.createTempFile(video, ".segment");
+
+        FileCache.deleteTempFiles(dir);
+        assertFalse(first.exists());
+        assertFalse(second.exists());
+    }
+
+    @Test
+    public void deletingWithoutTempDirectoryDoesNothing() {
+        FileCache.deleteTempFiles(dir);
+        assertFalse(new File(dir, FileCache.TEMP_DIRECTORY).exists());
+    }
+
+    private static void write(File file, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,94 @@
+package com.danikula.videocache.mp4;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class Mp4BoxParserTest {
+
+    @Test
+    public void findsBoxAfterMdat() throws IOException {
+        byte[] head = concat(box("ftyp", 16), header("mdat", 100000));
+        assertEquals(24 + 100000, Mp4BoxParser.findTrailingMoov(head, head.length, 200000));
+    }
+
+    @Test
+    public void findsBoxAfterLargeMdat() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeBytes("mdat");
+        out.writeLong(5000000000L);
+        byte[] head = concat(box("ftyp", 16), bytes.toByteArray());
+        assertEquals(24 + 5000000000L, Mp4BoxParser.findTrailingMoov(head, head.length, 6000000000L));
+    }
+
+    @Test
+    public void noTrailingMoovWhenMoovIsFirst() throws IOException {
+        byte[] head = concat(box("ftyp", 16), box("moov", 100), header("mdat", 100000));
+        assertEquals(-1, Mp4BoxParser.findTrailingMoov(head, head.length, 200000));
+    }
+
+    @Test
+    public void noTrailingMoovWhenMdatReachesEnd() throws IOException {
+        byte[] head = concat(box("ftyp", 16), header("mdat", 0));
+        assertEquals(-1, Mp4BoxParser.findTrailingMoov(head, head.length, 200000));
+        head = concat(box("ftyp", 16), header("mdat", 1000));
+        assertEquals(-1, Mp4BoxParser.findTrailingMoov(head, head.length, 24 + 1000));
+    }
+
+    @Test
+    public void noTrailingMoovForOtherFormats() throws IOException {
+        byte[] head = concat(header("mdat", 1000), box("ftyp", 16));
+        assertEquals(-1, Mp4BoxParser.findTrailingMoov(head, head.length, 200000));
+        byte[] text = "#EXTM3U\n#EXT-X-VERSION:3\n".getBytes("US-ASCII");
+        assertEquals(-1, Mp4BoxParser.findTrailingMoov(text, text.length, 200000));
+    }
+
+    @Test
+    public void noTrailingMoovWhenHeadIsTooShort() throws IOException {
+        byte[] head = concat(box("ftyp", 16), box("free", 64));
+        assertEquals(-1, Mp4BoxParser.findTrailingMoov(head, 30, 200000));
+    }
+
+    @Test
+    public void findsTopLevelBox() throws IOException {
+        byte[] data = concat(box("ftyp", 16), box("free", 8), box("moov", 40));
+        assertEquals(40, Mp4BoxParser.findBox(data, 0, data.length, "moov"));
+        assertEquals(48, Mp4BoxParser.getBoxSize(data, 40, data.length));
+        assertEquals(-1, Mp4BoxParser.findBox(data, 0, data.length, "mdat"));
+        assertEquals(-1, Mp4BoxParser.findBox(data, 0, 44, "moov"));
+    }
+
+    @Test
+    public void boxSizeToEndOfFileIsUnknown() throws IOException {
+        byte[] data = header("mdat", 0);
+        assertEquals(-1, Mp4BoxParser.getBoxSize(data, 0, data.length));
+    }
+
+    private static byte[] box(String type, int bodySize) throws IOException {
+        byte[] box = new byte[8 + bodySize];
+        System.arraycopy(header(type, box.length), 0, box, 0, 8);
+        return box;
+    }
+
+    private static byte[] header(String type, long size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt((int) size);
+        out.writeBytes(type);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            bytes.write(part, 0, part.length);
+        }
+        return bytes.toByteArray();
+    }
+}
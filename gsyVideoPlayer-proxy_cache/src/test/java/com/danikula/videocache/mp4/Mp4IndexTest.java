@@ -0,0 +1,141 @@
+package com.danikula.videocache.mp4;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class Mp4IndexTest {
+
+    private static final long SOURCE_LENGTH = 5000;
+
+    // 10个500ms的视频sample，每个100字节，奇数sample是关键帧，第i个sample在1000 + i * 100
+    private static final int SAMPLE_COUNT = 10;
+    private static final int SAMPLE_SIZE = 100;
+    private static final int FIRST_OFFSET = 1000;
+
+    @Test
+    public void indexesKeyFrames() throws IOException {
+        Mp4Index index = parse(moov());
+        assertNotNull(index);
+        assertEquals(SOURCE_LENGTH, index.getSourceLength());
+        assertEquals(5000, index.getDurationMs());
+        assertEquals(1000, index.getOffset(0));
+        assertEquals(1000, index.getOffset(999));
+        assertEquals(1200, index.getOffset(1000));
+        assertEquals(1400, index.getOffset(2500));
+        assertEquals(1800, index.getOffset(100000));
+    }
+
+    @Test
+    public void bytesForDurationEndsAtNextKeyFrame() throws IOException {
+        Mp4Index index = parse(moov());
+        assertEquals(200, index.bytesForDuration(0, 1000));
+        assertEquals(400, index.bytesForDuration(500, 1000));
+        // 最后一个关键帧之后一直到最后一个sample结束
+        assertEquals(200, index.bytesForDuration(4000, 10000));
+    }
+
+    @Test
+    public void spanEndStartsAtOffsetTime() throws IOException {
+        Mp4Index index = parse(moov());
+        assertEquals(1600, index.getSpanEnd(1450, 1000));
+        assertEquals(2000, index.getSpanEnd(1900, 1000));
+    }
+
+    @Test
+    public void survivesSerialization() throws IOException {
+        Mp4Index index = parse(moov());
+        Mp4Index restored = Mp4Index.fromBytes(index.toBytes());
+        assertNotNull(restored);
+        assertEquals(index.toString(), restored.toString());
+        assertEquals(index.getSourceLength(), restored.getSourceLength());
+        assertEquals(index.bytesForDuration(500, 2000), restored.bytesForDuration(500, 2000));
+    }
+
+    @Test
+    public void rejectsInvalidBytes() {
+        assertNull(Mp4Index.fromBytes(null));
+        assertNull(Mp4Index.fromBytes(new byte[0]));
+        assertNull(Mp4Index.fromBytes(new byte[]{0, 0, 0, 9, 1, 2, 3}));
+    }
+
+    @Test
+    public void rejectsTruncatedMoov() throws IOException {
+        byte[] moov = moov();
+        byte[] truncated = Arrays.copyOf(moov, moov.length - 20);
+        setSize(truncated, moov.length);
+        assertNull(Mp4Index.fromMoov(truncated, 0, truncated.length, SOURCE_LENGTH));
+    }
+
+    @Test
+    public void rejectsMoovWithoutTracks() throws IOException {
+        assertNull(parse(box("moov", box("mvhd", new byte[100]))));
+    }
+
+    private static Mp4Index parse(byte[] moov) {
+        return Mp4Index.fromMoov(moov, 0, moov.length, SOURCE_LENGTH);
+    }
+
+    private static byte[] moov() throws IOException {
+        int[] sync = {1, 3, 5, 7, 9};
+        int[] chunkOffsets = new int[SAMPLE_COUNT];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            chunkOffsets[i] = FIRST_OFFSET + i * SAMPLE_SIZE;
+        }
+        byte[] stbl = box("stbl",
+                fullBox("stts", 1, SAMPLE_COUNT, 500),
+                fullBox("stss", concat(new int[]{sync.length}, sync)),
+                fullBox("stsz", SAMPLE_SIZE, SAMPLE_COUNT),
+                fullBox("stsc", 1, 1, 1, 1),
+                fullBox("stco", concat(new int[]{SAMPLE_COUNT}, chunkOffsets)));
+        byte[] mdhd = fullBox("mdhd", 0, 0, 1000, 5000, 0);
+        byte[] hdlr = box("hdlr", ints(0, 0), "vide".getBytes("US-ASCII"), new byte[12]);
+        return box("moov", box("mvhd", new byte[100]), box("trak", box("mdia", mdhd, hdlr, box("minf", stbl))));
+    }
+
+    private static byte[] fullBox(String type, int... values) throws IOException {
+        return box(type, ints(0), ints(values));
+    }
+
+    private static byte[] box(String type, byte[]... children) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeBytes(type);
+        for (byte[] child : children) {
+            out.write(child);
+        }
+        byte[] box = bytes.toByteArray();
+        setSize(box, box.length);
+        return box;
+    }
+
+    private static byte[] ints(int... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int[] concat(int[] first, int[] second) {
+        int[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static void setSize(byte[] box, int size) {
+        box[0] = (byte) (size >>> 24);
+        box[1] = (byte) (size >>> 16);
+        box[2] = (byte) (size >>> 8);
+        box[3] = (byte) size;
+    }
+}
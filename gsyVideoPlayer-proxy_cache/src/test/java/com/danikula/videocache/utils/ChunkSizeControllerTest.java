@@ -0,0 +1,106 @@
+package com.danikula.videocache.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChunkSizeControllerTest {
+
+    private static final int KB = 1024;
+
+    @Test
+    public void clampsInitialSize() {
+        assertEquals(64 * KB, new ChunkSizeController(KB, 64 * KB, 1024 * KB).getChunkSize());
+        assertEquals(1024 * KB, new ChunkSizeController(4096 * KB, 64 * KB, 1024 * KB).getChunkSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidBounds() {
+        new ChunkSizeController(64 * KB, 128 * KB, 64 * KB);
+    }
+
+    @Test
+    public void fastNetworkGrowsAtMostTwice() {
+        ChunkSizeController controller = new ChunkSizeController(512 * KB, 64 * KB, 4096 * KB);
+        controller.onChunkLoaded(512 * KB, 0, 100);
+        assertEquals(1024 * KB, controller.getChunkSize());
+        controller.onChunkLoaded(512 * KB, 0, 100);
+        assertEquals(2048 * KB, controller.getChunkSize());
+        controller.onChunkLoaded(512 * KB, 0, 100);
+        assertEquals(4096 * KB, controller.getChunkSize());
+        controller.onChunkLoaded(512 * KB, 0, 100);
+        assertEquals(4096 * KB, controller.getChunkSize());
+    }
+
+    @Test
+    public void slowNetworkShrinksAtMostHalf() {
+        ChunkSizeController controller = new ChunkSizeController(512 * KB, 64 * KB, 4096 * KB);
+        controller.onChunkLoaded(512 * KB, 0, 100000);
+        assertEquals(256 * KB, controller.getChunkSize());
+        for (int i = 0; i < 10; i++) {
+            controller.onChunkLoaded(512 * KB, 0, 100000);
+        }
+        assertEquals(64 * KB, controller.getChunkSize());
+    }
+
+    @Test
+    public void sizeFollowsThroughput() {
+        // 40字节/毫秒，2秒的请求长度是80000字节
+        ChunkSizeController controller = new ChunkSizeController(100000, 16 * KB, 4096 * KB);
+        controller.onChunkLoaded(40000, 0, 1000);
+        assertEquals(40 * 1000, controller.getThroughput());
+        assertEquals(80000, controller.getChunkSize());
+    }
+
+    @Test
+    public void slowFirstByteMakesChunksLonger() {
+        // 首字节时间500毫秒，请求至少下载5秒
+        ChunkSizeController controller = new ChunkSizeController(100000, 16 * KB, 4096 * KB);
+        controller.onChunkLoaded(40000, 500, 1500);
+        assertEquals(500, controller.getFirstByteTime());
+        assertEquals(200000, controller.getChunkSize());
+    }
+
+    @Test
+    public void ignoresSmallSamples() {
+        ChunkSizeController controller = new ChunkSizeController(512 * KB, 64 * KB, 4096 * KB);
+        controller.onChunkLoaded(8 * KB, 0, 100000);
+        controller.onChunkLoaded(512 * KB, 0, 0);
+        assertEquals(0, controller.getSamplesCount());
+        assertEquals(-1, controller.getThroughput());
+        assertEquals(512 * KB, controller.getChunkSize());
+    }
+
+    @Test
+    public void rangeEndUsesChunkSize() {
+        ChunkSizeController controller = new ChunkSizeController(100, 100, 100);
+        assertEquals(149, controller.getRangeEnd(50, 1000));
+        assertEquals(999, controller.getRangeEnd(950, 1000));
+        assertEquals(1049, controller.getRangeEnd(950, -1));
+    }
+
+    @Test
+    public void completedSampleIsCounted() throws InterruptedException {
+        ChunkSizeController controller = new ChunkSizeController(512 * KB, 64 * KB, 4096 * KB);
+        ChunkSizeController.Sample sample = controller.newSample();
+        Thread.sleep(5);
+        sample.onResponse(-1);
+        sample.onRead(32 * KB);
+        sample.onRead(-1);
+        sample.finish();
+        sample.finish();
+        assertEquals(1, controller.getSamplesCount());
+    }
+
+    @Test
+    public void incompleteSampleIsIgnored() throws InterruptedException {
+        ChunkSizeController controller = new ChunkSizeController(512 * KB, 64 * KB, 4096 * KB);
+        ChunkSizeController.Sample sample = controller.newSample();
+        Thread.sleep(5);
+        sample.onResponse(512 * KB);
+        sample.onRead(32 * KB);
+        sample.finish();
+        assertEquals(0, controller.getSamplesCount());
+        assertEquals(512 * KB, controller.getChunkSize());
+    }
+}